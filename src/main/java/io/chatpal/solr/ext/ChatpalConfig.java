@@ -21,5 +21,32 @@ public final class ChatpalConfig {
 
     public static final String CONF_SUGGESTION_SIZE = "suggestions.size";
 
+    /**
+     * If identical concurrent requests are coalesced (default <code>true</code>)
+     */
+    public static final String CONF_COALESCE = "coalesce";
+
+    /**
+     * The name of the user defined cache (<code>&lt;cache name="..."/&gt;</code> in the
+     * <code>solrconfig.xml</code>) used to cache search responses
+     */
+    public static final String CONF_RESPONSE_CACHE = "responseCache";
+
+    /**
+     * The number of parallel workers of the bulk import (default: number of processors)
+     */
+    public static final String CONF_IMPORT_THREADS = "threads";
+
+    /**
+     * The number of documents buffered per bulk import worker (default <code>1000</code>)
+     */
+    public static final String CONF_IMPORT_QUEUE_SIZE = "queueSize";
+
+    /**
+     * The in-memory name indexes of the search handler: the name fields per type and the maximum number of
+     * documents of an indexed type (<code>maxDocs</code>, default <code>100000</code>)
+     */
+    public static final String CONF_NAME_INDEX = "nameIndex";
+
     private ChatpalConfig() { }
 }
@@ -18,6 +18,7 @@
 package io.chatpal.solr.ext;
 
 import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
 
 public final class ChatpalParams {
 
@@ -34,12 +35,100 @@ public final class ChatpalParams {
     public static final String PARAM_LANG = "language";
     public static final String PARAM_ACL = "acl";
     public static final String PARAM_TYPE = "type";
+    /**
+     * The tenant (Rocket.Chat workspace) of the request if running in multi-tenant mode
+     */
+    public static final String PARAM_TENANT = "tenant";
+    /**
+     * Marks update requests forwarded to (or targeted at) a single core of the partitioned layout
+     * (see {@link PartitionConfig}), which are not routed to the partitions again
+     */
+    public static final String PARAM_PARTITION = "chatpal.partition";
+    /**
+     * The rooms deleted by the room deletion handler
+     */
+    public static final String PARAM_ROOM_ID = "rid";
+    /**
+     * The number of messages before and after each message hit returned as its <code>context</code>
+     * (<code>message.context</code>, default <code>0</code>)
+     */
+    public static final String PARAM_CONTEXT = "context";
+    /**
+     * Keeps at most this number of message hits per room (<code>message.collapse</code>, default <code>0</code>:
+     * not collapsed). Requires the <code>chatpal_collapse</code> query parser.
+     */
+    public static final String PARAM_COLLAPSE = "collapse";
+    /**
+     * Fields (with doc values, e.g. <code>rid</code> and <code>user</code>) counted over the hits of all
+     * requested types. Requires the <code>chatpal_capture</code> query parser.
+     */
+    public static final String PARAM_FACETS = "facets";
+    /**
+     * The maximum number of values per facet field (default <code>10</code>)
+     */
+    public static final String PARAM_FACETS_LIMIT = "facets.limit";
+    /**
+     * The minimum count of returned facet values (default <code>1</code>)
+     */
+    public static final String PARAM_FACETS_MINCOUNT = "facets.mincount";
+    /**
+     * If <code>true</code> plain terms of the <code>text</code> are expanded with similar frequent terms
+     * (<code>message.fuzzy</code>, default <code>false</code>)
+     */
+    public static final String PARAM_FUZZY = "fuzzy";
+    /**
+     * The maximum number of similar terms added per term (default <code>3</code>, at most <code>10</code>)
+     */
+    public static final String PARAM_FUZZY_MAX_EXPANSIONS = "fuzzy.maxExpansions";
+    /**
+     * The minimum number of documents of a similar term (default <code>2</code>)
+     */
+    public static final String PARAM_FUZZY_MIN_DOC_FREQ = "fuzzy.minDocFreq";
     public static final String PARAM_START = CommonParams.START;
     public static final String PARAM_ROWS = CommonParams.ROWS;
+    /**
+     * Deep paging per type (<code>[type].cursorMark</code>). Use <code>*</code> for the first page and the
+     * <code>nextCursorMark</code> of the type result for following pages.
+     */
+    public static final String PARAM_CURSOR_MARK = CursorMarkParams.CURSOR_MARK_PARAM;
 
     public static final String PARAM_EXCL_MSG = "excl.msg";
     public static final String PARAM_EXCL_ROOM = "excl.room";
 
+    /**
+     * Granularity <code>NOW</code> is rounded to for the recency boost (e.g. <code>/HOUR</code>).
+     * Rounding makes requests within the same slot cacheable. An empty value disables rounding.
+     */
+    public static final String PARAM_RECENCY_ROUND = "recency.round";
+    /**
+     * If <code>true</code> the recency boost is only applied to the top {@link #PARAM_RERANK_DOCS} results
+     */
+    public static final String PARAM_RECENCY_RERANK = "recency.rerank";
+    /**
+     * Enables two-phase retrieval: a cheap single field query collects the candidates,
+     * the top {@link #PARAM_RERANK_DOCS} are re-scored with the full field mix and the recency boost
+     */
+    public static final String PARAM_TWO_PHASE = "twoPhase";
+    /**
+     * The number of top documents that are re-ranked (the candidate window)
+     */
+    public static final String PARAM_RERANK_DOCS = "rerank.docs";
+
+    /**
+     * If <code>true</code> the <code>numFound</code> is always exact. Otherwise sorting by the
+     * index sort (e.g. <code>updated desc</code>) stops collecting documents per segment after
+     * <code>start + rows</code> hits and only reports an approximate <code>numFound</code>.
+     */
+    public static final String PARAM_EXACT_COUNT = "exactCount";
+
+    /**
+     * Time budget (ms) for the whole request. It is split across the types by their
+     * {@link #PARAM_TIME_ALLOWED_WEIGHT}. Types that exceed their share return
+     * <code>partialResults</code>.
+     */
+    public static final String PARAM_TIME_ALLOWED = "chatpal.timeAllowed";
+    public static final String PARAM_TIME_ALLOWED_WEIGHT = "timeAllowed.weight";
+
     public static final String LEGACY_PARAM_SUFFIX = "[]";
 
     public static final String FIELD_MSG_ID = "id";
@@ -47,6 +136,9 @@ public final class ChatpalParams {
     public static final String FIELD_ACL = FIELD_ROOM_ID;
     public static final String FIELD_TYPE = "type";
     public static final String FIELD_SUGGESTION = "suggestion";
+    public static final String FIELD_UPDATED = "updated";
+    public static final String FIELD_TENANT = "tenant";
+    public static final String FIELD_CREATED = "created";
     public static final String LANG_NONE = "none";
 
 
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.core.SolrConfig;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.util.DateMathParser;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Configuration of the time-partitioned layout for {@link DocType#Message messages}: messages are stored in
+ * partition cores named <code>[core]_[partition]</code>, where the partition is the {@link #getField() created}
+ * date formatted with the configured {@link #getFormat() format}. The format needs to sort lexicographically
+ * (e.g. <code>yyyyMM</code> for monthly partitions).
+ * <pre>
+ * &lt;chatpal&gt;
+ *   &lt;partitions&gt;
+ *     &lt;enabled&gt;true&lt;/enabled&gt;
+ *     &lt;field&gt;created&lt;/field&gt;
+ *     &lt;format&gt;yyyyMM&lt;/format&gt;
+ *   &lt;/partitions&gt;
+ * &lt;/chatpal&gt;
+ * </pre>
+ */
+public class PartitionConfig {
+
+    private static final String XML_ROOT = "/config/chatpal/partitions/";
+
+    private static final String DEFAULT_FORMAT = "yyyyMM";
+
+    private boolean enabled = false;
+
+    private String field = ChatpalParams.FIELD_CREATED;
+
+    private String format = DEFAULT_FORMAT;
+
+    private DateTimeFormatter formatter = buildFormatter(DEFAULT_FORMAT);
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * The name of the partition core for the parsed created date
+     * @param core the core the partitions belong to
+     * @param created the value of the {@link #getField() created} field
+     *                (a {@link Date}, epoch millis or an ISO date string)
+     * @return the name of the partition core or <code>null</code> if the parsed value is <code>null</code>
+     * @throws SolrException {@link SolrException.ErrorCode#BAD_REQUEST} if the value is not a valid date
+     */
+    public String getPartitionCore(SolrCore core, Object created) {
+        final String partition = getPartition(created);
+        return partition == null ? null : core.getName() + "_" + partition;
+    }
+
+    /**
+     * The partition for the parsed created date
+     * @see #getPartitionCore(SolrCore, Object)
+     */
+    public String getPartition(Object created) {
+        final Instant instant = toInstant(created);
+        return instant == null ? null : formatter.format(instant);
+    }
+
+    /**
+     * The names of the existing partition cores of the parsed core, newest first
+     */
+    public List<String> getPartitionCores(SolrCore core) {
+        final String prefix = core.getName() + "_";
+        return core.getCoreContainer().getAllCoreNames().stream()
+                .filter(name -> name.startsWith(prefix))
+                .filter(name -> isPartition(name.substring(prefix.length())))
+                .sorted(Comparator.reverseOrder())
+                .collect(Collectors.toList());
+    }
+
+    private boolean isPartition(String partition) {
+        try {
+            formatter.parse(partition);
+            return true;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    private Instant toInstant(Object value) {
+        if (value == null) {
+            return null;
+        } else if (value instanceof Date) {
+            return ((Date) value).toInstant();
+        } else if (value instanceof Number) {
+            return Instant.ofEpochMilli(((Number) value).longValue());
+        } else {
+            final String date = StringUtils.trimToNull(value.toString());
+            if (date == null) {
+                return null;
+            }
+            try {
+                return DateMathParser.parseMath(null, date).toInstant();
+            } catch (SolrException e) {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                        String.format("Invalid date in field '%s': %s", field, date), e);
+            }
+        }
+    }
+
+    private static DateTimeFormatter buildFormatter(String format) {
+        return DateTimeFormatter.ofPattern(format).withZone(ZoneOffset.UTC);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PartitionConfig{enabled=%s, field=%s, format=%s}", enabled, field, format);
+    }
+
+    public static PartitionConfig fromSolrConfig(SolrConfig solrConfig) {
+        final PartitionConfig partitionConfig = new PartitionConfig();
+
+        partitionConfig.enabled = solrConfig.getBool(XML_ROOT + "enabled", false);
+        partitionConfig.field = solrConfig.get(XML_ROOT + "field", ChatpalParams.FIELD_CREATED);
+        partitionConfig.format = solrConfig.get(XML_ROOT + "format", DEFAULT_FORMAT);
+        try {
+            partitionConfig.formatter = buildFormatter(partitionConfig.format);
+        } catch (IllegalArgumentException e) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                    "Invalid partition format: " + partitionConfig.format, e);
+        }
+
+        return partitionConfig;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext;
+
+import io.chatpal.solr.ext.handler.QueryHelper;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.core.SolrConfig;
+import org.apache.solr.request.SolrQueryRequest;
+
+/**
+ * Configuration of the multi-tenant mode: many Rocket.Chat workspaces share a single collection,
+ * separated by the {@link #getField() tenant field}. The tenant of a request is parsed by the
+ * {@link ChatpalParams#PARAM_TENANT} parameter.
+ * <pre>
+ * &lt;chatpal&gt;
+ *   &lt;tenant&gt;
+ *     &lt;enabled&gt;true&lt;/enabled&gt;
+ *     &lt;field&gt;tenant&lt;/field&gt;
+ *   &lt;/tenant&gt;
+ * &lt;/chatpal&gt;
+ * </pre>
+ */
+public class TenantConfig {
+
+    private static final String XML_ROOT = "/config/chatpal/tenant/";
+
+    private boolean enabled = false;
+
+    private String field = ChatpalParams.FIELD_TENANT;
+
+    public TenantConfig() { }
+
+    public TenantConfig(boolean enabled, String field) {
+        this.enabled = enabled;
+        this.field = field;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * The tenant of the parsed request.
+     * @return the tenant or <code>null</code> if multi-tenant mode is not enabled
+     * @throws SolrException {@link SolrException.ErrorCode#BAD_REQUEST} if multi-tenant mode
+     * is enabled, but the request does not define the tenant
+     */
+    public String getTenant(SolrQueryRequest req) {
+        if (!enabled) {
+            return null;
+        }
+        final String tenant = req.getParams().get(ChatpalParams.PARAM_TENANT);
+        if (StringUtils.isBlank(tenant)) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Missing parameter: " + ChatpalParams.PARAM_TENANT);
+        }
+        return tenant;
+    }
+
+    /**
+     * The client (collection) used for reporting: the tenant in multi-tenant mode, the core name otherwise
+     */
+    public String getClient(SolrQueryRequest req) {
+        final String tenant = enabled ? req.getParams().get(ChatpalParams.PARAM_TENANT) : null;
+        return StringUtils.isNotBlank(tenant) ? tenant : req.getCore().getName();
+    }
+
+    /**
+     * The (cacheable) filter restricting results to the parsed tenant
+     */
+    public String buildFilter(String tenant) {
+        return QueryHelper.buildTermQuery(field, tenant);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TenantConfig{enabled=%s, field=%s}", enabled, field);
+    }
+
+    public static TenantConfig fromSolrConfig(SolrConfig solrConfig) {
+        final TenantConfig tenantConfig = new TenantConfig();
+
+        tenantConfig.enabled = solrConfig.getBool(XML_ROOT + "enabled", false);
+        tenantConfig.field = solrConfig.get(XML_ROOT + "field", ChatpalParams.FIELD_TENANT);
+
+        return tenantConfig;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.chatpal.solr.ext.handler;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import io.chatpal.solr.ext.util.SolrConfigUtils;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrConfig;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoBean;
+import org.apache.solr.metrics.SolrMetricManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the concurrent Chatpal requests per core.
+ * <p>
+ * Requests exceeding the limit wait in a bounded queue. Waiting {@link Priority#HIGH high priority}
+ * requests (suggestions, pings) are admitted before {@link Priority#LOW low priority} ones (searches)
+ * and can use slots reserved for them. Requests that can not be queued or wait longer than
+ * <code>maxWait</code> are rejected with <code>503 Service Unavailable</code>.
+ * <p>
+ * Configured in the <code>solrconfig.xml</code>:
+ * <pre>
+ * &lt;chatpal&gt;
+ *   &lt;admission&gt;
+ *     &lt;enabled&gt;true&lt;/enabled&gt;
+ *     &lt;maxConcurrent&gt;8&lt;/maxConcurrent&gt;
+ *     &lt;reserved&gt;2&lt;/reserved&gt;
+ *     &lt;maxQueued&gt;32&lt;/maxQueued&gt;
+ *     &lt;maxWait&gt;1000&lt;/maxWait&gt;
+ *   &lt;/admission&gt;
+ * &lt;/chatpal&gt;
+ * </pre>
+ */
+public class AdmissionControl {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdmissionControl.class);
+
+    private static final String XML_ROOT = "/config/chatpal/admission/";
+
+    private static final Map<SolrCore, AdmissionControl> INSTANCES = new ConcurrentHashMap<>();
+
+    static final AdmissionControl UNLIMITED = new AdmissionControl(Integer.MAX_VALUE, 0, Integer.MAX_VALUE, 0);
+
+    public enum Priority {
+        HIGH, LOW
+    }
+
+    private final int maxConcurrent;
+    private final int reserved;
+    private final int maxQueued;
+    private final long maxWaitNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition admitted = lock.newCondition();
+
+    private final int[] running = new int[Priority.values().length];
+    private final int[] queued = new int[Priority.values().length];
+
+    private Counter rejected = new Counter();
+
+    AdmissionControl(int maxConcurrent, int reserved, int maxQueued, long maxWait) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.reserved = Math.max(0, Math.min(reserved, this.maxConcurrent - 1));
+        this.maxQueued = Math.max(0, maxQueued);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxWait));
+    }
+
+    /**
+     * The admission control shared by all Chatpal handlers of the parsed core.
+     */
+    public static AdmissionControl forCore(SolrCore core) {
+        final SolrConfig solrConfig = core.getSolrConfig();
+        if (!solrConfig.getBool(XML_ROOT + "enabled", false)) {
+            return UNLIMITED;
+        }
+
+        return INSTANCES.computeIfAbsent(core, c -> {
+            final int processors = Runtime.getRuntime().availableProcessors();
+            final AdmissionControl admissionControl = new AdmissionControl(
+                    solrConfig.getInt(XML_ROOT + "maxConcurrent", 2 * processors),
+                    solrConfig.getInt(XML_ROOT + "reserved", 1),
+                    solrConfig.getInt(XML_ROOT + "maxQueued", 4 * processors),
+                    SolrConfigUtils.getLong(solrConfig, XML_ROOT + "maxWait", 1000));
+            LOGGER.info("Admission control for {}: {}", c.getName(), admissionControl);
+
+            admissionControl.registerMetrics(c);
+            c.addCloseHook(new CloseHook() {
+                @Override
+                public void preClose(SolrCore core) {
+                    // nothing to do
+                }
+
+                @Override
+                public void postClose(SolrCore core) {
+                    INSTANCES.remove(core);
+                }
+            });
+            return admissionControl;
+        });
+    }
+
+    private void registerMetrics(SolrCore core) {
+        final SolrMetricManager manager = core.getCoreContainer().getMetricManager();
+        final String registry = core.getCoreMetricManager().getRegistryName();
+        final String category = SolrInfoBean.Category.QUERY.toString();
+
+        rejected = manager.counter(null, registry, "rejected", category, "chatpal", "admission");
+        manager.registerGauge(null, registry, (Gauge<Integer>) () -> getRunning(null),
+                core.getMetricTag(), true, "running", category, "chatpal", "admission");
+        manager.registerGauge(null, registry, (Gauge<Integer>) () -> getQueued(Priority.HIGH),
+                core.getMetricTag(), true, "queued.high", category, "chatpal", "admission");
+        manager.registerGauge(null, registry, (Gauge<Integer>) () -> getQueued(Priority.LOW),
+                core.getMetricTag(), true, "queued.low", category, "chatpal", "admission");
+    }
+
+    /**
+     * Executes the parsed task as soon as it is admitted.
+     * @throws SolrException with {@link SolrException.ErrorCode#SERVICE_UNAVAILABLE} if the request is rejected
+     */
+    public <V> V execute(Priority priority, Callable<V> task) throws Exception {
+        if (this == UNLIMITED) {
+            return task.call();
+        }
+
+        acquire(priority);
+        try {
+            return task.call();
+        } finally {
+            release(priority);
+        }
+    }
+
+    void acquire(Priority priority) {
+        lock.lock();
+        try {
+            if (canRun(priority)) {
+                running[priority.ordinal()]++;
+                return;
+            }
+            if (getQueued(null) >= maxQueued) {
+                throw reject(priority, "queue is full");
+            }
+
+            queued[priority.ordinal()]++;
+            try {
+                long nanos = maxWaitNanos;
+                while (!canRun(priority)) {
+                    if (nanos <= 0L) {
+                        throw reject(priority, "timeout while waiting");
+                    }
+                    nanos = admitted.awaitNanos(nanos);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw reject(priority, "interrupted while waiting");
+            } finally {
+                queued[priority.ordinal()]--;
+            }
+            running[priority.ordinal()]++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release(Priority priority) {
+        lock.lock();
+        try {
+            running[priority.ordinal()]--;
+            admitted.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean canRun(Priority priority) {
+        final int total = getRunning(null);
+        if (priority == Priority.HIGH) {
+            return total < maxConcurrent;
+        } else {
+            //low priority requests wait for queued high priority ones and can not use the reserved slots
+            return total < maxConcurrent - reserved
+                    && queued[Priority.HIGH.ordinal()] == 0;
+        }
+    }
+
+    private SolrException reject(Priority priority, String reason) {
+        rejected.inc();
+        return new SolrException(SolrException.ErrorCode.SERVICE_UNAVAILABLE,
+                String.format("Too many concurrent requests, rejected %s priority request: %s",
+                        priority.name().toLowerCase(), reason));
+    }
+
+    /**
+     * @param priority the priority or <code>null</code> for all
+     */
+    int getRunning(Priority priority) {
+        return priority == null ? running[0] + running[1] : running[priority.ordinal()];
+    }
+
+    /**
+     * @param priority the priority or <code>null</code> for all
+     */
+    int getQueued(Priority priority) {
+        return priority == null ? queued[0] + queued[1] : queued[priority.ordinal()];
+    }
+
+    long getRejected() {
+        return rejected.getCount();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AdmissionControl{maxConcurrent=%d, reserved=%d, maxQueued=%d, maxWait=%dms}",
+                maxConcurrent, reserved, maxQueued, TimeUnit.NANOSECONDS.toMillis(maxWaitNanos));
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.handler;
+
+import io.chatpal.solr.ext.ChatpalConfig;
+import io.chatpal.solr.ext.ChatpalParams;
+import io.chatpal.solr.ext.DocType;
+import io.chatpal.solr.ext.util.BoundedWorkers;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.params.UpdateParams;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.handler.RequestHandlerUtils;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorChain;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+import org.noggit.JSONParser;
+import org.noggit.ObjectBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Streams newline delimited JSON (one document per line) from the request body into the index. Documents are
+ * processed by the update chain (<code>update.chain</code> parameter or the default chain) in parallel workers.
+ * Documents with the same {@link #PARAM_SHARD_FIELD shard field} value (default: <code>id</code>) are processed by
+ * the same worker, so updates of a document keep their order. Workers have bounded queues, so reading the request
+ * blocks if indexing can not keep up.
+ * <p>
+ * The response contains the number of imported documents and the throughput per {@link DocType}.
+ */
+public class BulkImportRequestHandler extends RequestHandlerBase {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkImportRequestHandler.class);
+
+    /**
+     * The field used to assign documents to workers
+     */
+    public static final String PARAM_SHARD_FIELD = "shardField";
+    /**
+     * The maximum number of rejected documents before the import is aborted (default <code>100</code>)
+     */
+    public static final String PARAM_MAX_ERRORS = "maxErrors";
+
+    private static final String TYPE_OTHER = "other";
+    private static final int MAX_ERROR_SAMPLES = 10;
+    private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int queueSize = 1000;
+
+    @Override
+    public void init(NamedList args) {
+        super.init(args);
+
+        if (args != null) {
+            threads = Math.max(1, NumberUtils.toInt(Objects.toString(args.get(ChatpalConfig.CONF_IMPORT_THREADS), null), threads));
+            queueSize = Math.max(1, NumberUtils.toInt(Objects.toString(args.get(ChatpalConfig.CONF_IMPORT_QUEUE_SIZE), null), queueSize));
+        }
+    }
+
+    @Override
+    public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+        final Iterable<ContentStream> streams = req.getContentStreams();
+        if (streams == null) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Missing content: NDJSON expected");
+        }
+
+        final SolrParams params = req.getParams();
+        final UpdateRequestProcessorChain chain = req.getCore().getUpdateProcessingChain(params.get(UpdateParams.UPDATE_CHAIN));
+        final NamedList<Object> stats = importDocuments(req, streams,
+                workerReq -> chain.createProcessor(workerReq, new SolrQueryResponse()));
+
+        try (LocalSolrQueryRequest commitReq = new LocalSolrQueryRequest(req.getCore(), params)) {
+            final UpdateRequestProcessor processor = chain.createProcessor(commitReq, new SolrQueryResponse());
+            try {
+                RequestHandlerUtils.handleCommit(commitReq, processor, params, false);
+                processor.finish();
+            } finally {
+                processor.close();
+            }
+        }
+
+        LOG.info("Bulk import into {} completed: {}", req.getCore().getName(), stats);
+        rsp.add("import", stats);
+    }
+
+    /**
+     * Reads the documents of the streams and processes them in parallel workers
+     * @param processors creates the update processor of a worker for its request
+     * @return the statistics of the import
+     */
+    NamedList<Object> importDocuments(SolrQueryRequest req, Iterable<ContentStream> streams,
+                                      Function<SolrQueryRequest, UpdateRequestProcessor> processors) throws Exception {
+        final SolrParams params = req.getParams();
+        final BulkImport bulkImport = new BulkImport(params.get(PARAM_SHARD_FIELD, ChatpalParams.FIELD_MSG_ID),
+                params.getInt(PARAM_MAX_ERRORS, 100));
+
+        final ExecutorService executor = ExecutorUtil.newMDCAwareFixedThreadPool(threads,
+                new DefaultSolrThreadFactory("chatpalBulkImport"));
+        try {
+            final BoundedWorkers<SolrInputDocument> workers = new BoundedWorkers<>(executor, threads, queueSize,
+                    i -> new Worker(req, processors, bulkImport));
+
+            for (ContentStream stream : streams) {
+                try (Reader reader = stream.getReader()) {
+                    bulkImport.read(new BufferedReader(reader), workers);
+                }
+            }
+            workers.finish();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            executor.shutdownNow();
+        }
+        return bulkImport.getStats();
+    }
+
+    @Override
+    public String getDescription() {
+        return "Chatpal Bulk Import (NDJSON)";
+    }
+
+    /**
+     * Converts a JSON object to a document. Arrays are multi valued fields, objects are atomic updates.
+     */
+    @SuppressWarnings("unchecked")
+    public static SolrInputDocument toDocument(Object json) {
+        if (!(json instanceof Map)) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "JSON object expected");
+        }
+        final SolrInputDocument doc = new SolrInputDocument();
+        for (Map.Entry<String, Object> field : ((Map<String, Object>) json).entrySet()) {
+            if (field.getValue() instanceof Collection) {
+                for (Object value : (Collection<Object>) field.getValue()) {
+                    doc.addField(field.getKey(), value);
+                }
+            } else {
+                doc.setField(field.getKey(), field.getValue());
+            }
+        }
+        return doc;
+    }
+
+    /**
+     * The state of a single import request
+     */
+    private static final class BulkImport {
+
+        private final String shardField;
+        private final int maxErrors;
+
+        private final long start = System.currentTimeMillis();
+        private long lastProgress = start;
+        private long lines = 0;
+
+        private final Map<String, LongAdder> imported = new ConcurrentHashMap<>();
+        private final LongAdder errors = new LongAdder();
+        private final List<String> errorSamples = new ArrayList<>();
+
+        private BulkImport(String shardField, int maxErrors) {
+            this.shardField = shardField;
+            this.maxErrors = maxErrors;
+        }
+
+        private void read(BufferedReader reader, BoundedWorkers<SolrInputDocument> workers) throws IOException, ExecutionException, InterruptedException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                if (StringUtils.isBlank(line)) continue;
+
+                final SolrInputDocument doc;
+                try {
+                    doc = toDocument(ObjectBuilder.fromJSON(line));
+                } catch (IOException | JSONParser.ParseException | SolrException e) {
+                    failed("line " + lines, e);
+                    continue;
+                }
+                final Object shardValue = doc.getFieldValue(shardField);
+                workers.add(shardValue, doc);
+
+                final long now = System.currentTimeMillis();
+                if (now - lastProgress >= PROGRESS_INTERVAL) {
+                    lastProgress = now;
+                    LOG.info("Bulk import: {} lines, {}", lines, getStats());
+                }
+            }
+        }
+
+        private void imported(SolrInputDocument doc) {
+            final Object type = doc.getFieldValue(ChatpalParams.FIELD_TYPE);
+            String key = TYPE_OTHER;
+            for (DocType docType : DocType.values()) {
+                if (docType.getIndexVal().equals(type)) {
+                    key = docType.getKey();
+                }
+            }
+            imported.computeIfAbsent(key, k -> new LongAdder()).increment();
+        }
+
+        private void failed(String source, Exception e) {
+            errors.increment();
+            synchronized (errorSamples) {
+                if (errorSamples.size() < MAX_ERROR_SAMPLES) {
+                    errorSamples.add(source + ": " + e.getMessage());
+                }
+            }
+            if (maxErrors >= 0 && errors.sum() > maxErrors) {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                        String.format("Bulk import aborted after %d errors, first errors: %s", errors.sum(), errorSamples), e);
+            }
+        }
+
+        private NamedList<Object> getStats() {
+            final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            final NamedList<Object> stats = new SimpleOrderedMap<>();
+            long total = 0;
+            for (Map.Entry<String, LongAdder> type : new TreeMap<>(imported).entrySet()) {
+                final long count = type.getValue().sum();
+                final NamedList<Object> typeStats = new SimpleOrderedMap<>();
+                typeStats.add("count", count);
+                typeStats.add("docsPerSecond", count * 1000 / elapsed);
+                stats.add(type.getKey(), typeStats);
+                total += count;
+            }
+            stats.add("total", total);
+            stats.add("docsPerSecond", total * 1000 / elapsed);
+            stats.add("errors", errors.sum());
+            synchronized (errorSamples) {
+                if (!errorSamples.isEmpty()) {
+                    stats.add("errorSamples", new ArrayList<>(errorSamples));
+                }
+            }
+            stats.add("elapsed", elapsed);
+            return stats;
+        }
+    }
+
+    /**
+     * Processes the documents of its queue with its own update processor instance
+     */
+    private static final class Worker implements BoundedWorkers.Worker<SolrInputDocument> {
+
+        private final SolrQueryRequest req;
+        private final Function<SolrQueryRequest, UpdateRequestProcessor> processors;
+        private final BulkImport bulkImport;
+
+        private Worker(SolrQueryRequest req, Function<SolrQueryRequest, UpdateRequestProcessor> processors, BulkImport bulkImport) {
+            this.req = req;
+            this.processors = processors;
+            this.bulkImport = bulkImport;
+        }
+
+        @Override
+        public void run(BoundedWorkers.Items<SolrInputDocument> items) throws IOException, InterruptedException {
+            try (LocalSolrQueryRequest workerReq = new LocalSolrQueryRequest(req.getCore(), req.getParams())) {
+                final UpdateRequestProcessor processor = processors.apply(workerReq);
+                try {
+                    SolrInputDocument doc;
+                    while ((doc = items.next()) != null) {
+                        final AddUpdateCommand cmd = new AddUpdateCommand(workerReq);
+                        cmd.solrDoc = doc;
+                        cmd.overwrite = req.getParams().getBool(UpdateParams.OVERWRITE, true);
+                        cmd.commitWithin = req.getParams().getInt(UpdateParams.COMMIT_WITHIN, -1);
+                        final Object id = doc.getFieldValue(bulkImport.shardField);
+                        try {
+                            processor.processAdd(cmd);
+                            bulkImport.imported(doc);
+                        } catch (SolrException e) {
+                            if (e.code() != SolrException.ErrorCode.BAD_REQUEST.code) {
+                                throw e;
+                            }
+                            bulkImport.failed(bulkImport.shardField + "=" + id, e);
+                        }
+                    }
+                    processor.finish();
+                } finally {
+                    processor.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.chatpal.solr.ext.handler;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.util.NamedList;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The per type results of a search request as stored in the Chatpal response cache.
+ * The (estimated) size allows to bound the cache by memory (<code>maxRamMB</code>).
+ */
+final class CachedResults implements Accountable {
+
+    private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(CachedResults.class);
+    private static final long DEFAULT_OBJECT_BYTES = 16;
+
+    private final NamedList<Object> results;
+    private final long ramBytesUsed;
+
+    CachedResults(NamedList<Object> results) {
+        this.results = results;
+        this.ramBytesUsed = BASE_RAM_BYTES_USED + estimate(results);
+    }
+
+    NamedList<Object> getResults() {
+        return results;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return ramBytesUsed;
+    }
+
+    static long estimate(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof CharSequence) {
+            return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + RamUsageEstimator.NUM_BYTES_ARRAY_HEADER
+                    + (long) Character.BYTES * ((CharSequence) value).length();
+        } else if (value instanceof NamedList) {
+            final NamedList<?> namedList = (NamedList<?>) value;
+            long size = RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + RamUsageEstimator.NUM_BYTES_ARRAY_HEADER;
+            for (int i = 0; i < namedList.size(); i++) {
+                size += 2L * RamUsageEstimator.NUM_BYTES_OBJECT_REF
+                        + estimate(namedList.getName(i)) + estimate(namedList.getVal(i));
+            }
+            return size;
+        } else if (value instanceof SolrDocument) {
+            //the field value map of a document does not support entrySet()
+            long size = RamUsageEstimator.NUM_BYTES_OBJECT_HEADER;
+            for (Map.Entry<String, Object> field : (SolrDocument) value) {
+                size += DEFAULT_OBJECT_BYTES + estimate(field.getKey()) + estimate(field.getValue());
+            }
+            return size;
+        } else if (value instanceof Map) {
+            long size = RamUsageEstimator.NUM_BYTES_OBJECT_HEADER;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += DEFAULT_OBJECT_BYTES + estimate(entry.getKey()) + estimate(entry.getValue());
+            }
+            return size;
+        } else if (value instanceof Collection) {
+            long size = RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + RamUsageEstimator.NUM_BYTES_ARRAY_HEADER;
+            for (Object element : (Collection<?>) value) {
+                size += RamUsageEstimator.NUM_BYTES_OBJECT_REF + estimate(element);
+            }
+            return size;
+        } else if (value instanceof Object[]) {
+            long size = RamUsageEstimator.NUM_BYTES_ARRAY_HEADER;
+            for (Object element : (Object[]) value) {
+                size += RamUsageEstimator.NUM_BYTES_OBJECT_REF + estimate(element);
+            }
+            return size;
+        } else {
+            return DEFAULT_OBJECT_BYTES;
+        }
+    }
+}
@@ -17,11 +17,14 @@
 package io.chatpal.solr.ext.handler;
 
 import io.chatpal.solr.ext.ChatpalApiConfig;
+import io.chatpal.solr.ext.ChatpalParams;
 import io.chatpal.solr.ext.DocType;
+import io.chatpal.solr.ext.TenantConfig;
 import io.chatpal.solr.ext.logging.JsonLogMessage;
 import io.chatpal.solr.ext.logging.ReportingLogger;
 import java.util.HashMap;
 import java.util.Map;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.core.SolrCore;
@@ -50,16 +53,29 @@ public class ChatpalPingRequestHandler extends PingRequestHandler {
 
     private ChatpalApiConfig apiConfig = new ChatpalApiConfig();
 
+    private TenantConfig tenantConfig = new TenantConfig();
+
+    private AdmissionControl admissionControl = AdmissionControl.UNLIMITED;
+
     @Override
     public void inform(SolrCore core) {
         super.inform(core);
 
         apiConfig = ChatpalApiConfig.fromSolrConfig(core.getSolrConfig());
         LOG.info("Loaded api-config: {}", apiConfig);
+        tenantConfig = TenantConfig.fromSolrConfig(core.getSolrConfig());
+        admissionControl = AdmissionControl.forCore(core);
     }
 
     @Override
     protected void handlePing(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+        admissionControl.execute(AdmissionControl.Priority.HIGH, () -> {
+            doPing(req, rsp);
+            return null;
+        });
+    }
+
+    private void doPing(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
         super.handlePing(req, rsp);
 
         if (req.getParams().getBool(PARAM_SCHEMA_VERSION, true)) {
@@ -81,7 +97,7 @@ public class ChatpalPingRequestHandler extends PingRequestHandler {
 
             rsp.add(PARAM_STATS, stats);
 
-            reporting.logPing(JsonLogMessage.indexLog().setClient(req.getCore().getName()).setStats(stats));
+            reporting.logPing(JsonLogMessage.indexLog().setClient(tenantConfig.getClient(req)).setStats(stats));
         }
 
         if (req.getParams().getBool(PARAM_CONFIG, true)) {
@@ -95,6 +111,11 @@ public class ChatpalPingRequestHandler extends PingRequestHandler {
         query.set(CommonParams.Q, "*:*");
         query.set(CommonParams.ROWS, 0);
         query.set(CommonParams.FQ, "type:" + type.getIndexVal());
+        //NOTE: pings without a tenant report the stats of the whole collection
+        final String tenant = req.getParams().get(ChatpalParams.PARAM_TENANT);
+        if (tenantConfig.isEnabled() && StringUtils.isNotBlank(tenant)) {
+            query.add(CommonParams.FQ, tenantConfig.buildFilter(tenant));
+        }
 
         query.set("json.facet", String.format("{%s:'min(%s)', %s:'max(%s)'}", VALUE_OLDEST, FIELD_AGE, VALUE_NEWEST, FIELD_AGE));
 
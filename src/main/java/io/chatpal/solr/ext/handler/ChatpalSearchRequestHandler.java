@@ -18,22 +18,44 @@
 package io.chatpal.solr.ext.handler;
 
 import io.chatpal.solr.ext.ChatpalApiConfig;
+import io.chatpal.solr.ext.ChatpalConfig;
 import io.chatpal.solr.ext.ChatpalParams;
 import io.chatpal.solr.ext.DocType;
+import io.chatpal.solr.ext.PartitionConfig;
+import io.chatpal.solr.ext.TenantConfig;
 import io.chatpal.solr.ext.logging.JsonLogMessage;
 import io.chatpal.solr.ext.logging.ReportingLogger;
+import io.chatpal.solr.ext.search.collapse.RoomCollapseQParserPlugin;
+import io.chatpal.solr.ext.search.collapse.RoomGroups;
+import io.chatpal.solr.ext.search.facet.DocSetCapture;
+import io.chatpal.solr.ext.search.facet.DocSetCaptureQParserPlugin;
+import io.chatpal.solr.ext.search.function.RecencyValueSourceParser;
+import io.chatpal.solr.ext.util.CloudUtils;
+import io.chatpal.solr.ext.util.SingleFlight;
 import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.BooleanUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
 import org.apache.solr.common.params.DisMaxParams;
+import org.apache.solr.common.params.FacetParams;
 import org.apache.solr.common.params.HighlightParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.AbstractSolrEventListener;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.component.SearchHandler;
+import org.apache.solr.metrics.SolrMetricManager;
 import org.apache.solr.request.LocalSolrQueryRequest;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.DocsStreamer;
@@ -41,31 +63,134 @@ import org.apache.solr.response.ResultContext;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocIterator;
 import org.apache.solr.search.DocList;
+import org.apache.solr.search.LuceneQParserPlugin;
+import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.QueryParsing;
+import org.apache.solr.search.ReRankQParserPlugin;
+import org.apache.solr.search.ReturnFields;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SolrReturnFields;
+import org.apache.solr.search.SortSpec;
+import org.apache.solr.search.SortSpecParsing;
+import org.apache.solr.search.TermQParserPlugin;
+import org.apache.solr.util.DateMathParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 public class ChatpalSearchRequestHandler extends SearchHandler {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ChatpalSearchRequestHandler.class);
 
+    private static final String DEFAULT_RECENCY_ROUND = "/HOUR";
+    private static final String PARAM_RECENCY_FUNCTION = "chatpal.recency";
+    private static final String PARAM_RERANK_QUERY = "chatpal.rerank";
+    private static final String PARAM_RERANK_Q = "chatpal.rerank.q";
+    private static final String PARAM_RERANK_QF = "chatpal.rerank.qf";
+    private static final String PARAM_RERANK_BF = "chatpal.rerank.bf";
+    private static final String PARAM_COLLAPSE_SORT = "chatpal.collapse.sort";
+    private static final String PARAM_UNCACHED_Q = "chatpal.uncached.q";
+    private static final String PARAM_FUZZY_Q = "chatpal.fuzzy.q";
+    private static final String PARAM_FUZZY_TERM = "chatpal.fuzzy.term.";
+    private static final String PARAM_FUZZY_NEGATED = "chatpal.fuzzy.negated";
+    private static final String PARAM_CURSOR_NOW = "chatpal.cursor.now";
+    private static final String FUZZY_BOOST = "^0.5";
+
+    private static final String CONTEXT_TIME_BUDGET = TimeBudget.class.getName();
+
+    /**
+     * separates the pinned <code>NOW</code> (ms) from the Solr cursor mark in the returned cursor marks
+     */
+    private static final char CURSOR_NOW_SEPARATOR = ':';
+
+    private static final String RESULT_FACETS = "facets";
+
+    /**
+     * Parameters controlling the distributed execution that are forwarded to the sub-queries
+     */
+    private static final String[] SHARD_PARAMS = {
+            CommonParams.DISTRIB,
+            ShardParams.SHARDS,
+            ShardParams.SHARDS_QT,
+            ShardParams.SHARDS_TOLERANT,
+            ShardParams.SHARDS_INFO,
+            ShardParams.SHARDS_PREFERENCE,
+            ShardParams._ROUTE_
+    };
+
     private final ReportingLogger reporting = ReportingLogger.getInstance();
 
     private final Map<DocType, SolrParams> defaultParams = new EnumMap<>(DocType.class);
 
     private ChatpalApiConfig apiConfig = new ChatpalApiConfig();
 
+    private TenantConfig tenantConfig = new TenantConfig();
+
+    private PartitionConfig partitionConfig = new PartitionConfig();
+
+    private AdmissionControl admissionControl = AdmissionControl.UNLIMITED;
+
+    private boolean recencyParserAvailable = false;
+
+    private boolean collapseParserAvailable = false;
+
+    private boolean captureParserAvailable = false;
+
+    private boolean coalesceRequests = true;
+
+    private String responseCacheName = null;
+
+    private NameIndexCache nameIndexes = NameIndexCache.fromArgs(null);
+
+    private final SingleFlight<RequestKey, NamedList<Object>> singleFlight = new SingleFlight<>();
+
+    private final FuzzyTermExpander fuzzyExpander = new FuzzyTermExpander();
+
     @Override
     public void inform(SolrCore core) {
         super.inform(core);
 
         apiConfig = ChatpalApiConfig.fromSolrConfig(core.getSolrConfig());
+        tenantConfig = TenantConfig.fromSolrConfig(core.getSolrConfig());
+        partitionConfig = PartitionConfig.fromSolrConfig(core.getSolrConfig());
+        admissionControl = AdmissionControl.forCore(core);
+
+        recencyParserAvailable = core.getValueSourceParser(RecencyValueSourceParser.NAME) != null;
+        collapseParserAvailable = core.getQueryPlugin(RoomCollapseQParserPlugin.NAME) != null;
+        captureParserAvailable = core.getQueryPlugin(DocSetCaptureQParserPlugin.NAME) != null;
+        if (!recencyParserAvailable) {
+            LOGGER.info("No '{}' value source parser registered, using the generic recip(..) function for the recency boost",
+                    RecencyValueSourceParser.NAME);
+        }
+
+        if (nameIndexes.isEnabled()) {
+            LOGGER.info("Name index for {}: {}", core.getName(), nameIndexes);
+            final AbstractSolrEventListener warming = new AbstractSolrEventListener(core) {
+                @Override
+                public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+                    nameIndexes.warm(newSearcher, getTenantField());
+                }
+            };
+            core.registerFirstSearcherListener(warming);
+            core.registerNewSearcherListener(warming);
+        }
     }
 
     @Override
@@ -76,59 +201,189 @@ public class ChatpalSearchRequestHandler extends SearchHandler {
             for (DocType docType : DocType.values()) {
                 defaultParams.put(docType, getSolrParamsFromNamedList(args, docType.getKey()));
             }
+            responseCacheName = Objects.toString(args.get(ChatpalConfig.CONF_RESPONSE_CACHE), null);
+            coalesceRequests = BooleanUtils.toBooleanDefaultIfNull(
+                    BooleanUtils.toBooleanObject(Objects.toString(args.get(ChatpalConfig.CONF_COALESCE), null)), true);
+            nameIndexes = NameIndexCache.fromArgs((NamedList<?>) args.get(ChatpalConfig.CONF_NAME_INDEX));
         }
     }
 
+    @Override
+    public void initializeMetrics(SolrMetricManager manager, String registryName, String tag, String scope) {
+        super.initializeMetrics(manager, registryName, tag, scope);
+        CoalescingMetrics.register(this, singleFlight, manager, registryName, tag, scope);
+    }
+
     @Override
     public void handleRequestBody(SolrQueryRequest originalReq, SolrQueryResponse rsp) throws Exception {
         long start = System.currentTimeMillis();
+        //fail early if the tenant is missing
+        tenantConfig.getTenant(originalReq);
+
         final JsonLogMessage.QueryLog log = JsonLogMessage.queryLog()
-                .setClient(originalReq.getCore().getName())
+                .setClient(tenantConfig.getClient(originalReq))
                 .setSearchTerm(originalReq.getParams().get(ChatpalParams.PARAM_TEXT));
 
-        final Loggable msgLog = queryFor(DocType.Message, originalReq, rsp,
-                this::setLanguageConfig,
-                this::setTimeRegressionBoost,
-                this::appendACLFilter,
-                this::appendExclusionFilter);
-        if (msgLog != null) {
-            log.setResultSize(DocType.Message.getKey(), msgLog.numFound);
+        final NamedList<Object> results;
+        final SolrCache<RequestKey, CachedResults> cache = getResponseCache(originalReq);
+        if (cache != null || coalesceRequests) {
+            results = getResults(cache, RequestKey.of(originalReq), () -> admittedSearch(originalReq));
+        } else {
+            results = admittedSearch(originalReq);
         }
 
-        if (apiConfig.getFileSearch().isEnabled()) {
-            final Loggable fileLog = queryFor(DocType.File, originalReq, rsp,
-                    //file search does not use a language
-                    (query, req, rsponse, docType) -> query.set(ChatpalParams.PARAM_LANG, ChatpalParams.LANG_NONE),
-                    this::setTimeRegressionBoost,
-                    this::appendACLFilter,
-                    this::appendExclusionFilter);
-            if (fileLog != null) {
-                log.setResultSize(DocType.File.getKey(), fileLog.numFound);
+        for (Map.Entry<String, Object> result : results) {
+            rsp.add(result.getKey(), result.getValue());
+            if (RESULT_FACETS.equals(result.getKey())) continue;
+            log.setResultSize(result.getKey(), ((Number) ((NamedList) result.getValue()).get("numFound")).longValue());
+        }
+
+        log.setQueryTime(System.currentTimeMillis() - start);
+
+        reporting.logQuery(log);
+    }
+
+    @SuppressWarnings("unchecked")
+    private SolrCache<RequestKey, CachedResults> getResponseCache(SolrQueryRequest req) {
+        //the cache key is bound to the local index version, so results merged from other shards can not be cached
+        //the same applies to messages stored in partition cores
+        return responseCacheName == null || isDistributed(req) || partitionConfig.isEnabled() ? null : req.getSearcher().getCache(responseCacheName);
+    }
+
+    /**
+     * Sub-queries are distributed if <code>shards</code> are parsed or, unless disabled by <code>distrib=false</code>,
+     * if the collection of the core has more than one shard. Every replica of a single shard collection holds all
+     * documents, so its sub-queries are executed on the local core (see {@link #buildTypeQuery}).
+     */
+    private boolean isDistributed(SolrQueryRequest req) {
+        if (StringUtils.contains(req.getParams().get(ShardParams.SHARDS), '/')) {
+            return true;
+        }
+        return req.getParams().getBool(CommonParams.DISTRIB, true) && req.getCore() != null
+                && CloudUtils.getActiveSliceCount(req.getCore()) > 1;
+    }
+
+    /**
+     * Forwards the {@link #SHARD_PARAMS} of the Chatpal request to the sub-query. Shard requests MUST NOT
+     * be sent to the Chatpal handler itself, as the sub-queries are plain Solr queries.
+     */
+    static void copyShardParams(SolrParams params, String handlerPath, ModifiableSolrParams query) {
+        for (String param : SHARD_PARAMS) {
+            final String[] values = params.getParams(param);
+            if (values != null) {
+                query.set(param, values);
             }
         }
+        final String shardsQt = query.get(ShardParams.SHARDS_QT);
+        if (shardsQt != null && shardsQt.equals(handlerPath)) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("%s must not refer to the Chatpal handler %s", ShardParams.SHARDS_QT, handlerPath));
+        }
+    }
 
-        final Loggable roomLog = queryFor(DocType.Room, originalReq, rsp,
-                this::appendACLFilter,
-                this::appendExclusionFilter);
-        if (roomLog != null) {
-            log.setResultSize(DocType.Room.getKey(), roomLog.numFound);
+    /**
+     * Returns the cached results of the request or executes the search (coalesced with concurrent identical
+     * requests) and caches its results
+     * @param cache the response cache or <code>null</code>
+     */
+    NamedList<Object> getResults(SolrCache<RequestKey, CachedResults> cache, RequestKey key,
+                                 Callable<NamedList<Object>> search) throws Exception {
+        final CachedResults cached = cache != null ? cache.get(key) : null;
+        if (cached != null) {
+            return cached.getResults();
+        } else if (coalesceRequests) {
+            return singleFlight.execute(key, () -> cacheResults(cache, key, search.call()));
+        } else {
+            return cacheResults(cache, key, search.call());
         }
+    }
+
+    private NamedList<Object> cacheResults(SolrCache<RequestKey, CachedResults> cache, RequestKey key, NamedList<Object> results) {
+        if (cache == null) return results;
 
-        final Loggable userLog = queryFor(DocType.User, originalReq, rsp);
-        if (userLog != null) {
-            log.setResultSize(DocType.User.getKey(), userLog.numFound);
+        //do not cache results that were cut short by the time budget
+        for (Map.Entry<String, Object> result : results) {
+            if (((NamedList) result.getValue()).get(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY) != null) {
+                return results;
+            }
         }
+        cache.put(key, new CachedResults(results));
+        return results;
+    }
 
-        log.setQueryTime(System.currentTimeMillis() - start);
+    private NamedList<Object> admittedSearch(SolrQueryRequest req) throws Exception {
+        return admissionControl.execute(AdmissionControl.Priority.LOW, () -> search(req));
+    }
 
-        reporting.logQuery(log);
+    /**
+     * Executes the queries for all types.
+     * @return the results by {@link DocType#getKey() type}. As results may be shared between
+     * coalesced requests they MUST NOT be modified.
+     */
+    private NamedList<Object> search(SolrQueryRequest originalReq) throws Exception {
+        final SolrQueryResponse rsp = new SolrQueryResponse();
+
+        final long timeAllowed = originalReq.getParams().getLong(ChatpalParams.PARAM_TIME_ALLOWED, -1L);
+        if (timeAllowed > 0) {
+            originalReq.getContext().put(CONTEXT_TIME_BUDGET, createTimeBudget(originalReq, timeAllowed));
+        }
+        final String[] facetFields = QueryHelper.getMultiValueParam(ChatpalParams.PARAM_FACETS, originalReq.getParams());
+        final DocSetCapture capture = createDocSetCapture(originalReq, facetFields);
+
+        queryFor(DocType.Message, originalReq, rsp);
+
+        if (apiConfig.getFileSearch().isEnabled()) {
+            queryFor(DocType.File, originalReq, rsp);
+        }
+
+        queryFor(DocType.Room, originalReq, rsp);
+
+        queryFor(DocType.User, originalReq, rsp);
+
+        if (capture != null) {
+            rsp.add(RESULT_FACETS, buildFacets(originalReq, capture, facetFields));
+        }
+
+        return rsp.getValues();
     }
 
-    private Loggable queryFor(DocType docType, SolrQueryRequest req, SolrQueryResponse rsp, QueryAdapter... queryAdapter) throws Exception {
-        if (!typeFilterAccepts(req, docType)) return null;
+    private TimeBudget createTimeBudget(SolrQueryRequest req, long timeAllowed) {
+        final Map<DocType, Float> weights = new EnumMap<>(DocType.class);
+        for (DocType docType : DocType.values()) {
+            if (typeFilterAccepts(req, docType) && (docType != DocType.File || apiConfig.getFileSearch().isEnabled())) {
+                weights.put(docType, NumberUtils.toFloat(getTypeParam(req, docType, ChatpalParams.PARAM_TIME_ALLOWED_WEIGHT), 1f));
+            }
+        }
+        return new TimeBudget(timeAllowed, weights);
+    }
+
+    private void queryFor(DocType docType, SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+        if (!typeFilterAccepts(req, docType)) return;
+
+        final String reqLanguage = LanguageFields.of(req.getParams()).getKey();
+        final SolrParams defaultedQuery = buildTypeQuery(req, rsp, docType);
+
+        LOGGER.debug("Chatpal query: {}", defaultedQuery);
+
+        final MessageContext messageContext = docType == DocType.Message ? createMessageContext(req) : null;
+        final NamedList<Object> nameIndexResult = searchNameIndex(req, docType, defaultedQuery);
+        final NamedList<Object> result;
+        if (nameIndexResult != null) {
+            result = nameIndexResult;
+        } else if (docType == DocType.Message && isPartitioned(req, docType)) {
+            result = executePartitioned(req, defaultedQuery, reqLanguage, messageContext);
+        } else {
+            result = execute(req, req.getCore(), defaultedQuery, reqLanguage, messageContext);
+        }
+        rsp.add(docType.getKey(), result);
+    }
 
+    /**
+     * Builds the query of a type: the Chatpal params of the request, the {@link #getQueryAdapters(DocType) type
+     * specific adaptions} and the (type) defaults of the handler.
+     */
+    SolrParams buildTypeQuery(SolrQueryRequest req, SolrQueryResponse rsp, DocType docType) {
         final ModifiableSolrParams query = new ModifiableSolrParams();
-        final String reqLanguage = req.getParams().get(ChatpalParams.PARAM_LANG, ChatpalParams.LANG_NONE);
 
         //NOTES:
         // * the 'query' parameter overrides the 'text' parameter
@@ -141,105 +396,797 @@ public class ChatpalSearchRequestHandler extends SearchHandler {
             query.set(CommonParams.Q, QueryHelper.cleanTextQuery(req.getParams().get(ChatpalParams.PARAM_TEXT)));
         }
 
-        // should sort be type aware?
-        query.set(CommonParams.SORT, req.getParams().get(CommonParams.SORT));
+        //NOTE: the tenant filter is added first as it is shared by all types and requests of a tenant
+        final String tenant = tenantConfig.getTenant(req);
+        if (tenant != null) {
+            query.add(CommonParams.FQ, tenantConfig.buildFilter(tenant));
+        }
+        query.add(CommonParams.FQ, buildTypeFilter(docType));
+        if (req.getContext().containsKey(DocSetCapture.CONTEXT_KEY)) {
+            query.add(CommonParams.FQ, "{!" + DocSetCaptureQParserPlugin.NAME + "}");
+        }
 
-        query.set(CommonParams.FQ, buildTypeFilter(docType));
+        //per type top-N, facets and highlighting of the merged docs are handled by the distributed search
+        copyShardParams(req.getParams(), (String) req.getContext().get(CommonParams.PATH), query);
+        if (!isDistributed(req)) {
+            //the SearchHandler would distribute every query in SolrCloud mode, even for a single shard
+            query.set(CommonParams.DISTRIB, false);
+        }
 
-        query.set(CommonParams.START, req.getParams()
-                .get(buildTypeParam(docType, ChatpalParams.PARAM_START),
-                        req.getParams().get(ChatpalParams.PARAM_START)));
+        // should sort be type aware?
+        final String cursorMark = getCursorMark(req, docType);
+        if (cursorMark != null) {
+            //cursors require a sort on the unique key as tie breaker and do not support start
+            query.set(CursorMarkParams.CURSOR_MARK_PARAM, parseSolrCursorMark(cursorMark));
+            //the recency boost must not change between the pages, so the first page pins NOW for the whole cursor
+            final Long cursorNow = parseCursorNow(cursorMark);
+            query.set(PARAM_CURSOR_NOW, String.valueOf(cursorNow != null ? cursorNow
+                    : DateMathParser.parseMath(null, buildNow(req, docType)).getTime()));
+            query.set(CommonParams.SORT, buildCursorSort(req.getParams().get(CommonParams.SORT),
+                    req.getSchema().getUniqueKeyField()));
+            query.set(CommonParams.START, 0);
+        } else {
+            query.set(CommonParams.SORT, req.getParams().get(CommonParams.SORT));
+            if (canTerminateEarly(req)) {
+                query.set(CommonParams.SEGMENT_TERMINATE_EARLY, true);
+            }
+            query.set(CommonParams.START, req.getParams()
+                    .get(buildTypeParam(docType, ChatpalParams.PARAM_START),
+                            req.getParams().get(ChatpalParams.PARAM_START)));
+        }
         query.set(CommonParams.ROWS, req.getParams()
                 .get(buildTypeParam(docType, ChatpalParams.PARAM_ROWS),
                         req.getParams().get(ChatpalParams.PARAM_ROWS)));
 
         // Type specific adaptions
-        for (QueryAdapter adapter : queryAdapter) {
+        for (QueryAdapter adapter : getQueryAdapters(docType)) {
             adapter.adaptQuery(query, req, rsp, docType);
         }
 
+        //the capture and the room groups are filled by post filters while collecting, so the hits of the query
+        //must neither be served from nor added to the queryResultCache
+        if (hasCollectingFilter(query)) {
+            wrapQuery(query, docType, PARAM_UNCACHED_Q, CommonParams.CACHE + "=false");
+        }
+
+        final TimeBudget timeBudget = (TimeBudget) req.getContext().get(CONTEXT_TIME_BUDGET);
+        if (timeBudget != null) {
+            query.set(CommonParams.TIME_ALLOWED, String.valueOf(timeBudget.allocate(docType)));
+        }
+
         //we need the unique field to process inlineHighlighting
         ModifiableSolrParams appendedParams = new ModifiableSolrParams();
         if(req.getSchema().getUniqueKeyField() != null) {
             appendedParams.add(CommonParams.FL, req.getSchema().getUniqueKeyField().getName());
         }
 
-        // param hierarchy
-        final SolrParams defaultedQuery =
-                SolrParams.wrapAppended(
-                        SolrParams.wrapDefaults(
-                        // 1. req.getParams()
-                        query,
-                        SolrParams.wrapDefaults(
-                                // 2. [type].defaults
-                                defaultParams.get(docType),
-                                // 3. defaults
-                                defaults
-                        )
-                ),
-                appendedParams
-        );
+        return SolrParams.wrapAppended(withDefaults(query, docType), appendedParams);
+    }
 
-        LOGGER.debug("Chatpal query: {}", defaultedQuery);
+    private QueryAdapter[] getQueryAdapters(DocType docType) {
+        switch (docType) {
+            case Message:
+                return new QueryAdapter[] {
+                        this::setLanguageConfig,
+                        this::appendFuzzyExpansion,
+                        this::setTimeRegressionBoost,
+                        this::setTwoPhaseRetrieval,
+                        this::appendACLFilter,
+                        this::appendExclusionFilter,
+                        this::appendRoomCollapse};
+            case File:
+                return new QueryAdapter[] {
+                        //file search does not use a language
+                        (query, req, rsponse, type) -> query.set(ChatpalParams.PARAM_LANG, ChatpalParams.LANG_NONE),
+                        this::setTimeRegressionBoost,
+                        this::appendACLFilter,
+                        this::appendExclusionFilter};
+            case Room:
+                return new QueryAdapter[] {
+                        this::appendACLFilter,
+                        this::appendExclusionFilter};
+            default:
+                return new QueryAdapter[0];
+        }
+    }
 
-        try (LocalSolrQueryRequest subRequest = new LocalSolrQueryRequest(req.getCore(), defaultedQuery)) {
+    /**
+     * @return if a filter query of the {@link DocSetCaptureQParserPlugin capture} or the
+     * {@link RoomCollapseQParserPlugin room collapse} parser is set
+     */
+    private static boolean hasCollectingFilter(SolrParams query) {
+        final String[] filters = query.getParams(CommonParams.FQ);
+        if (filters != null) {
+            for (String filter : filters) {
+                if (filter.startsWith("{!" + DocSetCaptureQParserPlugin.NAME + '}')
+                        || filter.startsWith("{!" + RoomCollapseQParserPlugin.NAME + ' ')) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param messageContext looks up the context of the hits or <code>null</code>
+     */
+    private NamedList<Object> execute(SolrQueryRequest req, SolrCore core, SolrParams params, String reqLanguage,
+                                      MessageContext messageContext) throws Exception {
+        try (LocalSolrQueryRequest subRequest = createSubRequest(req, core, params)) {
             final SolrQueryResponse response = new SolrQueryResponse();
+            //components report partial results in the header
+            response.addResponseHeader(new SimpleOrderedMap<>());
             super.handleRequestBody(subRequest, response);
-            final String lang = subRequest.getParams().get(ChatpalParams.PARAM_LANG, reqLanguage);
-            rsp.add(docType.getKey(), materializeResult(req.getSchema(), response, lang));
+            final LanguageFields languages = getLanguageFields(subRequest.getParams(), reqLanguage);
+            final NamedList<Object> result = materializeResult(subRequest, response, languages);
+            final RoomGroups roomGroups = (RoomGroups) subRequest.getContext().get(RoomCollapseQParserPlugin.CONTEXT_GROUPS);
+            if (roomGroups != null && response.getResponse() instanceof ResultContext) {
+                result.add("groups", buildGroupCounts(roomGroups, ((ResultContext) response.getResponse()).getDocList()));
+            }
+            if (messageContext != null && response.getResponse() instanceof ResultContext) {
+                @SuppressWarnings("unchecked")
+                final List<SolrDocument> docs = (List<SolrDocument>) result.get("docs");
+                messageContext.attach(subRequest.getSearcher(), subRequest.getSchema(),
+                        ((ResultContext) response.getResponse()).getDocList(), docs, new SolrReturnFields(subRequest));
+            }
+            final Object nextCursorMark = response.getValues().get(CursorMarkParams.CURSOR_MARK_NEXT);
+            if (nextCursorMark != null) {
+                final Long cursorNow = params.getLong(PARAM_CURSOR_NOW);
+                result.add(CursorMarkParams.CURSOR_MARK_NEXT, cursorNow != null
+                        ? buildCursorMark(cursorNow, nextCursorMark.toString()) : nextCursorMark);
+            }
+            if (Boolean.TRUE.equals(response.getResponseHeader().get(SolrQueryResponse.RESPONSE_HEADER_SEGMENT_TERMINATED_EARLY_KEY))) {
+                result.add("numFoundExact", false);
+            }
+            if (Boolean.TRUE.equals(response.getResponseHeader().get(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY))) {
+                result.add(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY, true);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Answers plain text searches for types with a {@link NameIndex name index} without a Lucene query.
+     * Explicit queries, other sorts than by score, cursors and distributed requests use the Lucene search.
+     * @return the result or <code>null</code> if the name index can not be used
+     */
+    private NamedList<Object> searchNameIndex(SolrQueryRequest req, DocType docType, SolrParams params) throws IOException {
+        if (!nameIndexes.isEnabled(docType) || isParamSet(req, ChatpalParams.PARAM_QUERY) || !isScoreSort(req)
+                || getCursorMark(req, docType) != null || isDistributed(req)) {
+            return null;
+        }
+        final List<String> tokens = NameIndex.parseQuery(req.getParams().get(ChatpalParams.PARAM_TEXT));
+        if (tokens == null) {
+            return null;
+        }
+        final SolrIndexSearcher searcher = req.getSearcher();
+        final NameIndex nameIndex = nameIndexes.get(searcher, docType, getTenantField());
+        if (nameIndex == null) {
+            return null;
+        }
+
+        //same filters as appendACLFilter and appendExclusionFilter
+        final Set<String> acl = docType == DocType.Room ?
+                NameIndex.toSet(QueryHelper.getMultiValueParam(ChatpalParams.PARAM_ACL, req.getParams())) : null;
+        final Set<String> excluded = docType == DocType.Room ?
+                NameIndex.toSet(QueryHelper.getMultiValueParam(ChatpalParams.PARAM_EXCL_ROOM, req.getParams())) : Collections.emptySet();
+        final int start = params.getInt(CommonParams.START, 0);
+        final NameIndex.Hits hits = nameIndex.search(tokens, tenantConfig.getTenant(req), acl, excluded,
+                start, params.getInt(CommonParams.ROWS, 10));
+
+        final DocSetCapture capture = (DocSetCapture) req.getContext().get(DocSetCapture.CONTEXT_KEY);
+        if (capture != null) {
+            for (int doc : hits.getAll()) {
+                capture.add(doc);
+            }
+        }
+
+        final SolrReturnFields returnFields = new SolrReturnFields(params.getParams(CommonParams.FL), req);
+        final List<SolrDocument> docs = new ArrayList<>(hits.getPage().length);
+        for (int doc : hits.getPage()) {
+            final SolrDocument solrDoc = searcher.getDocFetcher().solrDoc(doc, returnFields);
+            for (String fName : new HashSet<>(solrDoc.getFieldNames())) {
+                if (!returnFields.wantsField(fName)) {
+                    solrDoc.removeFields(fName);
+                }
+            }
+            //do not return the internal uid field (same as materializeResult)
+            solrDoc.removeFields(req.getSchema().getUniqueKeyField().getName());
+            docs.add(solrDoc);
+        }
+
+        final NamedList<Object> result = new NamedList<>();
+        result.add("docs", docs);
+        result.add("numFound", hits.getNumFound());
+        result.add("start", start);
+        return result;
+    }
+
+    private String getTenantField() {
+        return tenantConfig.isEnabled() ? tenantConfig.getField() : null;
+    }
+
+    /**
+     * @param params the params of the sub request, e.g. with the <code>none</code> language of files
+     * @param reqLanguage the languages of the request, used if the sub request does not set a language
+     * @return all (comma separated or repeated) languages of the sub request
+     */
+    static LanguageFields getLanguageFields(SolrParams params, String reqLanguage) {
+        return params.get(ChatpalParams.PARAM_LANG) == null ? LanguageFields.of(reqLanguage) : LanguageFields.of(params);
+    }
+
+    /**
+     * Sub-requests on the core of the request use the searcher of the request, so the doc ids of all
+     * types refer to the same index snapshot (see {@link DocSetCapture}).
+     */
+    private LocalSolrQueryRequest createSubRequest(SolrQueryRequest req, SolrCore core, SolrParams params) {
+        if (core != req.getCore()) {
+            return new LocalSolrQueryRequest(core, params);
+        }
+        final LocalSolrQueryRequest subRequest = new LocalSolrQueryRequest(core, params) {
+            @Override
+            public SolrIndexSearcher getSearcher() {
+                return req.getSearcher();
+            }
+        };
+        final Object capture = req.getContext().get(DocSetCapture.CONTEXT_KEY);
+        if (capture != null) {
+            subRequest.getContext().put(DocSetCapture.CONTEXT_KEY, capture);
+        }
+        return subRequest;
+    }
+
+    /**
+     * Facets are counted over the hits of all types in the local index, so they are not supported for
+     * distributed requests and with time partitions.
+     * @return the capture of the hits or <code>null</code> if no facets are requested
+     */
+    private DocSetCapture createDocSetCapture(SolrQueryRequest req, String[] facetFields) {
+        if (ArrayUtils.isEmpty(facetFields) || isDistributed(req) || partitionConfig.isEnabled()) {
+            return null;
+        }
+        if (!captureParserAvailable) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("%s requires the '%s' query parser", ChatpalParams.PARAM_FACETS, DocSetCaptureQParserPlugin.NAME));
+        }
+        final DocSetCapture capture = new DocSetCapture(req.getSearcher());
+        req.getContext().put(DocSetCapture.CONTEXT_KEY, capture);
+        return capture;
+    }
+
+    private NamedList<Object> buildFacets(SolrQueryRequest req, DocSetCapture capture, String[] facetFields) throws IOException {
+        final int limit = req.getParams().getInt(ChatpalParams.PARAM_FACETS_LIMIT, 10);
+        final int minCount = req.getParams().getInt(ChatpalParams.PARAM_FACETS_MINCOUNT, 1);
+        final NamedList<Object> facets = new SimpleOrderedMap<>();
+        for (String fieldName : facetFields) {
+            if (StringUtils.isBlank(fieldName) || facets.get(fieldName.trim()) != null) continue;
+            final SchemaField field = req.getSchema().getFieldOrNull(fieldName.trim());
+            if (field == null) {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Unknown facet field " + fieldName);
+            }
+            facets.add(field.getName(), capture.facet(field, limit, minCount));
+        }
+        return facets;
+    }
 
-            return new Loggable(((ResultContext) response.getResponse()).getDocList().matches());
+    /**
+     * The context of message hits is looked up in the local index, so it is not supported for distributed requests
+     * (the hits are not local). With time partitions the context is limited to the partition of the hit.
+     * @return the message context or <code>null</code> if not requested
+     */
+    private MessageContext createMessageContext(SolrQueryRequest req) {
+        final int size = NumberUtils.toInt(getTypeParam(req, DocType.Message, ChatpalParams.PARAM_CONTEXT), 0);
+        if (size <= 0 || isDistributed(req)) {
+            return null;
         }
+        return new MessageContext(size, MessageContext.buildFilter(req, tenantConfig.getField(), tenantConfig.getTenant(req)));
+    }
+
+    /**
+     * Messages are partitioned (see {@link PartitionConfig}) unless the request is distributed or uses a cursor
+     */
+    private boolean isPartitioned(SolrQueryRequest req, DocType docType) {
+        return partitionConfig.isEnabled() && !isDistributed(req) && getCursorMark(req, docType) == null;
+    }
+
+    /**
+     * Queries the current core and then the partition cores and merges the hits by the requested sort:
+     * <ul>
+     *     <li>sorted by the {@link PartitionConfig#getField() partition field}, the partitions are queried in sort
+     *     order and querying stops as soon as the remaining partitions can not contain any of the first
+     *     <code>start + rows</code> hits</li>
+     *     <li>sorted by score or other fields, all partitions are queried. Hits of older partitions can score
+     *     higher, so querying can not stop after the first <code>start + rows</code> hits. Scores use the term
+     *     statistics of their core and are only roughly comparable across partitions</li>
+     * </ul>
+     * If querying stops early, <code>numFound</code> is a lower bound (<code>numFoundExact=false</code>).
+     * Sorting by functions and faceting is not supported.
+     */
+    private NamedList<Object> executePartitioned(SolrQueryRequest req, SolrParams params, String reqLanguage,
+                                                 MessageContext messageContext) throws Exception {
+        if (params.getBool(FacetParams.FACET, false)) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Faceting is not supported with time partitions");
+        }
+        final int start = params.getInt(CommonParams.START, 0);
+        final int rows = params.getInt(CommonParams.ROWS, 10);
+        final SortSpec sortSpec = SortSpecParsing.parseSortSpec(req.getParams().get(CommonParams.SORT), req);
+        final List<String> sortFields = getMergeFields(sortSpec);
+        final Comparator<SolrDocument> order = buildMergeOrder(sortSpec);
+        final boolean scoreSort = SolrReturnFields.SCORE.equals(sortFields.get(0));
+        final boolean partitionSort = partitionConfig.getField().equals(sortFields.get(0));
+        final boolean descending = sortSpec.getSort() == null || scoreSort != sortSpec.getSort().getSort()[0].getReverse();
+
+        //the merge needs the values of the sort fields
+        final ModifiableSolrParams partitionQuery = new ModifiableSolrParams(params);
+        partitionQuery.set(CommonParams.START, 0);
+        partitionQuery.set(CommonParams.ROWS, start + rows);
+        final ReturnFields returnFields = new SolrReturnFields(params.getParams(CommonParams.FL), req);
+        final Set<String> addedFields = new HashSet<>();
+        for (String field : sortFields) {
+            if (SolrReturnFields.SCORE.equals(field) ? !returnFields.wantsScore() : !returnFields.wantsField(field)) {
+                partitionQuery.add(CommonParams.FL, field);
+                addedFields.add(field);
+            }
+        }
+
+        final List<SolrDocument> docs = new ArrayList<>();
+        long numFound = 0;
+        Float maxScore = null;
+        boolean partialResults = false;
+        boolean exact = true;
+
+        final List<String> partitions = new ArrayList<>(partitionConfig.getPartitionCores(req.getCore()));
+        if (partitionSort && !descending) {
+            Collections.reverse(partitions);
+        }
+        final List<String> cores = new ArrayList<>();
+        cores.add(null); //the current core
+        cores.addAll(partitions);
+        for (String coreName : cores) {
+            if (docs.size() >= start + rows && coreName != null
+                    && partitionSort && isBeyondPartition(req.getCore(), docs.get(start + rows - 1), coreName, descending)) {
+                exact = false;
+                break;
+            }
+            final NamedList<Object> partition;
+            if (coreName == null) {
+                partition = execute(req, req.getCore(), partitionQuery, reqLanguage, messageContext);
+            } else {
+                try (SolrCore core = req.getCore().getCoreContainer().getCore(coreName)) {
+                    if (core == null) continue; //unloaded in the meantime
+                    partition = execute(req, core, partitionQuery, reqLanguage, messageContext);
+                }
+            }
+            @SuppressWarnings("unchecked")
+            final List<SolrDocument> partitionDocs = (List<SolrDocument>) partition.get("docs");
+            docs.addAll(partitionDocs);
+            docs.sort(order);
+            numFound += ((Number) partition.get("numFound")).longValue();
+            final Float partitionMaxScore = (Float) partition.get("maxScore");
+            if (partitionMaxScore != null && (maxScore == null || partitionMaxScore > maxScore)) {
+                maxScore = partitionMaxScore;
+            }
+            partialResults |= partition.get(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY) != null;
+            exact &= partition.get("numFoundExact") == null;
+        }
+
+        final List<SolrDocument> page = new ArrayList<>(docs.subList(Math.min(start, docs.size()),
+                Math.min(start + rows, docs.size())));
+        for (String field : addedFields) {
+            page.forEach(doc -> doc.removeFields(field));
+        }
+
+        final NamedList<Object> result = new NamedList<>();
+        result.add("docs", page);
+        result.add("numFound", numFound);
+        result.add("start", start);
+        if (maxScore != null) {
+            result.add("maxScore", maxScore);
+        }
+        if (!exact) {
+            result.add("numFoundExact", false);
+        }
+        if (partialResults) {
+            result.add(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY, true);
+        }
+        return result;
+    }
+
+    /**
+     * @return <code>true</code> if all documents of the partition core sort after the parsed <code>doc</code>
+     */
+    private boolean isBeyondPartition(SolrCore core, SolrDocument doc, String partitionCore, boolean descending) {
+        final String docPartition = partitionConfig.getPartition(doc.getFirstValue(partitionConfig.getField()));
+        if (docPartition == null) {
+            return false;
+        }
+        final int cmp = docPartition.compareTo(partitionCore.substring(core.getName().length() + 1));
+        return descending ? cmp > 0 : cmp < 0;
+    }
+
+    /**
+     * @return the fields to merge the hits of several cores by: {@link SolrReturnFields#SCORE score} or the
+     * names of the sorted schema fields
+     * @throws SolrException {@link SolrException.ErrorCode#BAD_REQUEST} if the sort contains functions
+     */
+    static List<String> getMergeFields(SortSpec sortSpec) {
+        if (sortSpec.getSort() == null) {
+            return Collections.singletonList(SolrReturnFields.SCORE);
+        }
+        final SortField[] sortFields = sortSpec.getSort().getSort();
+        final List<String> fields = new ArrayList<>(sortFields.length);
+        for (int i = 0; i < sortFields.length; i++) {
+            final SchemaField schemaField = sortSpec.getSchemaFields().get(i);
+            if (sortFields[i].getType() == SortField.Type.SCORE) {
+                fields.add(SolrReturnFields.SCORE);
+            } else if (schemaField != null) {
+                fields.add(schemaField.getName());
+            } else {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                        "Only sorting by score or fields is supported with time partitions");
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Orders documents by the returned values of the {@link #getMergeFields(SortSpec) merge fields}, missing
+     * values last
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Comparator<SolrDocument> buildMergeOrder(SortSpec sortSpec) {
+        final List<String> fields = getMergeFields(sortSpec);
+        Comparator<SolrDocument> order = null;
+        for (int i = 0; i < fields.size(); i++) {
+            final String field = fields.get(i);
+            final boolean score = SolrReturnFields.SCORE.equals(field);
+            //score is sorted descending by default, reverse flips the default direction
+            final boolean descending = sortSpec.getSort() == null || score != sortSpec.getSort().getSort()[i].getReverse();
+            final Comparator<Comparable> values = descending ? Comparator.reverseOrder() : Comparator.naturalOrder();
+            final Comparator<SolrDocument> fieldOrder = Comparator.comparing(
+                    (SolrDocument doc) -> (Comparable) doc.getFirstValue(field), Comparator.nullsLast(values));
+            order = order == null ? fieldOrder : order.thenComparing(fieldOrder);
+        }
+        return order;
     }
 
     @SuppressWarnings({"unused", "squid:S1172"})
     private void setLanguageConfig(ModifiableSolrParams query, SolrQueryRequest req, SolrQueryResponse rsp, DocType docType) {
-        final String language = req.getParams().get(ChatpalParams.PARAM_LANG, ChatpalParams.LANG_NONE);
+        final LanguageFields languages = LanguageFields.of(req.getParams());
         if (isParamSet(req, ChatpalParams.PARAM_QUERY)) {
-            query.set(CommonParams.DF, "text_"+language); //use the text_{lang} field as default field
+            query.set(CommonParams.DF, languages.getDefaultField()); //use the text_{lang} field as default field
         } else {
-            query.set(DisMaxParams.QF, "context^2 text_${lang}^1 decompose_text_${lang}^.5"
-                    .replace("${lang}", language));
-            query.add(HighlightParams.FIELDS, "text_${lang}"
-                    .replace("${lang}", language));
+            //multiple languages are searched by a single query over the fields of all languages
+            query.set(DisMaxParams.QF, languages.getQueryFields());
+            for (String field : languages.getTextFields()) {
+                query.add(HighlightParams.FIELDS, field);
+            }
         }
     }
 
+    /**
+     * Expands the plain terms of the <code>text</code> with similar frequent terms of the text fields of the
+     * requested languages (see {@link FuzzyTermExpander}). The dictionaries of the local index are used, also for
+     * distributed requests and time partitions.
+     */
+    @SuppressWarnings({"unused", "squid:S1172"})
+    private void appendFuzzyExpansion(ModifiableSolrParams query, SolrQueryRequest req, SolrQueryResponse rsp, DocType docType) {
+        if (isParamSet(req, ChatpalParams.PARAM_QUERY)
+                || !BooleanUtils.toBoolean(getTypeParam(req, docType, ChatpalParams.PARAM_FUZZY))) return;
+
+        final int maxExpansions = Math.min(FuzzyTermExpander.MAX_EXPANSIONS, NumberUtils.toInt(
+                getTypeParam(req, docType, ChatpalParams.PARAM_FUZZY_MAX_EXPANSIONS), FuzzyTermExpander.DEFAULT_MAX_EXPANSIONS));
+        final int minDocFreq = Math.max(1, NumberUtils.toInt(
+                getTypeParam(req, docType, ChatpalParams.PARAM_FUZZY_MIN_DOC_FREQ), FuzzyTermExpander.DEFAULT_MIN_DOC_FREQ));
+        final String text = query.get(CommonParams.Q);
+        final List<FuzzyTermExpander.Expansion> expansions;
+        try {
+            expansions = fuzzyExpander.expandTerms(req.getSearcher(), text,
+                    LanguageFields.of(req.getParams()).getTextFields(), minDocFreq, maxExpansions);
+        } catch (IOException e) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Unable to expand the fuzzy terms", e);
+        }
+        if (!expansions.isEmpty()) {
+            appendExpansions(query, docType, expansions);
+        }
+    }
+
+    /**
+     * Searches the expansions as (boosted) term queries of their fields next to the text query, instead of adding
+     * them to the text: they are analyzed terms and must not be analyzed again for every query field.
+     */
+    void appendExpansions(ModifiableSolrParams query, DocType docType, List<FuzzyTermExpander.Expansion> expansions) {
+        final String text = query.get(CommonParams.Q);
+        //+(text OR expansions) -negated with explicit operators (independent of q.op), the text keeps its parser
+        //and params (qf, mm, bf, ...), the expansions are term queries of the field they were found in
+        final String parser = withDefaults(query, docType).get(QueryParsing.DEFTYPE, QParserPlugin.DEFAULT_QTYPE);
+        wrapQuery(query, docType, PARAM_FUZZY_Q, null);
+        final StringBuilder q = new StringBuilder("+(").append(buildSubQuery(query.get(CommonParams.Q)));
+        for (int i = 0; i < expansions.size(); i++) {
+            final FuzzyTermExpander.Expansion expansion = expansions.get(i);
+            query.set(PARAM_FUZZY_TERM + i, expansion.getTerm());
+            q.append(" OR ").append(buildSubQuery(String.format("{!%s %s=%s v=$%s%d}", TermQParserPlugin.NAME,
+                    QueryParsing.F, expansion.getField(), PARAM_FUZZY_TERM, i))).append(FUZZY_BOOST);
+        }
+        q.append(')');
+        final String negated = FuzzyTermExpander.getNegatedText(text);
+        if (negated != null) {
+            query.set(PARAM_FUZZY_NEGATED, negated);
+            q.append(" -").append(buildSubQuery(String.format("{!%s %s=OR %s=0 v=$%s}", parser,
+                    QueryParsing.OP, DisMaxParams.MM, PARAM_FUZZY_NEGATED)));
+        }
+        query.set(CommonParams.Q, q.toString());
+    }
+
     @SuppressWarnings({"unused", "squid:S1172"})
     private void setTimeRegressionBoost(ModifiableSolrParams query, SolrQueryRequest req, SolrQueryResponse rsp, DocType docType) {
-        if (!isParamSet(req, ChatpalParams.PARAM_QUERY)) {
-            query.set(DisMaxParams.BF, "recip(ms(NOW,updated),3.6e-11,3,1)");
+        if (isParamSet(req, ChatpalParams.PARAM_QUERY)) return;
+
+        final String recency = buildRecencyFunction(query, req, docType);
+        if (!BooleanUtils.toBoolean(getTypeParam(req, docType, ChatpalParams.PARAM_RECENCY_RERANK))
+                || getCursorMark(req, docType) != null) {
+            //NOTE: re-ranking can not be used with cursors
+            query.set(DisMaxParams.BF, recency);
+        } else if (isScoreSort(req)) {
+            //the boost does not change the order if sorted by something else as the score
+            query.set(PARAM_RECENCY_FUNCTION, "{!func}" + recency);
+            query.set(CommonParams.RQ, buildReRankQuery(PARAM_RECENCY_FUNCTION, getReRankDocs(req, docType)));
+        }
+    }
+
+    /**
+     * Splits the query in two phases: the first phase only queries the <code>text_${lang}</code> field,
+     * the top {@link ChatpalParams#PARAM_RERANK_DOCS} candidates are re-scored with the full field mix
+     * and the recency boost set by {@link #setLanguageConfig} and {@link #setTimeRegressionBoost}.
+     */
+    @SuppressWarnings({"unused", "squid:S1172"})
+    private void setTwoPhaseRetrieval(ModifiableSolrParams query, SolrQueryRequest req, SolrQueryResponse rsp, DocType docType) {
+        if (isParamSet(req, ChatpalParams.PARAM_QUERY) || !isScoreSort(req) || getCursorMark(req, docType) != null) return;
+        if (!BooleanUtils.toBoolean(getTypeParam(req, docType, ChatpalParams.PARAM_TWO_PHASE))) return;
+
+        // 2nd phase: full field mix and recency
+        final StringBuilder reRankQuery = new StringBuilder("{!edismax");
+        query.set(PARAM_RERANK_QF, query.get(DisMaxParams.QF));
+        reRankQuery.append(' ').append(DisMaxParams.QF).append("=$").append(PARAM_RERANK_QF);
+        final String recency = query.get(DisMaxParams.BF, buildRecencyFunction(query, req, docType));
+        query.set(PARAM_RERANK_BF, recency);
+        reRankQuery.append(' ').append(DisMaxParams.BF).append("=$").append(PARAM_RERANK_BF);
+        //the main query may be wrapped (see appendFuzzyExpansion and appendRoomCollapse), expansions are not re-scored
+        query.set(PARAM_RERANK_Q, query.get(PARAM_FUZZY_Q, query.get(CommonParams.Q)));
+        reRankQuery.append(" v=$").append(PARAM_RERANK_Q).append('}');
+        query.set(PARAM_RERANK_QUERY, reRankQuery.toString());
+
+        // 1st phase: cheap single field recall
+        query.set(DisMaxParams.QF, LanguageFields.of(req.getParams()).getRecallFields());
+        query.remove(DisMaxParams.BF);
+        query.remove(PARAM_RECENCY_FUNCTION);
+        query.set(CommonParams.RQ, buildReRankQuery(PARAM_RERANK_QUERY, getReRankDocs(req, docType)));
+    }
+
+    /**
+     * Builds the recency decay <code>recip(ms(NOW,updated),3.6e-11,3,1)</code> with <code>NOW</code> rounded
+     * to the configured {@link ChatpalParams#PARAM_RECENCY_ROUND} or pinned by the cursor. Uses the specialised
+     * {@link RecencyValueSourceParser} if it is registered with the core.
+     */
+    private String buildRecencyFunction(SolrParams query, SolrQueryRequest req, DocType docType) {
+        final Long cursorNow = query.getLong(PARAM_CURSOR_NOW);
+        final String now = cursorNow != null ? Instant.ofEpochMilli(cursorNow).toString() : buildNow(req, docType);
+        if (recencyParserAvailable) {
+            return String.format("%s(%s,%s,3.6e-11,3,1)", RecencyValueSourceParser.NAME, ChatpalParams.FIELD_UPDATED, now);
+        } else {
+            return String.format("recip(ms(%s,%s),3.6e-11,3,1)", now, ChatpalParams.FIELD_UPDATED);
+        }
+    }
+
+    private String buildNow(SolrQueryRequest req, DocType docType) {
+        return CommonParams.NOW + StringUtils.trimToEmpty(
+                StringUtils.defaultString(getTypeParam(req, docType, ChatpalParams.PARAM_RECENCY_ROUND), DEFAULT_RECENCY_ROUND));
+    }
+
+    private String buildReRankQuery(String reRankQueryParam, int reRankDocs) {
+        return String.format("{!%s %s=$%s %s=%d %s=1}", ReRankQParserPlugin.NAME,
+                ReRankQParserPlugin.RERANK_QUERY, reRankQueryParam,
+                ReRankQParserPlugin.RERANK_DOCS, reRankDocs,
+                ReRankQParserPlugin.RERANK_WEIGHT);
+    }
+
+    private int getReRankDocs(SolrQueryRequest req, DocType docType) {
+        return NumberUtils.toInt(getTypeParam(req, docType, ChatpalParams.PARAM_RERANK_DOCS),
+                ReRankQParserPlugin.RERANK_DOCS_DEFAULT);
+    }
+
+    private boolean isScoreSort(SolrQueryRequest req) {
+        final String sort = req.getParams().get(CommonParams.SORT);
+        return StringUtils.isBlank(sort) || StringUtils.startsWith(sort.trim(), "score ");
+    }
+
+    private String getCursorMark(SolrQueryRequest req, DocType docType) {
+        return req.getParams().get(buildTypeParam(docType, ChatpalParams.PARAM_CURSOR_MARK),
+                req.getParams().get(ChatpalParams.PARAM_CURSOR_MARK));
+    }
+
+    /**
+     * @return the <code>NOW</code> (ms) pinned by a cursor mark of this handler or <code>null</code> for the
+     * first page
+     */
+    static Long parseCursorNow(String cursorMark) {
+        final String now = StringUtils.substringBefore(cursorMark, String.valueOf(CURSOR_NOW_SEPARATOR));
+        return NumberUtils.isDigits(now) && now.length() < cursorMark.length() ? Long.valueOf(now) : null;
+    }
+
+    /**
+     * @return the Solr cursor mark of a cursor mark of this handler
+     */
+    static String parseSolrCursorMark(String cursorMark) {
+        return parseCursorNow(cursorMark) != null
+                ? StringUtils.substringAfter(cursorMark, String.valueOf(CURSOR_NOW_SEPARATOR)) : cursorMark;
+    }
+
+    /**
+     * @return the cursor mark returned to the client: the pinned <code>NOW</code> and the Solr cursor mark
+     */
+    static String buildCursorMark(long now, String solrCursorMark) {
+        return String.valueOf(now) + CURSOR_NOW_SEPARATOR + solrCursorMark;
+    }
+
+    /**
+     * Appends the unique key as tie breaker to the parsed sort (as required by cursors)
+     */
+    static String buildCursorSort(String sort, SchemaField uniqueKey) {
+        final String baseSort = StringUtils.defaultIfBlank(sort, "score desc").trim();
+        for (String clause : baseSort.split(",")) {
+            if (uniqueKey.getName().equals(StringUtils.substringBefore(clause.trim(), " "))) {
+                return baseSort;
+            }
+        }
+        return baseSort + "," + uniqueKey.getName() + " asc";
+    }
+
+    /**
+     * Checks if the requested sort is a prefix of the index sort configured with the merge policy
+     * (e.g. <code>updated desc</code>). In this case collecting can stop after <code>start + rows</code>
+     * documents per segment, unless {@link ChatpalParams#PARAM_EXACT_COUNT exact counts} or
+     * {@link ChatpalParams#PARAM_FACETS facets} are requested.
+     */
+    private boolean canTerminateEarly(SolrQueryRequest req) {
+        final String sortParam = req.getParams().get(CommonParams.SORT);
+        if (isScoreSort(req) || req.getParams().getBool(ChatpalParams.PARAM_EXACT_COUNT, false)
+                || req.getContext().containsKey(DocSetCapture.CONTEXT_KEY)) {
+            return false;
+        }
+        try {
+            final Sort mergeSort = req.getCore().getSolrCoreState().getMergePolicySort();
+            if (mergeSort == null) {
+                return false;
+            }
+            final Sort sort = SortSpecParsing.parseSortSpec(sortParam, req).getSort();
+            return sort != null && isSortPrefix(sort, mergeSort);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read the merge policy sort of {}", req.getCore().getName(), e);
+            return false;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the sort fields of <code>sort</code> are a prefix of the <code>indexSort</code>
+     */
+    static boolean isSortPrefix(Sort sort, Sort indexSort) {
+        final SortField[] fields = sort.getSort();
+        final SortField[] indexFields = indexSort.getSort();
+        if (fields.length > indexFields.length) {
+            return false;
+        }
+        for (int i = 0; i < fields.length; i++) {
+            if (!fields[i].equals(indexFields[i])) {
+                return false;
+            }
         }
+        return true;
     }
 
     private boolean isParamSet(SolrQueryRequest req, String param) {
         return req.getParams().get(param) != null;
     }
 
+    /**
+     * The param hierarchy of a type query: the query built from the request, the <code>[type]</code> defaults
+     * of the handler configuration and finally the handler defaults
+     */
+    private SolrParams withDefaults(SolrParams query, DocType docType) {
+        return SolrParams.wrapDefaults(query, SolrParams.wrapDefaults(defaultParams.get(docType), defaults));
+    }
+
+    /**
+     * @return the lucene syntax of a nested query: <code>_query_:"{!term f=text_en v=$param}"</code>
+     */
+    private static String buildSubQuery(String localParamsQuery) {
+        return "_query_:\"" + localParamsQuery + '"';
+    }
+
+    /**
+     * Wraps the main query in local params, e.g. <code>{!edismax cache=false v=$param}</code>. Local params in
+     * <code>q</code> are only parsed by the lucene parser, so the parser of the query moves into the local params.
+     * @param queryParam the param the main query is moved to
+     * @param localParams the additional local params or <code>null</code>
+     */
+    void wrapQuery(ModifiableSolrParams query, DocType docType, String queryParam, String localParams) {
+        final String parser = withDefaults(query, docType).get(QueryParsing.DEFTYPE, QParserPlugin.DEFAULT_QTYPE);
+        final String q = query.get(CommonParams.Q);
+        final StringBuilder wrapped = new StringBuilder("{!").append(parser);
+        if (localParams != null) {
+            wrapped.append(' ').append(localParams);
+        }
+        if (q != null) {
+            query.set(queryParam, q);
+            wrapped.append(" v=$").append(queryParam);
+        }
+        query.set(QueryParsing.DEFTYPE, LuceneQParserPlugin.NAME);
+        query.set(CommonParams.Q, wrapped.append('}').toString());
+    }
+
+    /**
+     * Reads a (type specific) parameter. Lookup order: <code>[type].[param]</code> request parameter,
+     * <code>[param]</code> request parameter, <code>[type]</code> defaults of the handler
+     * configuration and finally the handler defaults.
+     */
+    private String getTypeParam(SolrQueryRequest req, DocType docType, String param) {
+        final SolrParams params = req.getParams();
+        final SolrParams typeDefaults = defaultParams.get(docType);
+        final String value = params.get(buildTypeParam(docType, param), req.getOriginalParams().get(param));
+        if (value != null) {
+            return value;
+        } else if (typeDefaults != null && typeDefaults.get(param) != null) {
+            return typeDefaults.get(param);
+        } else {
+            return params.get(param);
+        }
+    }
+
     private boolean typeFilterAccepts(SolrQueryRequest req, DocType type) {
         final String[] types = QueryHelper.getMultiValueParam(ChatpalParams.PARAM_TYPE, req.getParams());
         return ArrayUtils.isEmpty(types) || ArrayUtils.contains(types, type.getKey());
     }
 
 
-    private NamedList materializeResult(IndexSchema schema, SolrQueryResponse rsp, String language) {
+    private NamedList<Object> materializeResult(SolrQueryRequest req, SolrQueryResponse rsp, LanguageFields languages) {
+        final IndexSchema schema = req.getSchema();
         final NamedList<Object> result = new NamedList<>();
 
-        final ResultContext rspContext  = (ResultContext) rsp.getResponse();
-        final DocList docList = rspContext.getDocList();
+        final ReturnFields returnFields;
+        final Iterator<SolrDocument> documentIterator;
+        final Object numFound;
+        final Object start;
+        final Float maxScore;
+        if (rsp.getResponse() instanceof ResultContext) {
+            final ResultContext rspContext  = (ResultContext) rsp.getResponse();
+            final DocList docList = rspContext.getDocList();
+            returnFields = rspContext.getReturnFields();
+            documentIterator = new DocsStreamer(rspContext);
+            numFound = docList.matches();
+            start = docList.offset();
+            maxScore = docList.hasScores() ? docList.maxScore() : null;
+        } else {
+            //NOTE: if a query times out, the response may be an (empty) SolrDocumentList
+            final SolrDocumentList docList = rsp.getResponse() instanceof SolrDocumentList ?
+                    (SolrDocumentList) rsp.getResponse() : new SolrDocumentList();
+            returnFields = new SolrReturnFields(req);
+            documentIterator = docList.iterator();
+            numFound = docList.getNumFound();
+            start = docList.getStart();
+            maxScore = docList.getMaxScore();
+        }
 
-        final ArrayList<SolrDocument> docs = new ArrayList<>(docList.size());
+        final ArrayList<SolrDocument> docs = new ArrayList<>();
         @SuppressWarnings("unchecked")
         final NamedList<NamedList<Object>> highlighting = (NamedList) rsp.getValues().get("highlighting");
 
-        final DocsStreamer documentIterator =  new DocsStreamer(rspContext);
         while (documentIterator.hasNext()) {
             final SolrDocument doc = documentIterator.next();
 
-            inlineHighlighting(doc, highlighting, rspContext, schema, language);
+            inlineHighlighting(doc, highlighting, returnFields, schema, languages);
 
             for (String fName : new HashSet<>(doc.getFieldNames())) {
-                if (!rspContext.getReturnFields().wantsField(fName)) {
+                if (!returnFields.wantsField(fName)) {
                     doc.removeFields(fName);
                 }
             }
@@ -250,10 +1197,10 @@ public class ChatpalSearchRequestHandler extends SearchHandler {
             docs.add(doc);
         }
         result.add("docs", docs);
-        result.add("numFound", docList.matches());
-        result.add("start", docList.offset());
-        if (docList.hasScores()) {
-            result.add("maxScore", docList.maxScore());
+        result.add("numFound", numFound);
+        result.add("start", start);
+        if (maxScore != null) {
+            result.add("maxScore", maxScore);
         }
 
         final NamedList<?> facets = (NamedList) rsp.getValues().get("facet_counts");
@@ -264,8 +1211,8 @@ public class ChatpalSearchRequestHandler extends SearchHandler {
         return result;
     }
 
-    private void inlineHighlighting(SolrDocument doc, NamedList<NamedList<Object>> highlighting, ResultContext rspContext,
-                                    IndexSchema schema, String language) {
+    private void inlineHighlighting(SolrDocument doc, NamedList<NamedList<Object>> highlighting, ReturnFields returnFields,
+                                    IndexSchema schema, LanguageFields languages) {
         if (highlighting == null) return;
 
         final String id = String.valueOf(getFirstValue(doc, schema.getUniqueKeyField()));
@@ -276,9 +1223,9 @@ public class ChatpalSearchRequestHandler extends SearchHandler {
             final String fieldName = highlight.getKey();
             final Object fieldValue = highlight.getValue();
 
-            final String targetField = StringUtils.removeEnd(fieldName, "_" + language);
+            final String targetField = languages.getTargetField(fieldName);
 
-            if (!rspContext.getReturnFields().wantsField(targetField)) continue;
+            if (!returnFields.wantsField(targetField)) continue;
 
             if (isMultiValueFiled(schema, targetField)) {
                 doc.setField(targetField, fieldValue);
@@ -358,6 +1305,50 @@ public class ChatpalSearchRequestHandler extends SearchHandler {
         }
     }
 
+    /**
+     * Collapses message hits per room (see {@link ChatpalParams#PARAM_COLLAPSE}). Hits are ranked within a room by
+     * the first clause of the requested sort. Not supported for distributed requests and cursors; with time
+     * partitions every partition is collapsed on its own.
+     * <p>
+     * The collapse needs all hits, so early termination is disabled. The groups are only populated while collecting,
+     * so the main query bypasses the <code>queryResultCache</code> (see {@link #buildTypeQuery}).
+     */
+    @SuppressWarnings({"unused", "squid:S1172"})
+    private void appendRoomCollapse(ModifiableSolrParams query, SolrQueryRequest req, SolrQueryResponse rsp, DocType docType) {
+        final int size = NumberUtils.toInt(getTypeParam(req, docType, ChatpalParams.PARAM_COLLAPSE), 0);
+        if (size <= 0 || isDistributed(req) || getCursorMark(req, docType) != null) return;
+        if (!collapseParserAvailable) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("%s requires the '%s' query parser", ChatpalParams.PARAM_COLLAPSE, RoomCollapseQParserPlugin.NAME));
+        }
+
+        final StringBuilder filter = new StringBuilder("{!").append(RoomCollapseQParserPlugin.NAME)
+                .append(' ').append(RoomCollapseQParserPlugin.PARAM_SIZE).append('=').append(size);
+        if (!isScoreSort(req)) {
+            query.set(PARAM_COLLAPSE_SORT, StringUtils.substringBefore(req.getParams().get(CommonParams.SORT), ",").trim());
+            filter.append(' ').append(RoomCollapseQParserPlugin.PARAM_SORT).append("=$").append(PARAM_COLLAPSE_SORT);
+        }
+        query.add(CommonParams.FQ, filter.append('}').toString());
+
+        query.remove(CommonParams.SEGMENT_TERMINATE_EARLY);
+    }
+
+    /**
+     * @return the number of hits per room of the returned hits
+     */
+    private NamedList<Object> buildGroupCounts(RoomGroups roomGroups, DocList docList) {
+        final NamedList<Object> groups = new SimpleOrderedMap<>();
+        final Set<String> rooms = new HashSet<>();
+        final DocIterator it = docList.iterator();
+        while (it.hasNext()) {
+            final String room = roomGroups.getRoom(it.nextDoc());
+            if (room != null && rooms.add(room)) {
+                groups.add(room, roomGroups.getCount(room));
+            }
+        }
+        return groups;
+    }
+
     private String buildExclusionFilter(String field, String...excluded) {
         if(field == null || ArrayUtils.isEmpty(excluded)) {
             return null;
@@ -369,12 +1360,4 @@ public class ChatpalSearchRequestHandler extends SearchHandler {
     private interface QueryAdapter {
         void adaptQuery(ModifiableSolrParams query, SolrQueryRequest req, SolrQueryResponse rsp, DocType docType);
     }
-
-    static class Loggable {
-        long numFound;
-
-        Loggable(long numFound) {
-            this.numFound = numFound;
-        }
-    }
 }
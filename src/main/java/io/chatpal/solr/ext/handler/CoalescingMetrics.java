@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.chatpal.solr.ext.handler;
+
+import com.codahale.metrics.Gauge;
+import io.chatpal.solr.ext.util.SingleFlight;
+import org.apache.solr.core.SolrInfoBean;
+import org.apache.solr.metrics.SolrMetricManager;
+
+/**
+ * Registers the metrics of request coalescing with the handler metrics.
+ */
+final class CoalescingMetrics {
+
+    private CoalescingMetrics() {}
+
+    static void register(SolrInfoBean handler, SingleFlight<?, ?> singleFlight,
+                         SolrMetricManager manager, String registryName, String tag, String scope) {
+        final String category = handler.getCategory().toString();
+        manager.registerGauge(handler, registryName, (Gauge<Long>) singleFlight::getExecuted,
+                tag, true, "executed", category, scope, "coalescing");
+        manager.registerGauge(handler, registryName, (Gauge<Long>) singleFlight::getCoalesced,
+                tag, true, "coalesced", category, scope, "coalescing");
+        manager.registerGauge(handler, registryName, (Gauge<Integer>) singleFlight::getInFlight,
+                tag, true, "inFlight", category, scope, "coalescing");
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.handler;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.automaton.CompiledAutomaton;
+import org.apache.lucene.util.automaton.LevenshteinAutomata;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Typo tolerant expansion of the terms of a <code>text</code> query. Every plain term is expanded with the most
+ * frequent dictionary terms within its Levenshtein distance (1 edit for terms with 4 to 7 characters, 2 edits
+ * for longer ones), e.g. <code>helo world</code> is expanded with <code>hello</code> of <code>text_en</code>.
+ * The expansions are analyzed terms of a single field, so they are searched as term queries of that field
+ * instead of being added to the query text.
+ * <p>
+ * The cost is bounded: only terms with at least <code>minDocFreq</code> documents are used, at most
+ * {@link #MAX_VISITED_TERMS} dictionary terms are visited per term and at most {@link #MAX_EXPANDED_TERMS}
+ * terms of a query are expanded. Expansions are cached per searcher.
+ */
+final class FuzzyTermExpander {
+
+    static final int DEFAULT_MAX_EXPANSIONS = 3;
+    static final int MAX_EXPANSIONS = 10;
+    static final int DEFAULT_MIN_DOC_FREQ = 2;
+    /**
+     * Hard cap of the dictionary terms visited by the automaton of a single term
+     */
+    static final int MAX_VISITED_TERMS = 1000;
+    /**
+     * At most this number of terms of a query are expanded
+     */
+    static final int MAX_EXPANDED_TERMS = 8;
+
+    private static final int MIN_TERM_LENGTH = 4;
+    private static final int MIN_TWO_EDITS_LENGTH = 8;
+    /**
+     * Maximum number of cached expansions per searcher
+     */
+    private static final int MAX_CACHED = 10000;
+
+    private static final Pattern PLAIN_TERM = Pattern.compile("[\\p{L}\\p{N}]+");
+
+    private final Map<Object, Map<String, List<String>>> expansions = new ConcurrentHashMap<>();
+
+    /**
+     * Expands the plain terms of a (cleaned) text query. Phrases, negated terms, wildcards, operators and
+     * escaped terms are not expanded.
+     * @param fields the text fields whose dictionaries are used
+     * @return the distinct expansions of all terms, in query order
+     */
+    List<Expansion> expandTerms(SolrIndexSearcher searcher, String text, Collection<String> fields, int minDocFreq,
+                                int maxExpansions) throws IOException {
+        return expandTerms(text, term -> {
+            final List<Expansion> termExpansions = new ArrayList<>();
+            for (String field : fields) {
+                for (String expansion : expand(searcher, field, term, minDocFreq, maxExpansions)) {
+                    termExpansions.add(new Expansion(field, expansion));
+                }
+            }
+            return termExpansions;
+        });
+    }
+
+    static List<Expansion> expandTerms(String text, Expansions expansions) throws IOException {
+        if (StringUtils.isBlank(text)) {
+            return Collections.emptyList();
+        }
+        final Set<Expansion> result = new LinkedHashSet<>();
+        boolean inPhrase = false;
+        int expanded = 0;
+        for (String token : StringUtils.split(text)) {
+            final boolean quoted = StringUtils.countMatches(token, '"') % 2 == 1;
+            final String term = token.startsWith("+") ? token.substring(1) : token;
+            if (!inPhrase && !quoted && expanded < MAX_EXPANDED_TERMS && isExpandable(term)) {
+                boolean termExpanded = false;
+                for (Expansion expansion : expansions.of(term)) {
+                    if (!expansion.getTerm().equals(term.toLowerCase(Locale.ROOT))) {
+                        termExpanded |= result.add(expansion);
+                    }
+                }
+                if (termExpanded) {
+                    expanded++;
+                }
+            }
+            inPhrase ^= quoted;
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * The negated terms and phrases of a (cleaned) text query without the <code>-</code>, e.g. <code>bar "b c"</code>
+     * for <code>foo -bar -"b c"</code>. The expansions of the other terms must not match them either.
+     * @return the negated text or <code>null</code> if there is none
+     */
+    static String getNegatedText(String text) {
+        if (StringUtils.isBlank(text)) {
+            return null;
+        }
+        final List<String> negated = new ArrayList<>();
+        boolean inPhrase = false;
+        boolean inNegatedPhrase = false;
+        for (String token : StringUtils.split(text)) {
+            final boolean quoted = StringUtils.countMatches(token, '"') % 2 == 1;
+            if (inNegatedPhrase) {
+                negated.add(token);
+            } else if (!inPhrase && token.length() > 1 && token.startsWith("-")) {
+                negated.add(token.substring(1));
+                inNegatedPhrase = quoted;
+                inPhrase ^= quoted;
+                continue;
+            }
+            inPhrase ^= quoted;
+            inNegatedPhrase &= inPhrase;
+        }
+        return negated.isEmpty() ? null : String.join(" ", negated);
+    }
+
+    private static boolean isExpandable(String term) {
+        //also excludes the AND, OR and NOT operators
+        return term.length() >= MIN_TERM_LENGTH && PLAIN_TERM.matcher(term).matches();
+    }
+
+    /**
+     * @return the most frequent dictionary terms (at least <code>minDocFreq</code> documents) of the field within
+     * the edit distance of the analyzed term, most frequent first
+     */
+    List<String> expand(SolrIndexSearcher searcher, String field, String term, int minDocFreq, int maxExpansions) throws IOException {
+        final SchemaField schemaField = searcher.getSchema().getFieldOrNull(field);
+        if (schemaField == null || !schemaField.indexed()) {
+            return Collections.emptyList();
+        }
+        final String analyzed = analyze(schemaField, term);
+        if (analyzed == null) {
+            return Collections.emptyList();
+        }
+
+        final IndexReader.CacheHelper cacheHelper = searcher.getIndexReader().getReaderCacheHelper();
+        if (cacheHelper == null) {
+            return lookup(searcher, field, analyzed, minDocFreq, maxExpansions);
+        }
+        final Map<String, List<String>> cache = expansions.computeIfAbsent(cacheHelper.getKey(), key -> {
+            cacheHelper.addClosedListener(expansions::remove);
+            return new ConcurrentHashMap<>();
+        });
+        final String cacheKey = field + '\u0000' + analyzed + '\u0000' + minDocFreq + '\u0000' + maxExpansions;
+        List<String> result = cache.get(cacheKey);
+        if (result == null) {
+            result = lookup(searcher, field, analyzed, minDocFreq, maxExpansions);
+            if (cache.size() < MAX_CACHED) {
+                cache.putIfAbsent(cacheKey, result);
+            }
+        }
+        return result;
+    }
+
+    private List<String> lookup(SolrIndexSearcher searcher, String field, String term, int minDocFreq, int maxExpansions) throws IOException {
+        final int length = term.codePointCount(0, term.length());
+        if (length < MIN_TERM_LENGTH || maxExpansions <= 0) {
+            return Collections.emptyList();
+        }
+        final Terms terms = MultiFields.getTerms(searcher.getIndexReader(), field);
+        if (terms == null) {
+            return Collections.emptyList();
+        }
+
+        final int maxEdits = length < MIN_TWO_EDITS_LENGTH ? 1 : 2;
+        final CompiledAutomaton automaton = new CompiledAutomaton(
+                new LevenshteinAutomata(term, true).toAutomaton(maxEdits), true, false);
+        final TermsEnum termsEnum = automaton.getTermsEnum(terms);
+
+        //min heap of the most frequent candidates
+        final PriorityQueue<Candidate> candidates = new PriorityQueue<>(maxExpansions + 1,
+                Comparator.comparingInt((Candidate c) -> c.docFreq).thenComparing(c -> c.term, Comparator.reverseOrder()));
+        int visited = 0;
+        for (BytesRef candidate = termsEnum.next(); candidate != null && visited < MAX_VISITED_TERMS; candidate = termsEnum.next()) {
+            visited++;
+            final int docFreq = termsEnum.docFreq();
+            if (docFreq < minDocFreq) continue;
+            final String value = candidate.utf8ToString();
+            if (value.equals(term)) continue;
+            candidates.add(new Candidate(value, docFreq));
+            if (candidates.size() > maxExpansions) {
+                candidates.poll();
+            }
+        }
+
+        final List<String> result = new ArrayList<>(candidates.size());
+        while (!candidates.isEmpty()) {
+            result.add(candidates.poll().term);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * @return the single term the query analyzer of the field produces or <code>null</code>
+     */
+    private static String analyze(SchemaField field, String text) throws IOException {
+        final Analyzer analyzer = field.getType().getQueryAnalyzer();
+        String term = null;
+        try (TokenStream tokenStream = analyzer.tokenStream(field.getName(), text)) {
+            final CharTermAttribute termAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+            tokenStream.reset();
+            while (tokenStream.incrementToken()) {
+                if (term != null) {
+                    return null;
+                }
+                term = termAttribute.toString();
+            }
+            tokenStream.end();
+        }
+        return term;
+    }
+
+    interface Expansions {
+        Collection<Expansion> of(String term) throws IOException;
+    }
+
+    /**
+     * A dictionary term similar to a term of the query and the field it was found in
+     */
+    static final class Expansion {
+        private final String field;
+        private final String term;
+
+        Expansion(String field, String term) {
+            this.field = field;
+            this.term = term;
+        }
+
+        String getField() {
+            return field;
+        }
+
+        String getTerm() {
+            return term;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Expansion that = (Expansion) o;
+            return field.equals(that.field) && term.equals(that.term);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(field, term);
+        }
+
+        @Override
+        public String toString() {
+            return field + ':' + term;
+        }
+    }
+
+    private static final class Candidate {
+        private final String term;
+        private final int docFreq;
+
+        private Candidate(String term, int docFreq) {
+            this.term = term;
+            this.docFreq = docFreq;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.handler;
+
+import io.chatpal.solr.ext.ChatpalParams;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The text fields searched for the {@link ChatpalParams#PARAM_LANG languages} of a request. Multiple
+ * languages (<code>language=de,en</code>) are searched by a single query over the fields of all languages,
+ * so edismax scores every term by its best matching field instead of running one search per language.
+ * <p>
+ * The field groups are computed once per distinct language list.
+ */
+final class LanguageFields {
+
+    static final int MAX_LANGUAGES = 5;
+
+    private static final int MAX_CACHED = 256;
+
+    private static final Map<String, LanguageFields> CACHE = new ConcurrentHashMap<>();
+
+    private final List<String> languages;
+    private final String key;
+    private final String queryFields;
+    private final String recallFields;
+    private final List<String> textFields;
+
+    private LanguageFields(List<String> languages) {
+        this.languages = Collections.unmodifiableList(languages);
+        this.key = String.join(",", languages);
+
+        final StringBuilder qf = new StringBuilder("context^2");
+        final List<String> textFields = new ArrayList<>(languages.size());
+        for (String language : languages) {
+            qf.append(" text_${lang}^1 decompose_text_${lang}^.5".replace("${lang}", language));
+            textFields.add("text_" + language);
+        }
+        this.queryFields = qf.toString();
+        this.recallFields = String.join(" ", textFields);
+        this.textFields = Collections.unmodifiableList(textFields);
+    }
+
+    /**
+     * The languages of the request (comma separated or repeated), defaults to {@link ChatpalParams#LANG_NONE none}
+     * @throws SolrException {@link SolrException.ErrorCode#BAD_REQUEST} if more than {@link #MAX_LANGUAGES} are parsed
+     */
+    static LanguageFields of(SolrParams params) {
+        final String[] values = QueryHelper.getMultiValueParam(ChatpalParams.PARAM_LANG, params);
+        return of(values == null ? null : String.join(",", values));
+    }
+
+    /**
+     * @param value the comma separated languages or <code>null</code> for {@link ChatpalParams#LANG_NONE none}
+     */
+    static LanguageFields of(String value) {
+        final String normalized = StringUtils.defaultIfBlank(StringUtils.deleteWhitespace(value), ChatpalParams.LANG_NONE);
+        final LanguageFields cached = CACHE.get(normalized);
+        if (cached != null) {
+            return cached;
+        }
+
+        final Set<String> languages = new LinkedHashSet<>(Arrays.asList(StringUtils.split(normalized, ',')));
+        if (languages.isEmpty()) {
+            languages.add(ChatpalParams.LANG_NONE);
+        } else if (languages.size() > MAX_LANGUAGES) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("At most %d values are supported for %s", MAX_LANGUAGES, ChatpalParams.PARAM_LANG));
+        }
+        final LanguageFields languageFields = new LanguageFields(new ArrayList<>(languages));
+        //languages are parsed by clients, so only a bounded number of lists is kept
+        if (CACHE.size() < MAX_CACHED) {
+            CACHE.putIfAbsent(normalized, languageFields);
+        }
+        return languageFields;
+    }
+
+    List<String> getLanguages() {
+        return languages;
+    }
+
+    /**
+     * The normalized, comma separated languages
+     */
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * The default field for explicit queries: the text field of the first language
+     */
+    String getDefaultField() {
+        return "text_" + languages.get(0);
+    }
+
+    /**
+     * The weighted edismax query fields of all languages
+     */
+    String getQueryFields() {
+        return queryFields;
+    }
+
+    /**
+     * The single text field per language used for the first phase of the two-phase retrieval
+     */
+    String getRecallFields() {
+        return recallFields;
+    }
+
+    /**
+     * The <code>text_${lang}</code> field of every language (highlighting, fuzzy expansion)
+     */
+    List<String> getTextFields() {
+        return textFields;
+    }
+
+    /**
+     * Maps a highlighted language field to the returned field (<code>text_de</code> to <code>text</code>)
+     */
+    String getTargetField(String fieldName) {
+        for (String language : languages) {
+            if (fieldName.endsWith("_" + language)) {
+                return StringUtils.removeEnd(fieldName, "_" + language);
+            }
+        }
+        return fieldName;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LanguageFields{languages=%s}", key);
+    }
+}
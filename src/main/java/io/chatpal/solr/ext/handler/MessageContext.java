@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.handler;
+
+import io.chatpal.solr.ext.ChatpalParams;
+import io.chatpal.solr.ext.DocType;
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocList;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SolrReturnFields;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Looks up the messages before and after the message hits of a page (see {@link ChatpalParams#PARAM_CONTEXT}).
+ * <p>
+ * All rooms of the page are resolved by a single query; the neighbours of the hits are collected from the
+ * <code>rid</code> and <code>created</code> doc values, so the costs are linear in the number of messages
+ * of these rooms and do not depend on the number of hits.
+ */
+final class MessageContext {
+
+    static final String FIELD_CONTEXT = "context";
+
+    static final int MAX_SIZE = 50;
+
+    private static final Comparator<Neighbour> ORDER = Comparator
+            .comparingLong((Neighbour n) -> n.created)
+            .thenComparingInt(n -> n.doc);
+
+    private final int size;
+    private final Query filter;
+
+    /**
+     * @param size the number of messages before and after each hit
+     * @param filter restricts the context (see {@link #buildFilter(SolrQueryRequest, String, String)})
+     */
+    MessageContext(int size, Query filter) {
+        this.size = Math.min(size, MAX_SIZE);
+        this.filter = filter;
+    }
+
+    /**
+     * Restricts the context to the messages the hit query may return: the message type, the tenant, the
+     * {@link ChatpalParams#PARAM_ACL acl} and the excluded messages and rooms
+     * @param tenant the tenant of the request or <code>null</code> if not in multi-tenant mode
+     */
+    static Query buildFilter(SolrQueryRequest req, String tenantField, String tenant) {
+        final SolrParams params = req.getParams();
+        final IndexSchema schema = req.getSchema();
+        final BooleanQuery.Builder filter = new BooleanQuery.Builder()
+                .add(buildTermsQuery(schema, ChatpalParams.FIELD_TYPE, DocType.Message.getIndexVal()), BooleanClause.Occur.FILTER)
+                .add(buildTermsQuery(schema, ChatpalParams.FIELD_ACL,
+                        QueryHelper.getMultiValueParam(ChatpalParams.PARAM_ACL, params)), BooleanClause.Occur.FILTER);
+        if (tenant != null) {
+            filter.add(buildTermsQuery(schema, tenantField, tenant), BooleanClause.Occur.FILTER);
+        }
+        final String[] excludedRooms = QueryHelper.getMultiValueParam(ChatpalParams.PARAM_EXCL_ROOM, params);
+        if (ArrayUtils.isNotEmpty(excludedRooms)) {
+            filter.add(buildTermsQuery(schema, ChatpalParams.FIELD_ROOM_ID, excludedRooms), BooleanClause.Occur.MUST_NOT);
+        }
+        final String[] excludedMessages = QueryHelper.getMultiValueParam(ChatpalParams.PARAM_EXCL_MSG, params);
+        if (ArrayUtils.isNotEmpty(excludedMessages)) {
+            filter.add(buildTermsQuery(schema, ChatpalParams.FIELD_MSG_ID, excludedMessages), BooleanClause.Occur.MUST_NOT);
+        }
+        return filter.build();
+    }
+
+    /**
+     * Same as the <code>{!terms}</code> filters of the hit query: no values match no documents
+     */
+    private static Query buildTermsQuery(IndexSchema schema, String fieldName, String... values) {
+        final FieldType fieldType = schema.getFieldType(fieldName);
+        final List<BytesRef> terms = new ArrayList<>();
+        if (values != null) {
+            for (String value : values) {
+                if (StringUtils.isNotBlank(value)) {
+                    final BytesRefBuilder term = new BytesRefBuilder();
+                    fieldType.readableToIndexed(value, term);
+                    terms.add(term.toBytesRef());
+                }
+            }
+        }
+        return new TermInSetQuery(fieldName, terms);
+    }
+
+    /**
+     * Sets the {@link #FIELD_CONTEXT context} of the parsed hits.
+     * @param hits the hits of the page
+     * @param docs the materialized hits (same order as the hits)
+     */
+    void attach(SolrIndexSearcher searcher, IndexSchema schema, DocList hits, List<SolrDocument> docs,
+                SolrReturnFields returnFields) throws IOException {
+        final int[] hitDocs = new int[hits.size()];
+        final DocIterator it = hits.iterator();
+        for (int i = 0; i < hitDocs.length && it.hasNext(); i++) {
+            hitDocs[i] = it.nextDoc();
+        }
+        final List<Hit> page = collect(searcher, schema, hitDocs);
+
+        final Map<Integer, SolrDocument> fetched = new HashMap<>();
+        for (int i = 0; i < page.size() && i < docs.size(); i++) {
+            final Hit hit = page.get(i);
+            if (hit == null) continue;
+            final SimpleOrderedMap<Object> context = new SimpleOrderedMap<>();
+            context.add("before", fetch(searcher, schema, hit.getBefore(), fetched, returnFields));
+            context.add("after", fetch(searcher, schema, hit.getAfter(), fetched, returnFields));
+            docs.get(i).setField(FIELD_CONTEXT, context);
+        }
+    }
+
+    /**
+     * Collects the neighbours of the hits
+     * @return the hits with their neighbours (same order as the parsed docs), <code>null</code> for hits without
+     * room or created date
+     */
+    List<Hit> collect(IndexSearcher searcher, IndexSchema schema, int[] hitDocs) throws IOException {
+        final SchemaField roomField = schema.getField(ChatpalParams.FIELD_ROOM_ID);
+        final SchemaField createdField = schema.getField(ChatpalParams.FIELD_CREATED);
+        if (!roomField.hasDocValues() || !createdField.hasDocValues()) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, String.format(
+                    "The message context requires docValues for '%s' and '%s'", roomField.getName(), createdField.getName()));
+        }
+
+        final List<Hit> page = new ArrayList<>(hitDocs.length);
+        final Map<BytesRef, List<Hit>> rooms = new LinkedHashMap<>();
+        final List<LeafReaderContext> leaves = searcher.getTopReaderContext().leaves();
+        for (int doc : hitDocs) {
+            final LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+            final SortedSetDocValues roomValues = DocValues.getSortedSet(leaf.reader(), roomField.getName());
+            final SortedNumericDocValues createdValues = DocValues.getSortedNumeric(leaf.reader(), createdField.getName());
+            final int leafDoc = doc - leaf.docBase;
+            if (roomValues.advanceExact(leafDoc) && createdValues.advanceExact(leafDoc)) {
+                final BytesRef room = BytesRef.deepCopyOf(roomValues.lookupOrd(roomValues.nextOrd()));
+                final Hit hit = new Hit(doc, createdValues.nextValue());
+                rooms.computeIfAbsent(room, r -> new ArrayList<>()).add(hit);
+                page.add(hit);
+            } else {
+                page.add(null);
+            }
+        }
+        if (rooms.isEmpty()) {
+            return page;
+        }
+
+        final BooleanQuery.Builder query = new BooleanQuery.Builder()
+                .add(new TermInSetQuery(roomField.getName(), rooms.keySet()), BooleanClause.Occur.FILTER);
+        if (filter != null) {
+            query.add(filter, BooleanClause.Occur.FILTER);
+        }
+        searcher.search(new ConstantScoreQuery(query.build()),
+                new NeighbourCollector(roomField.getName(), createdField.getName(), new ArrayList<>(rooms.entrySet())));
+        return page;
+    }
+
+    private static List<SolrDocument> fetch(SolrIndexSearcher searcher, IndexSchema schema, int[] neighbours,
+                                            Map<Integer, SolrDocument> fetched, SolrReturnFields returnFields) {
+        final List<SolrDocument> docs = new ArrayList<>(neighbours.length);
+        for (int neighbour : neighbours) {
+            docs.add(fetched.computeIfAbsent(neighbour, doc -> {
+                final SolrDocument solrDoc = searcher.getDocFetcher().solrDoc(doc, returnFields);
+                for (String fName : new HashSet<>(solrDoc.getFieldNames())) {
+                    if (!returnFields.wantsField(fName)) {
+                        solrDoc.removeFields(fName);
+                    }
+                }
+                //do not return the internal uid field (same as for the hits)
+                solrDoc.removeFields(schema.getUniqueKeyField().getName());
+                return solrDoc;
+            }));
+        }
+        return docs;
+    }
+
+    final class Hit {
+        private final Neighbour self;
+        /**
+         * min-heap keeping the latest messages before the hit
+         */
+        private final PriorityQueue<Neighbour> before = new PriorityQueue<>(ORDER);
+        /**
+         * max-heap keeping the earliest messages after the hit
+         */
+        private final PriorityQueue<Neighbour> after = new PriorityQueue<>(Collections.reverseOrder(ORDER));
+
+        private Hit(int doc, long created) {
+            this.self = new Neighbour(doc, created);
+        }
+
+        /**
+         * @return the messages before the hit, oldest first
+         */
+        int[] getBefore() {
+            return sorted(before);
+        }
+
+        /**
+         * @return the messages after the hit, oldest first
+         */
+        int[] getAfter() {
+            return sorted(after);
+        }
+
+        private int[] sorted(PriorityQueue<Neighbour> neighbours) {
+            return neighbours.stream().sorted(ORDER).mapToInt(n -> n.doc).toArray();
+        }
+
+        private void offer(Neighbour neighbour) {
+            final int cmp = ORDER.compare(neighbour, self);
+            if (cmp < 0) {
+                offer(before, neighbour, 1);
+            } else if (cmp > 0) {
+                offer(after, neighbour, -1);
+            }
+        }
+
+        /**
+         * @param sign <code>1</code> keeps the greatest, <code>-1</code> the smallest neighbours
+         */
+        private void offer(PriorityQueue<Neighbour> queue, Neighbour neighbour, int sign) {
+            if (queue.size() < size) {
+                queue.add(neighbour);
+            } else if (sign * ORDER.compare(neighbour, queue.peek()) > 0) {
+                queue.poll();
+                queue.add(neighbour);
+            }
+        }
+    }
+
+    private static final class Neighbour {
+        private final int doc;
+        private final long created;
+
+        private Neighbour(int doc, long created) {
+            this.doc = doc;
+            this.created = created;
+        }
+    }
+
+    private static final class NeighbourCollector extends SimpleCollector {
+
+        private final String roomField;
+        private final String createdField;
+        private final List<Map.Entry<BytesRef, List<Hit>>> rooms;
+
+        private int docBase;
+        private SortedSetDocValues roomValues;
+        private SortedNumericDocValues createdValues;
+        private Map<Long, List<Hit>> hitsByOrd;
+
+        private NeighbourCollector(String roomField, String createdField, List<Map.Entry<BytesRef, List<Hit>>> rooms) {
+            this.roomField = roomField;
+            this.createdField = createdField;
+            this.rooms = rooms;
+        }
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) throws IOException {
+            docBase = context.docBase;
+            roomValues = DocValues.getSortedSet(context.reader(), roomField);
+            createdValues = DocValues.getSortedNumeric(context.reader(), createdField);
+            //room terms to segment ordinals, so the rooms of the candidates are compared by ordinal
+            hitsByOrd = new HashMap<>();
+            for (Map.Entry<BytesRef, List<Hit>> room : rooms) {
+                final long ord = roomValues.lookupTerm(room.getKey());
+                if (ord >= 0) {
+                    hitsByOrd.put(ord, room.getValue());
+                }
+            }
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            if (!roomValues.advanceExact(doc) || !createdValues.advanceExact(doc)) {
+                return;
+            }
+            final Neighbour neighbour = new Neighbour(docBase + doc, createdValues.nextValue());
+            for (long ord = roomValues.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = roomValues.nextOrd()) {
+                final List<Hit> hits = hitsByOrd.get(ord);
+                if (hits != null) {
+                    for (Hit hit : hits) {
+                        hit.offer(neighbour);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean needsScores() {
+            return false;
+        }
+    }
+}
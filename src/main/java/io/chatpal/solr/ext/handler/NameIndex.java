@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.handler;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact in-memory prefix index over the names of a small document type (rooms, users). Names are split into
+ * lower case tokens; the distinct tokens are kept in a sorted array with the entries containing them, so all
+ * tokens starting with a query token are found by binary search.
+ * <p>
+ * Entries match if any query token is a prefix of one of their tokens. Hits are ranked by the number of matched
+ * query tokens (exact token matches count double), then by the length of the names (shorter first).
+ */
+final class NameIndex {
+
+    private final int[] docs;
+    private final String[] tenants;
+    private final String[][] acls;
+    private final int[] nameLengths;
+
+    private final String[] tokens;
+    private final int[][] postings;
+
+    private NameIndex(int[] docs, String[] tenants, String[][] acls, int[] nameLengths, String[] tokens, int[][] postings) {
+        this.docs = docs;
+        this.tenants = tenants;
+        this.acls = acls;
+        this.nameLengths = nameLengths;
+        this.tokens = tokens;
+        this.postings = postings;
+    }
+
+    int size() {
+        return docs.length;
+    }
+
+    /**
+     * Splits a name (or query) into lower case tokens of letters and digits
+     */
+    static List<String> tokenize(String text) {
+        final List<String> result = new ArrayList<>();
+        if (text == null) {
+            return result;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            final boolean tokenChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (tokenChar && start < 0) {
+                start = i;
+            } else if (!tokenChar && start >= 0) {
+                result.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Parses the <code>text</code> of a request into query tokens.
+     * @return the tokens or <code>null</code> if the text uses query syntax (phrases, operators, infix wildcards)
+     * that is only supported by the Lucene search
+     */
+    static List<String> parseQuery(String text) {
+        if (StringUtils.isBlank(text) || StringUtils.containsAny(text, '"', '?')) {
+            return null;
+        }
+        for (String term : StringUtils.split(text)) {
+            final String withoutPrefix = StringUtils.removeEnd(term, "*");
+            if (term.startsWith("+") || term.startsWith("-") || withoutPrefix.contains("*")) {
+                return null;
+            }
+        }
+        final List<String> tokens = tokenize(text);
+        return tokens.isEmpty() ? null : tokens;
+    }
+
+    /**
+     * @param queryTokens the (lower case) query tokens
+     * @param tenant the required tenant or <code>null</code>
+     * @param acl the entries must have one of these values or <code>null</code> for no ACL check
+     * @param excluded entries with one of these values are excluded
+     */
+    Hits search(List<String> queryTokens, String tenant, Set<String> acl, Set<String> excluded, int start, int rows) {
+        final int[] scores = new int[docs.length];
+        final int[] tokenScores = new int[docs.length];
+        for (String queryToken : queryTokens) {
+            //tokens starting with the query token: [from, to)
+            int from = Arrays.binarySearch(tokens, queryToken);
+            final boolean exact = from >= 0;
+            if (from < 0) {
+                from = -from - 1;
+            }
+            Arrays.fill(tokenScores, 0);
+            for (int t = from; t < tokens.length && tokens[t].startsWith(queryToken); t++) {
+                final int score = exact && t == from ? 2 : 1;
+                for (int entry : postings[t]) {
+                    //per query token only the best match of an entry counts
+                    tokenScores[entry] = Math.max(tokenScores[entry], score);
+                }
+            }
+            for (int entry = 0; entry < scores.length; entry++) {
+                scores[entry] += tokenScores[entry];
+            }
+        }
+
+        final List<Integer> matches = new ArrayList<>();
+        for (int entry = 0; entry < scores.length; entry++) {
+            if (scores[entry] > 0 && accepts(entry, tenant, acl, excluded)) {
+                matches.add(entry);
+            }
+        }
+        matches.sort((a, b) -> {
+            final int cmp = Integer.compare(scores[b], scores[a]);
+            if (cmp != 0) return cmp;
+            final int length = Integer.compare(nameLengths[a], nameLengths[b]);
+            return length != 0 ? length : Integer.compare(a, b);
+        });
+
+        final int from = Math.min(Math.max(0, start), matches.size());
+        final int to = Math.min(from + Math.max(0, rows), matches.size());
+        final int[] page = new int[to - from];
+        for (int i = from; i < to; i++) {
+            page[i - from] = docs[matches.get(i)];
+        }
+        final int[] all = new int[matches.size()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = docs[matches.get(i)];
+        }
+        return new Hits(matches.size(), page, all);
+    }
+
+    private boolean accepts(int entry, String tenant, Set<String> acl, Set<String> excluded) {
+        if (tenant != null && !tenant.equals(tenants[entry])) {
+            return false;
+        }
+        boolean allowed = acl == null;
+        for (String value : acls[entry]) {
+            if (excluded.contains(value)) {
+                return false;
+            }
+            allowed |= acl != null && acl.contains(value);
+        }
+        return allowed;
+    }
+
+    static final class Hits {
+        private final int numFound;
+        private final int[] page;
+        private final int[] all;
+
+        private Hits(int numFound, int[] page, int[] all) {
+            this.numFound = numFound;
+            this.page = page;
+            this.all = all;
+        }
+
+        int getNumFound() {
+            return numFound;
+        }
+
+        /**
+         * the (global) doc ids of the requested page
+         */
+        int[] getPage() {
+            return page;
+        }
+
+        /**
+         * the (global) doc ids of all hits
+         */
+        int[] getAll() {
+            return all;
+        }
+    }
+
+    static final class Builder {
+
+        private final List<Integer> docs = new ArrayList<>();
+        private final List<String> tenants = new ArrayList<>();
+        private final List<String[]> acls = new ArrayList<>();
+        private final List<Integer> nameLengths = new ArrayList<>();
+        private final Map<String, List<Integer>> postings = new HashMap<>();
+
+        Builder add(int doc, String tenant, Collection<String> acl, Collection<String> names) {
+            final int entry = docs.size();
+            docs.add(doc);
+            tenants.add(tenant);
+            acls.add(acl == null ? new String[0] : acl.toArray(new String[0]));
+            int nameLength = 0;
+            final Set<String> entryTokens = new HashSet<>();
+            for (String name : names) {
+                nameLength += name.length();
+                entryTokens.addAll(tokenize(name));
+            }
+            nameLengths.add(nameLength);
+            for (String token : entryTokens) {
+                postings.computeIfAbsent(token, t -> new ArrayList<>()).add(entry);
+            }
+            return this;
+        }
+
+        int size() {
+            return docs.size();
+        }
+
+        NameIndex build() {
+            final String[] tokens = postings.keySet().toArray(new String[0]);
+            Arrays.sort(tokens);
+            final int[][] tokenPostings = new int[tokens.length][];
+            for (int t = 0; t < tokens.length; t++) {
+                tokenPostings[t] = postings.get(tokens[t]).stream().mapToInt(Integer::intValue).toArray();
+            }
+            return new NameIndex(docs.stream().mapToInt(Integer::intValue).toArray(),
+                    tenants.toArray(new String[0]), acls.toArray(new String[0][]),
+                    nameLengths.stream().mapToInt(Integer::intValue).toArray(), tokens, tokenPostings);
+        }
+    }
+
+    static Set<String> toSet(String[] values) {
+        if (values == null) {
+            return Collections.emptySet();
+        }
+        final Set<String> set = new HashSet<>();
+        for (String value : values) {
+            if (StringUtils.isNotBlank(value)) {
+                set.add(value.trim());
+            }
+        }
+        return set;
+    }
+}
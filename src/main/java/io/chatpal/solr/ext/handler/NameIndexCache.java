@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.handler;
+
+import io.chatpal.solr.ext.ChatpalParams;
+import io.chatpal.solr.ext.DocType;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SolrReturnFields;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link NameIndex name indexes} of the configured types, built once per searcher (on warming or by the
+ * first request) and dropped when the index reader is closed.
+ * <p>
+ * Configured in the arguments of the search handler:
+ * <pre>
+ * &lt;lst name="nameIndex"&gt;
+ *   &lt;str name="room"&gt;name&lt;/str&gt;
+ *   &lt;str name="user"&gt;name,username&lt;/str&gt;
+ *   &lt;int name="maxDocs"&gt;100000&lt;/int&gt;
+ * &lt;/lst&gt;
+ * </pre>
+ * Types with more than <code>maxDocs</code> documents are searched with Lucene.
+ */
+final class NameIndexCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NameIndexCache.class);
+
+    static final String CONF_MAX_DOCS = "maxDocs";
+    static final int DEFAULT_MAX_DOCS = 100000;
+
+    private final Map<DocType, List<String>> nameFields = new EnumMap<>(DocType.class);
+    private int maxDocs = DEFAULT_MAX_DOCS;
+
+    private final Map<Object, Map<DocType, Optional<NameIndex>>> indexes = new ConcurrentHashMap<>();
+
+    boolean isEnabled() {
+        return !nameFields.isEmpty();
+    }
+
+    boolean isEnabled(DocType docType) {
+        return nameFields.containsKey(docType);
+    }
+
+    /**
+     * @param tenantField the tenant field or <code>null</code> if multi-tenant mode is not enabled
+     * @return the name index of the type for the parsed searcher or <code>null</code> if the type is not
+     * configured or has too many documents
+     */
+    NameIndex get(SolrIndexSearcher searcher, DocType docType, String tenantField) throws IOException {
+        if (!isEnabled(docType)) {
+            return null;
+        }
+        final IndexReader.CacheHelper cacheHelper = searcher.getIndexReader().getReaderCacheHelper();
+        if (cacheHelper == null) {
+            return build(searcher, docType, tenantField);
+        }
+        final Map<DocType, Optional<NameIndex>> searcherIndexes = indexes.computeIfAbsent(cacheHelper.getKey(), key -> {
+            cacheHelper.addClosedListener(indexes::remove);
+            return new ConcurrentHashMap<>();
+        });
+        Optional<NameIndex> index = searcherIndexes.get(docType);
+        if (index == null) {
+            //concurrent builds of the same index are possible, but cheap for small types
+            index = Optional.ofNullable(build(searcher, docType, tenantField));
+            searcherIndexes.putIfAbsent(docType, index);
+        }
+        return index.orElse(null);
+    }
+
+    /**
+     * Builds the indexes of all configured types for a new searcher
+     */
+    void warm(SolrIndexSearcher searcher, String tenantField) {
+        for (DocType docType : nameFields.keySet()) {
+            try {
+                get(searcher, docType, tenantField);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Unable to build the {} name index for {}", docType.getKey(), searcher.getName(), e);
+            }
+        }
+    }
+
+    private NameIndex build(SolrIndexSearcher searcher, DocType docType, String tenantField) throws IOException {
+        final long start = System.currentTimeMillis();
+        final DocSet docs = searcher.getDocSet(new TermQuery(new Term(ChatpalParams.FIELD_TYPE, docType.getIndexVal())));
+        if (docs.size() > maxDocs) {
+            LOGGER.debug("Not building the {} name index for {}: {} docs", docType.getKey(), searcher.getName(), docs.size());
+            return null;
+        }
+
+        final List<String> names = nameFields.get(docType);
+        final Set<String> fields = new LinkedHashSet<>(names);
+        fields.add(ChatpalParams.FIELD_ACL);
+        if (tenantField != null) {
+            fields.add(tenantField);
+        }
+        final SolrReturnFields returnFields = new SolrReturnFields(fields.toArray(new String[0]), null);
+
+        final NameIndex.Builder builder = new NameIndex.Builder();
+        final DocIterator it = docs.iterator();
+        while (it.hasNext()) {
+            final int doc = it.nextDoc();
+            final SolrDocument solrDoc = searcher.getDocFetcher().solrDoc(doc, returnFields);
+            final List<String> values = new ArrayList<>();
+            for (String name : names) {
+                values.addAll(getValues(solrDoc, name));
+            }
+            final List<String> tenants = tenantField != null ? getValues(solrDoc, tenantField) : Collections.emptyList();
+            builder.add(doc, tenants.isEmpty() ? null : tenants.get(0), getValues(solrDoc, ChatpalParams.FIELD_ACL), values);
+        }
+        final NameIndex index = builder.build();
+        LOGGER.debug("Built the {} name index for {} ({} docs) in {}ms", docType.getKey(), searcher.getName(),
+                index.size(), System.currentTimeMillis() - start);
+        return index;
+    }
+
+    private static List<String> getValues(SolrDocument doc, String field) {
+        final Collection<Object> values = doc.getFieldValues(field);
+        if (values == null) {
+            return Collections.emptyList();
+        }
+        final List<String> result = new ArrayList<>(values.size());
+        for (Object value : values) {
+            result.add(value instanceof IndexableField ? ((IndexableField) value).stringValue() : String.valueOf(value));
+        }
+        return result;
+    }
+
+    static NameIndexCache fromArgs(NamedList<?> args) {
+        final NameIndexCache cache = new NameIndexCache();
+        if (args == null) {
+            return cache;
+        }
+        for (DocType docType : DocType.values()) {
+            final String fields = Objects.toString(args.get(docType.getKey()), null);
+            if (StringUtils.isNotBlank(fields)) {
+                cache.nameFields.put(docType, Arrays.asList(StringUtils.split(fields, ", ")));
+            }
+        }
+        cache.maxDocs = NumberUtils.toInt(Objects.toString(args.get(CONF_MAX_DOCS), null), DEFAULT_MAX_DOCS);
+        return cache;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NameIndexCache{fields=%s, maxDocs=%d}", nameFields, maxDocs);
+    }
+}
@@ -54,6 +54,21 @@ public class QueryHelper {
                         .filter(StringUtils::isNotBlank)
                         .collect(Collectors.joining(","));
     }
+    /**
+     * Builds a query for a single term by using the Solr term query parser. No
+     * escaping is needed as the value is not analyzed.
+     * @param field the field. MUST NOT be <code>null</code> nor blank
+     * @param value the value
+     * @return the term filter
+     * @throws IllegalArgumentException if <code>null</code> or blank is parsed as field
+     */
+    public static String buildTermQuery(String field, String value) {
+        if(StringUtils.isBlank(field)){
+            throw new IllegalArgumentException("The parsed field MUST NOT be NULL nor blank");
+        }
+        return String.format("{!term f=%s}", field) + StringUtils.defaultString(value);
+    }
+
     /**
      * Builds a query that requires one of the parsed terms by using a normal solr
      * OR query.
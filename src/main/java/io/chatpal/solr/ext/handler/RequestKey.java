@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.chatpal.solr.ext.handler;
+
+import io.chatpal.solr.ext.ChatpalParams;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.request.SolrQueryRequest;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Canonical representation of a Chatpal request: all parameters sorted by name, multi-valued
+ * parameters (like the {@link ChatpalParams#PARAM_ACL acl}) normalized to a sorted set of values
+ * independent of the serialization used by the client.
+ */
+final class RequestKey implements Accountable {
+
+    private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(RequestKey.class);
+
+    private static final Set<String> MULTI_VALUE_PARAMS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            ChatpalParams.PARAM_ACL, ChatpalParams.PARAM_TYPE, ChatpalParams.PARAM_EXCL_MSG, ChatpalParams.PARAM_EXCL_ROOM,
+            ChatpalParams.PARAM_FACETS)));
+
+    /**
+     * parameters not affecting the result
+     */
+    private static final Set<String> IGNORED_PARAMS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            CommonParams.WT, "indent", CommonParams.OMIT_HEADER, CommonParams.HEADER_ECHO_PARAMS, "_")));
+
+    private final String params;
+    private final long searcherVersion;
+    private final int hash;
+
+    private RequestKey(String params, long searcherVersion) {
+        this.params = params;
+        this.searcherVersion = searcherVersion;
+        this.hash = Objects.hash(params, searcherVersion);
+    }
+
+    static RequestKey of(SolrQueryRequest req) {
+        return of(req.getParams(), req.getSearcher().getIndexReader().getVersion());
+    }
+
+    static RequestKey of(SolrParams params, long searcherVersion) {
+        return new RequestKey(canonicalize(params), searcherVersion);
+    }
+
+    static String canonicalize(SolrParams params) {
+        final Map<String, String> canonical = new TreeMap<>();
+        final Iterator<String> names = params.getParameterNamesIterator();
+        while (names.hasNext()) {
+            final String name = names.next();
+            final String baseName = StringUtils.removeEnd(name, ChatpalParams.LEGACY_PARAM_SUFFIX);
+            if (IGNORED_PARAMS.contains(baseName) || canonical.containsKey(baseName)) {
+                continue;
+            }
+            if (MULTI_VALUE_PARAMS.contains(baseName)) {
+                final String[] values = QueryHelper.getMultiValueParam(baseName, params);
+                canonical.put(baseName, values == null ? "" : Arrays.stream(values)
+                        .filter(StringUtils::isNotBlank)
+                        .distinct()
+                        .sorted()
+                        .collect(Collectors.joining(",")));
+            } else {
+                canonical.put(baseName, String.join("\u0000", params.getParams(name)));
+            }
+        }
+        //length prefixed, so that values can not be confused with separators
+        final StringBuilder key = new StringBuilder();
+        canonical.forEach((name, value) -> key
+                .append(name.length()).append(':').append(name)
+                .append(value.length()).append(':').append(value));
+        return key.toString();
+    }
+
+    String getParams() {
+        return params;
+    }
+
+    long getSearcherVersion() {
+        return searcherVersion;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return BASE_RAM_BYTES_USED + CachedResults.estimate(params);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        final RequestKey that = (RequestKey) o;
+        return searcherVersion == that.searcherVersion && params.equals(that.params);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestKey{" + params + ", searcherVersion=" + searcherVersion + '}';
+    }
+}
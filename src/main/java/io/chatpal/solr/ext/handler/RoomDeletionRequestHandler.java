@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.handler;
+
+import io.chatpal.solr.ext.ChatpalParams;
+import io.chatpal.solr.ext.DocType;
+import io.chatpal.solr.ext.PartitionConfig;
+import io.chatpal.solr.ext.TenantConfig;
+import io.chatpal.solr.ext.util.CloudUtils;
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.params.UpdateParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.handler.RequestHandlerUtils;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.StrField;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.update.DeleteUpdateCommand;
+import org.apache.solr.update.UpdateLog;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorChain;
+import org.apache.solr.util.RefCounted;
+import org.apache.solr.util.plugin.SolrCoreAware;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Deletes all documents of the parsed rooms (<code>rid</code> parameter, comma separated or repeated) without a
+ * delete-by-query. The documents are resolved through the <code>rid</code> terms of the latest (realtime) searcher
+ * and deleted by id (one delete command per document) through the update chain (<code>update.chain</code> parameter
+ * or the default chain). In contrast to a delete-by-query this does not block concurrent updates of other rooms.
+ * <p>
+ * The optional <code>type</code> parameter limits the deletion to the parsed document types. In multi-tenant mode
+ * (see {@link TenantConfig}) only documents of the requested tenant are deleted. With time partitions (see
+ * {@link PartitionConfig}) the documents of the partition cores are deleted as well: the documents of every core are
+ * deleted through the update chain of that core and the deletes are not forwarded to the other partitions.
+ * <p>
+ * The ids are resolved on the local core only, so collections with more than one shard are rejected.
+ * <p>
+ * NOTE: messages added to a room while it is deleted may survive the deletion. The Chatpal caches are not
+ * invalidated per room: the response cache is bound to the searcher, so all of its entries are dropped by the
+ * next commit.
+ */
+public class RoomDeletionRequestHandler extends RequestHandlerBase implements SolrCoreAware {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RoomDeletionRequestHandler.class);
+
+    private TenantConfig tenantConfig = new TenantConfig();
+
+    private PartitionConfig partitionConfig = new PartitionConfig();
+
+    public RoomDeletionRequestHandler() {
+    }
+
+    RoomDeletionRequestHandler(TenantConfig tenantConfig) {
+        this.tenantConfig = tenantConfig;
+    }
+
+    @Override
+    public void inform(SolrCore core) {
+        tenantConfig = TenantConfig.fromSolrConfig(core.getSolrConfig());
+        partitionConfig = PartitionConfig.fromSolrConfig(core.getSolrConfig());
+    }
+
+    @Override
+    public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+        final SolrParams params = req.getParams();
+        final String[] rooms = QueryHelper.getMultiValueParam(ChatpalParams.PARAM_ROOM_ID, params);
+        if (ArrayUtils.isEmpty(rooms) || Arrays.stream(rooms).allMatch(StringUtils::isBlank)) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Missing parameter '" + ChatpalParams.PARAM_ROOM_ID + "'");
+        }
+        if (CloudUtils.getActiveSliceCount(req.getCore()) > 1) {
+            //the documents of other shards are not in the index of this core
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Room deletion does not support collections with multiple shards");
+        }
+
+        final IndexSchema schema = req.getSchema();
+        final SchemaField idField = schema.getUniqueKeyField();
+        if (idField == null) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "The schema does not define a uniqueKey");
+        }
+        final Query query = buildQuery(req, rooms);
+
+        final long start = System.currentTimeMillis();
+        final List<Deletion> deletions = new ArrayList<>();
+        if (!partitionConfig.isEnabled()) {
+            deletions.add(delete(req, rsp, req.getCore(), idField, query));
+        } else {
+            //every core deletes its own documents, so the deletes must not be forwarded to the partitions
+            deletions.add(deleteTargeted(req, rsp, req.getCore(), idField, query));
+            for (String coreName : partitionConfig.getPartitionCores(req.getCore())) {
+                try (SolrCore core = req.getCore().getCoreContainer().getCore(coreName)) {
+                    if (core == null) continue; //unloaded in the meantime
+                    deletions.add(deleteTargeted(req, rsp, core, idField, query));
+                }
+            }
+        }
+        final long deleted = deletions.stream().mapToLong(Deletion::getDeleted).sum();
+
+        final NamedList<Object> result = new SimpleOrderedMap<>();
+        result.add("rooms", Arrays.stream(rooms).filter(StringUtils::isNotBlank).distinct().count());
+        result.add("deleted", deleted);
+        result.add("QTime", System.currentTimeMillis() - start);
+        LOG.info("Deleted {} documents of rooms {} from {}", deleted, Arrays.toString(rooms), req.getCore().getName());
+        rsp.add("delete", result);
+    }
+
+    /**
+     * Deletes the documents of a core of the partitioned layout through the update chain of the core, marked as
+     * {@link ChatpalParams#PARAM_PARTITION partition} request so they are not routed again
+     */
+    private Deletion deleteTargeted(SolrQueryRequest req, SolrQueryResponse rsp, SolrCore core, SchemaField idField,
+                                    Query query) throws IOException {
+        final ModifiableSolrParams params = new ModifiableSolrParams(req.getParams());
+        params.set(ChatpalParams.PARAM_PARTITION, core.getName());
+        try (LocalSolrQueryRequest coreReq = new LocalSolrQueryRequest(core, params)) {
+            return delete(coreReq, rsp, core, idField, query);
+        }
+    }
+
+    private Deletion delete(SolrQueryRequest req, SolrQueryResponse rsp, SolrCore core, SchemaField idField,
+                            Query query) throws IOException {
+        final SolrParams params = req.getParams();
+        final UpdateRequestProcessorChain chain = core.getUpdateProcessingChain(params.get(UpdateParams.UPDATE_CHAIN));
+        final UpdateRequestProcessor processor = chain.createProcessor(req, rsp);
+        try {
+            final Deletion deletion = new Deletion(req, processor, params.getInt(UpdateParams.COMMIT_WITHIN, -1));
+            final RefCounted<SolrIndexSearcher> searcher = getLatestSearcher(core);
+            try {
+                deletion.delete(searcher.get(), idField, query);
+            } finally {
+                searcher.decref();
+            }
+
+            RequestHandlerUtils.handleCommit(req, processor, params, false);
+            processor.finish();
+            return deletion;
+        } finally {
+            processor.close();
+        }
+    }
+
+    /**
+     * The realtime searcher also contains documents not yet visible to searches
+     */
+    private static RefCounted<SolrIndexSearcher> getLatestSearcher(SolrCore core) {
+        final UpdateLog ulog = core.getUpdateHandler().getUpdateLog();
+        if (ulog == null) {
+            return core.getSearcher();
+        }
+        ulog.openRealtimeSearcher();
+        return core.getRealtimeSearcher();
+    }
+
+    Query buildQuery(SolrQueryRequest req, String[] rooms) {
+        final BooleanQuery.Builder query = new BooleanQuery.Builder();
+        query.add(new TermInSetQuery(ChatpalParams.FIELD_ROOM_ID, toTerms(req, ChatpalParams.FIELD_ROOM_ID, rooms)),
+                BooleanClause.Occur.FILTER);
+
+        final String[] types = QueryHelper.getMultiValueParam(ChatpalParams.PARAM_TYPE, req.getParams());
+        if (ArrayUtils.isNotEmpty(types)) {
+            final Set<String> typeKeys = Arrays.stream(types).filter(StringUtils::isNotBlank).collect(Collectors.toSet());
+            final String[] indexValues = Arrays.stream(DocType.values())
+                    .filter(type -> typeKeys.remove(type.getKey()))
+                    .map(DocType::getIndexVal)
+                    .toArray(String[]::new);
+            if (!typeKeys.isEmpty()) {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Unknown type(s) " + typeKeys);
+            }
+            query.add(new TermInSetQuery(ChatpalParams.FIELD_TYPE, toTerms(req, ChatpalParams.FIELD_TYPE, indexValues)),
+                    BooleanClause.Occur.FILTER);
+        }
+
+        if (tenantConfig.isEnabled()) {
+            final String field = tenantConfig.getField();
+            query.add(new TermQuery(new Term(field, toTerms(req, field, tenantConfig.getTenant(req)).get(0))),
+                    BooleanClause.Occur.FILTER);
+        }
+        return new ConstantScoreQuery(query.build());
+    }
+
+    private static List<BytesRef> toTerms(SolrQueryRequest req, String fieldName, String... values) {
+        final FieldType fieldType = req.getSchema().getFieldType(fieldName);
+        final List<BytesRef> terms = new ArrayList<>(values.length);
+        for (String value : values) {
+            if (StringUtils.isNotBlank(value)) {
+                final BytesRefBuilder term = new BytesRefBuilder();
+                fieldType.readableToIndexed(value.trim(), term);
+                terms.add(term.toBytesRef());
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Collects the ids of the matching documents and deletes them by id. The update chain only supports a single id
+     * per delete command, so every document is deleted by its own command.
+     */
+    static final class Deletion {
+
+        private final SolrQueryRequest req;
+        private final UpdateRequestProcessor processor;
+        private final int commitWithin;
+
+        private long deleted = 0;
+
+        Deletion(SolrQueryRequest req, UpdateRequestProcessor processor, int commitWithin) {
+            this.req = req;
+            this.processor = processor;
+            this.commitWithin = commitWithin;
+        }
+
+        /**
+         * Deletes the documents of the searcher matching the query
+         */
+        void delete(IndexSearcher searcher, SchemaField idField, Query query) throws IOException {
+            try {
+                searcher.search(query, new IdCollector(idField));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        long getDeleted() {
+            return deleted;
+        }
+
+        private void delete(String id) throws IOException {
+            final DeleteUpdateCommand cmd = new DeleteUpdateCommand(req);
+            cmd.setId(id);
+            cmd.commitWithin = commitWithin;
+            processor.processDelete(cmd);
+            deleted++;
+        }
+
+        private final class IdCollector extends SimpleCollector {
+
+            private final SchemaField idField;
+            private final boolean useDocValues;
+
+            private LeafReaderContext context;
+            private SortedDocValues docValues;
+
+            private IdCollector(SchemaField idField) {
+                this.idField = idField;
+                this.useDocValues = idField.hasDocValues() && idField.getType() instanceof StrField;
+            }
+
+            @Override
+            protected void doSetNextReader(LeafReaderContext context) throws IOException {
+                this.context = context;
+                this.docValues = useDocValues ? context.reader().getSortedDocValues(idField.getName()) : null;
+            }
+
+            @Override
+            public void collect(int doc) throws IOException {
+                final String id;
+                if (docValues != null) {
+                    id = docValues.advanceExact(doc) ? docValues.binaryValue().utf8ToString() : null;
+                } else {
+                    final DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(idField.getName());
+                    context.reader().document(doc, visitor);
+                    final IndexableField field = visitor.getDocument().getField(idField.getName());
+                    id = field == null ? null : idField.getType().toExternal(field);
+                }
+                if (id != null) {
+                    //deleting while collecting is fine, the searcher is a point-in-time view
+                    delete(id);
+                }
+            }
+
+            @Override
+            public boolean needsScores() {
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public String getDescription() {
+        return "Chatpal Room Deletion";
+    }
+}
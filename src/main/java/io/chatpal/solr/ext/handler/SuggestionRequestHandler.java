@@ -20,15 +20,19 @@ package io.chatpal.solr.ext.handler;
 import com.google.common.collect.ImmutableMap;
 import io.chatpal.solr.ext.ChatpalConfig;
 import io.chatpal.solr.ext.ChatpalParams;
+import io.chatpal.solr.ext.TenantConfig;
 import io.chatpal.solr.ext.logging.JsonLogMessage;
 import io.chatpal.solr.ext.logging.ReportingLogger;
+import io.chatpal.solr.ext.util.SingleFlight;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import org.apache.commons.lang3.BooleanUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.solr.common.params.CommonParams;
@@ -37,7 +41,9 @@ import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.component.SearchHandler;
+import org.apache.solr.metrics.SolrMetricManager;
 import org.apache.solr.request.LocalSolrQueryRequest;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
@@ -55,6 +61,22 @@ public class SuggestionRequestHandler extends SearchHandler {
 
     private int suggestionsSize = DEFAULT_SUGGESTION_SIZE;
 
+    private boolean coalesceRequests = true;
+
+    private TenantConfig tenantConfig = new TenantConfig();
+
+    private AdmissionControl admissionControl = AdmissionControl.UNLIMITED;
+
+    private final SingleFlight<RequestKey, List<Map>> singleFlight = new SingleFlight<>();
+
+    @Override
+    public void inform(SolrCore core) {
+        super.inform(core);
+
+        tenantConfig = TenantConfig.fromSolrConfig(core.getSolrConfig());
+        admissionControl = AdmissionControl.forCore(core);
+    }
+
     @Override
     public void init(NamedList args) {
         super.init(args);
@@ -67,14 +89,23 @@ public class SuggestionRequestHandler extends SearchHandler {
                         ChatpalConfig.CONF_SUGGESTION_SIZE, DEFAULT_SUGGESTION_SIZE);
                 suggestionsSize = DEFAULT_SUGGESTION_SIZE;
             }
+            coalesceRequests = BooleanUtils.toBooleanDefaultIfNull(
+                    BooleanUtils.toBooleanObject(Objects.toString(args.get(ChatpalConfig.CONF_COALESCE), null)), true);
         }
     }
 
+    @Override
+    public void initializeMetrics(SolrMetricManager manager, String registryName, String tag, String scope) {
+        super.initializeMetrics(manager, registryName, tag, scope);
+        CoalescingMetrics.register(this, singleFlight, manager, registryName, tag, scope);
+    }
+
     @Override
     public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
         @SuppressWarnings("squid:S1941")
         final long start = System.currentTimeMillis();
 
+        final String tenant = tenantConfig.getTenant(req);
         String text = req.getParams().get(ChatpalParams.PARAM_TEXT);
 
         if (StringUtils.isEmpty(text)) {
@@ -91,6 +122,10 @@ public class SuggestionRequestHandler extends SearchHandler {
         params.set(FacetParams.FACET_MINCOUNT, 1);
         params.set(FacetParams.FACET_LIMIT, 15);
 
+        if (tenant != null) {
+            params.add(CommonParams.FQ, tenantConfig.buildFilter(tenant));
+        }
+
         //set filter for type
         final String[] typeParams = QueryHelper.getMultiValueParam(ChatpalParams.PARAM_TYPE, req.getParams());
         if (typeParams != null) {
@@ -112,6 +147,31 @@ public class SuggestionRequestHandler extends SearchHandler {
 
         appendACLFilter(params, req);
 
+        final List<Map> suggestions;
+        if (coalesceRequests) {
+            suggestions = singleFlight.execute(RequestKey.of(req), () -> admittedSuggest(req, params, tokens));
+        } else {
+            suggestions = admittedSuggest(req, params, tokens);
+        }
+
+        //noinspection unchecked
+        rsp.getValues().add(ChatpalParams.FIELD_SUGGESTION, suggestions);
+
+        reporting.logSuggestion(JsonLogMessage.suggestionLog()
+                .setClient(tenantConfig.getClient(req))
+                .setSearchTerm(text)
+                .setQueryTime(System.currentTimeMillis() - start));
+    }
+
+    private List<Map> admittedSuggest(SolrQueryRequest req, SolrParams params, List<String> tokens) throws Exception {
+        return admissionControl.execute(AdmissionControl.Priority.HIGH, () -> suggest(req, params, tokens));
+    }
+
+    /**
+     * Collects the suggestions. As suggestions may be shared between coalesced requests
+     * the returned list is unmodifiable.
+     */
+    private List<Map> suggest(SolrQueryRequest req, SolrParams params, List<String> tokens) throws Exception {
         try (LocalSolrQueryRequest userRequest = new LocalSolrQueryRequest(req.getCore(), params)) {
             final SolrQueryResponse response = new SolrQueryResponse();
 
@@ -143,13 +203,7 @@ public class SuggestionRequestHandler extends SearchHandler {
                 if (suggestions.size() >= suggestionsSize) break;
             }
 
-            //noinspection unchecked
-            rsp.getValues().add(ChatpalParams.FIELD_SUGGESTION, suggestions);
-
-            reporting.logSuggestion(JsonLogMessage.suggestionLog()
-                    .setClient(req.getCore().getName())
-                    .setSearchTerm(text)
-                    .setQueryTime(System.currentTimeMillis() - start));
+            return Collections.unmodifiableList(suggestions);
         }
     }
 
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.chatpal.solr.ext.handler;
+
+import io.chatpal.solr.ext.DocType;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Splits a request level time budget across the queried {@link DocType}s.
+ * <p>
+ * Every type gets its weighted share of the <em>remaining</em> budget at the time its query
+ * starts. Time not used by a fast type is available to the following ones.
+ */
+class TimeBudget {
+
+    private final LongSupplier nanoClock;
+    private final long deadline;
+    private final Map<DocType, Float> weights;
+
+    TimeBudget(long timeAllowed, Map<DocType, Float> weights) {
+        this(timeAllowed, weights, System::nanoTime);
+    }
+
+    TimeBudget(long timeAllowed, Map<DocType, Float> weights, LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        this.deadline = nanoClock.getAsLong() + TimeUnit.MILLISECONDS.toNanos(timeAllowed);
+        this.weights = new EnumMap<>(DocType.class);
+        weights.forEach((type, weight) -> this.weights.put(type, Math.max(0f, weight)));
+    }
+
+    /**
+     * Allocates the share of the given type.
+     * @return the time allowed in milliseconds, at least <code>1</code> as
+     * <code>timeAllowed &lt;= 0</code> would disable the limit
+     */
+    synchronized long allocate(DocType type) {
+        final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - nanoClock.getAsLong());
+        final float totalWeight = (float) weights.values().stream().mapToDouble(Float::doubleValue).sum();
+        final Float weight = weights.remove(type);
+
+        if (remaining <= 0) {
+            return 1;
+        } else if (weight == null || totalWeight <= 0f) {
+            return remaining;
+        } else {
+            return Math.max(1, (long) (remaining * (weight / totalWeight)));
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.search.collapse;
+
+import com.carrotsearch.hppc.LongIntHashMap;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.OrdinalMap;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.LongValues;
+import org.apache.solr.schema.NumberType;
+import org.apache.solr.search.DelegatingCollector;
+import org.apache.solr.search.ExtendedQueryBase;
+import org.apache.solr.search.PostFilter;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Post filter keeping the top hits per room. The rooms are identified by the global ordinals of the room field doc
+ * values, the kept hits per room are tracked in primitive arrays while collecting. After collecting, the kept hits
+ * are passed (in index order, with their scores) to the next collector, so no second query is needed.
+ * <p>
+ * Hits without a room are not collapsed. The filter is not cacheable: the {@link RoomGroups} are only populated while
+ * collecting, so the main query must not be served from the <code>queryResultCache</code> either
+ * (<code>cache=false</code>).
+ */
+class RoomCollapseFilter extends ExtendedQueryBase implements PostFilter {
+
+    private final String field;
+    private final boolean multiValued;
+    private final int size;
+    private final String sortField;
+    private final NumberType sortType;
+    private final boolean ascending;
+    private final RoomGroups groups;
+
+    RoomCollapseFilter(String field, boolean multiValued, int size, String sortField, NumberType sortType,
+                       boolean ascending, RoomGroups groups) {
+        this.field = field;
+        this.multiValued = multiValued;
+        this.size = size;
+        this.sortField = sortField;
+        this.sortType = sortType;
+        this.ascending = ascending;
+        this.groups = groups;
+        setCache(false);
+    }
+
+    @Override
+    public int getCost() {
+        //post filters need a cost >= 100, collapse after other post filters (e.g. the facet capture saw all hits)
+        return Math.max(200, super.getCost());
+    }
+
+    @Override
+    public DelegatingCollector getFilterCollector(IndexSearcher searcher) {
+        return createCollector(((SolrIndexSearcher) searcher).getSlowAtomicReader(), searcher.getTopReaderContext());
+    }
+
+    /**
+     * @param slowReader the composite reader of the searcher, used for the global ordinals of the room field
+     * @param topContext the top reader context of the searcher
+     */
+    DelegatingCollector createCollector(LeafReader slowReader, IndexReaderContext topContext) {
+        return new CollapseCollector(slowReader, topContext.leaves());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!sameClassAs(other)) return false;
+        final RoomCollapseFilter that = (RoomCollapseFilter) other;
+        return multiValued == that.multiValued && size == that.size && ascending == that.ascending
+                && field.equals(that.field) && Objects.equals(sortField, that.sortField) && sortType == that.sortType;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(classHash(), field, multiValued, size, sortField, sortType, ascending);
+    }
+
+    @Override
+    public String toString(String defaultField) {
+        return String.format("{!%s field=%s size=%d sort='%s %s'}", RoomCollapseQParserPlugin.NAME, field, size,
+                sortField == null ? "score" : sortField, ascending ? "asc" : "desc");
+    }
+
+    private class CollapseCollector extends DelegatingCollector {
+
+        private final List<LeafReaderContext> leaves;
+        private final SortedSetDocValues globalValues;
+        private final OrdinalMap ordinalMap;
+
+        /**
+         * global ordinal to group slot
+         */
+        private final LongIntHashMap slots = new LongIntHashMap();
+        private long[] slotOrds = new long[16];
+        private int[] counts = new int[16];
+        /**
+         * the kept hits, <code>size</code> entries per slot
+         */
+        private int[] docs = new int[16 * size];
+        private float[] scores = new float[16 * size];
+        private double[] keys = new double[16 * size];
+
+        /**
+         * hits without a room
+         */
+        private int[] ungrouped = new int[16];
+        private float[] ungroupedScores = new float[16];
+        private int numUngrouped = 0;
+
+        private SortedSetDocValues segmentValues;
+        private LongValues segmentToGlobal;
+        private SortedNumericDocValues sortValues;
+
+        private CollapseCollector(LeafReader slowReader, List<LeafReaderContext> leaves) {
+            this.leaves = leaves;
+            try {
+                if (multiValued) {
+                    globalValues = DocValues.getSortedSet(slowReader, field);
+                    ordinalMap = globalValues instanceof MultiDocValues.MultiSortedSetDocValues ?
+                            ((MultiDocValues.MultiSortedSetDocValues) globalValues).mapping : null;
+                } else {
+                    final SortedDocValues sorted = DocValues.getSorted(slowReader, field);
+                    globalValues = DocValues.singleton(sorted);
+                    ordinalMap = sorted instanceof MultiDocValues.MultiSortedDocValues ?
+                            ((MultiDocValues.MultiSortedDocValues) sorted).mapping : null;
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to read the doc values of " + field, e);
+            }
+        }
+
+        @Override
+        public boolean needsScores() {
+            return sortField == null || super.needsScores();
+        }
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) throws IOException {
+            //the kept hits are passed on in finish()
+            this.context = context;
+            this.docBase = context.docBase;
+            segmentValues = DocValues.getSortedSet(context.reader(), field);
+            segmentToGlobal = ordinalMap == null ? LongValues.IDENTITY : ordinalMap.getGlobalOrds(context.ord);
+            sortValues = sortField == null ? null : DocValues.getSortedNumeric(context.reader(), sortField);
+        }
+
+        @Override
+        public void setScorer(Scorer scorer) {
+            this.scorer = scorer;
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            final float score = scorer == null ? 0f : scorer.score();
+            final int globalDoc = docBase + doc;
+            if (!segmentValues.advanceExact(doc)) {
+                if (numUngrouped == ungrouped.length) {
+                    ungrouped = ArrayUtil.grow(ungrouped);
+                    ungroupedScores = ArrayUtil.grow(ungroupedScores, ungrouped.length);
+                }
+                ungrouped[numUngrouped] = globalDoc;
+                ungroupedScores[numUngrouped++] = score;
+                return;
+            }
+            final long ord = segmentToGlobal.get(segmentValues.nextOrd());
+            final double key;
+            if (sortValues == null) {
+                key = score;
+            } else if (sortValues.advanceExact(doc)) {
+                key = RoomCollapseQParserPlugin.toSortKey(sortValues.nextValue(), sortType, ascending);
+            } else {
+                key = Double.NEGATIVE_INFINITY;
+            }
+
+            int slot = slots.getOrDefault(ord, -1);
+            if (slot < 0) {
+                slot = slots.size();
+                slots.put(ord, slot);
+                if (slot == counts.length) {
+                    counts = ArrayUtil.grow(counts);
+                    slotOrds = Arrays.copyOf(slotOrds, counts.length);
+                    docs = Arrays.copyOf(docs, counts.length * size);
+                    scores = Arrays.copyOf(scores, counts.length * size);
+                    keys = Arrays.copyOf(keys, counts.length * size);
+                }
+                slotOrds[slot] = ord;
+            }
+            final int kept = Math.min(counts[slot]++, size);
+            final int offset = slot * size;
+            int target = -1;
+            if (kept < size) {
+                target = offset + kept;
+            } else {
+                //replace the lowest ranked hit (the first one on ties, as later hits lose ties)
+                int lowest = offset;
+                for (int i = offset + 1; i < offset + size; i++) {
+                    if (keys[i] < keys[lowest]) {
+                        lowest = i;
+                    }
+                }
+                if (key > keys[lowest]) {
+                    target = lowest;
+                }
+            }
+            if (target >= 0) {
+                docs[target] = globalDoc;
+                scores[target] = score;
+                keys[target] = key;
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            final int numKept = numUngrouped + keptCount();
+            final long[] kept = new long[numKept];
+            int n = 0;
+            for (int i = 0; i < numUngrouped; i++) {
+                kept[n++] = ((long) ungrouped[i] << 32) | i;
+            }
+            final int numSlots = slots.size();
+            for (int slot = 0; slot < numSlots; slot++) {
+                final int slotKept = Math.min(counts[slot], size);
+                final int[] slotDocs = new int[slotKept];
+                for (int i = 0; i < slotKept; i++) {
+                    slotDocs[i] = docs[slot * size + i];
+                    kept[n++] = ((long) slotDocs[i] << 32) | (numUngrouped + slot * size + i);
+                }
+                groups.add(globalValues.lookupOrd(slotOrds[slot]).utf8ToString(), counts[slot], slotDocs);
+            }
+            //index order, the lower 32 bits point to the score
+            Arrays.sort(kept);
+
+            final ReplayScorer replayScorer = new ReplayScorer();
+            int leaf = -1;
+            int leafEnd = 0;
+            LeafCollector leafCollector = null;
+            for (long entry : kept) {
+                final int doc = (int) (entry >>> 32);
+                final int index = (int) entry;
+                while (doc >= leafEnd) {
+                    leaf++;
+                    final LeafReaderContext leafContext = leaves.get(leaf);
+                    leafEnd = leafContext.docBase + leafContext.reader().maxDoc();
+                    this.context = leafContext;
+                    this.docBase = leafContext.docBase;
+                    leafCollector = getDelegateLeafCollector(leafContext, replayScorer);
+                }
+                if (leafCollector == null) {
+                    //the delegate terminated the collection of this segment
+                    continue;
+                }
+                replayScorer.doc = doc - docBase;
+                replayScorer.score = index < numUngrouped ? ungroupedScores[index] : scores[index - numUngrouped];
+                try {
+                    leafCollector.collect(doc - docBase);
+                } catch (CollectionTerminatedException e) {
+                    leafCollector = null;
+                }
+            }
+            super.finish();
+        }
+
+        /**
+         * @return the leaf collector of the delegate or <code>null</code> if it does not need the hits of the segment
+         */
+        private LeafCollector getDelegateLeafCollector(LeafReaderContext leafContext, Scorer scorer) throws IOException {
+            try {
+                final LeafCollector leafCollector = delegate.getLeafCollector(leafContext);
+                leafCollector.setScorer(scorer);
+                return leafCollector;
+            } catch (CollectionTerminatedException e) {
+                return null;
+            }
+        }
+
+        private int keptCount() {
+            int count = 0;
+            for (int slot = 0; slot < slots.size(); slot++) {
+                count += Math.min(counts[slot], size);
+            }
+            return count;
+        }
+    }
+
+    private static final class ReplayScorer extends Scorer {
+
+        private int doc = -1;
+        private float score;
+
+        private ReplayScorer() {
+            super(null);
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public float score() {
+            return score;
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
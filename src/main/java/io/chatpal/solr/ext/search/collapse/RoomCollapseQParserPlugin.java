@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.search.collapse;
+
+import io.chatpal.solr.ext.ChatpalParams;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.NumberType;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.StrField;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.SyntaxError;
+
+/**
+ * Parses <code>{!chatpal_collapse size=2 sort='updated desc'}</code> into a {@link RoomCollapseFilter} that keeps
+ * the top <code>size</code> hits per room (<code>field</code>, default <code>rid</code>). Hits are ranked by score or
+ * by the parsed numeric doc values field. The number of hits per room is available as {@link RoomGroups} in the
+ * request context ({@link #CONTEXT_GROUPS}). Register it in the {@code solrconfig.xml}:
+ * <pre>
+ * &lt;queryParser name="chatpal_collapse" class="io.chatpal.solr.ext.search.collapse.RoomCollapseQParserPlugin"/&gt;
+ * </pre>
+ */
+public class RoomCollapseQParserPlugin extends QParserPlugin {
+
+    public static final String NAME = "chatpal_collapse";
+
+    public static final String CONTEXT_GROUPS = RoomGroups.class.getName();
+
+    public static final String PARAM_FIELD = "field";
+    public static final String PARAM_SIZE = "size";
+    public static final String PARAM_SORT = "sort";
+
+    public static final int MAX_SIZE = 10;
+
+    @Override
+    public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+        return new QParser(qstr, localParams, params, req) {
+            @Override
+            public Query parse() throws SyntaxError {
+                final SchemaField field = getField(localParams.get(PARAM_FIELD, ChatpalParams.FIELD_ROOM_ID));
+                if (!(field.getType() instanceof StrField)) {
+                    throw new SyntaxError(NAME + " requires a string field, but was " + field.getName());
+                }
+                final int size = localParams.getInt(PARAM_SIZE, 1);
+                if (size < 1 || size > MAX_SIZE) {
+                    throw new SyntaxError(String.format("%s %s must be in [1..%d]", NAME, PARAM_SIZE, MAX_SIZE));
+                }
+
+                SchemaField sortField = null;
+                boolean ascending = false;
+                final String sort = StringUtils.trimToNull(localParams.get(PARAM_SORT));
+                if (sort != null && !StringUtils.startsWith(sort, "score ") && !"score".equals(sort)) {
+                    final String[] parts = StringUtils.split(sort);
+                    sortField = getField(parts[0]);
+                    if (sortField.getType().getNumberType() == null || sortField.multiValued()) {
+                        throw new SyntaxError(NAME + " can only sort by a single valued numeric field, but was " + parts[0]);
+                    }
+                    ascending = parts.length > 1 && "asc".equalsIgnoreCase(parts[1]);
+                }
+
+                final RoomGroups groups = new RoomGroups();
+                req.getContext().put(CONTEXT_GROUPS, groups);
+                return new RoomCollapseFilter(field.getName(), field.multiValued(), size,
+                        sortField == null ? null : sortField.getName(),
+                        sortField == null ? null : sortField.getType().getNumberType(), ascending, groups);
+            }
+
+            private SchemaField getField(String name) throws SyntaxError {
+                final SchemaField field = req.getSchema().getFieldOrNull(name);
+                if (field == null || !field.hasDocValues()) {
+                    throw new SyntaxError(NAME + " requires a field with docValues, but was " + name);
+                }
+                return field;
+            }
+        };
+    }
+
+    /**
+     * Maps doc values to a sort key, greater is better
+     */
+    static double toSortKey(long value, NumberType numberType, boolean ascending) {
+        final double key;
+        if (numberType == NumberType.FLOAT) {
+            key = Float.intBitsToFloat((int) value);
+        } else if (numberType == NumberType.DOUBLE) {
+            key = Double.longBitsToDouble(value);
+        } else {
+            key = value;
+        }
+        return ascending ? -key : key;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.search.collapse;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The rooms and the number of hits per room of the documents kept by a {@link RoomCollapseFilter}.
+ */
+public final class RoomGroups {
+
+    private final Map<Integer, String> rooms = new HashMap<>();
+    private final Map<String, Integer> counts = new HashMap<>();
+
+    void add(String room, int count, int[] docs) {
+        counts.put(room, count);
+        for (int doc : docs) {
+            rooms.put(doc, room);
+        }
+    }
+
+    /**
+     * @param doc the (global) id of a kept document
+     * @return the room or <code>null</code> if the document has none
+     */
+    public String getRoom(int doc) {
+        return rooms.get(doc);
+    }
+
+    /**
+     * @return the number of hits of the room (before collapsing)
+     */
+    public int getCount(String room) {
+        return counts.getOrDefault(room, 0);
+    }
+}
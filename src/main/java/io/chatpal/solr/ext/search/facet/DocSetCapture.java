@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.search.facet;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.OrdinalMap;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.LongValues;
+import org.apache.lucene.util.PriorityQueue;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import java.io.IOException;
+
+/**
+ * The hits of all doc types of a Chatpal request as a single doc set. Field facets are counted once on the
+ * union, using the global ordinals of the field doc values and a primitive count array.
+ * <p>
+ * All captured queries MUST use the same searcher.
+ */
+public final class DocSetCapture {
+
+    public static final String CONTEXT_KEY = DocSetCapture.class.getName();
+
+    private final IndexSearcher searcher;
+    private final LeafReader slowReader;
+    private final FixedBitSet docs;
+
+    public DocSetCapture(SolrIndexSearcher searcher) {
+        this(searcher, searcher.getSlowAtomicReader());
+    }
+
+    /**
+     * @param slowReader the composite reader of the searcher, used for the global ordinals of the facet fields
+     */
+    public DocSetCapture(IndexSearcher searcher, LeafReader slowReader) {
+        this.searcher = searcher;
+        this.slowReader = slowReader;
+        this.docs = new FixedBitSet(Math.max(1, searcher.getIndexReader().maxDoc()));
+    }
+
+    void checkSearcher(IndexSearcher searcher) {
+        if (searcher != this.searcher) {
+            throw new IllegalStateException("Captured queries must use the searcher " + this.searcher);
+        }
+    }
+
+    /**
+     * Adds a hit found without a query (e.g. by an in-memory index of the same searcher)
+     * @param doc the global doc id
+     */
+    public void add(int doc) {
+        docs.set(doc);
+    }
+
+    /**
+     * @return the number of captured hits
+     */
+    public int size() {
+        return docs.cardinality();
+    }
+
+    /**
+     * Counts the values of a field with (string) doc values over the captured hits.
+     * @param limit the maximum number of values (most frequent first), <code>&lt;= 0</code> for all
+     * @param minCount the minimum count of returned values
+     */
+    public NamedList<Integer> facet(SchemaField field, int limit, int minCount) throws IOException {
+        if (!field.hasDocValues()) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Facets require docValues for " + field.getName());
+        }
+
+        //numeric doc values have no ordinals
+        final FieldInfo fieldInfo = slowReader.getFieldInfos().fieldInfo(field.getName());
+        final DocValuesType docValuesType = fieldInfo == null ? DocValuesType.NONE : fieldInfo.getDocValuesType();
+        if (docValuesType != DocValuesType.NONE && docValuesType != DocValuesType.SORTED
+                && docValuesType != DocValuesType.SORTED_SET) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("Facets require string docValues, but %s has %s", field.getName(), docValuesType));
+        }
+
+        final SortedSetDocValues globalValues;
+        final OrdinalMap ordinalMap;
+        if (docValuesType == DocValuesType.SORTED_SET) {
+            globalValues = DocValues.getSortedSet(slowReader, field.getName());
+            ordinalMap = globalValues instanceof MultiDocValues.MultiSortedSetDocValues ?
+                    ((MultiDocValues.MultiSortedSetDocValues) globalValues).mapping : null;
+        } else {
+            final SortedDocValues sorted = DocValues.getSorted(slowReader, field.getName());
+            globalValues = DocValues.singleton(sorted);
+            ordinalMap = sorted instanceof MultiDocValues.MultiSortedDocValues ?
+                    ((MultiDocValues.MultiSortedDocValues) sorted).mapping : null;
+        }
+
+        final int[] counts = new int[(int) globalValues.getValueCount()];
+        for (LeafReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+            final int maxDoc = leaf.docBase + leaf.reader().maxDoc();
+            if (leaf.docBase >= docs.length()) break;
+            int doc = docs.nextSetBit(leaf.docBase);
+            if (doc == DocIdSetIterator.NO_MORE_DOCS || doc >= maxDoc) continue;
+
+            final SortedSetDocValues values = DocValues.getSortedSet(leaf.reader(), field.getName());
+            final LongValues toGlobal = ordinalMap == null ? LongValues.IDENTITY : ordinalMap.getGlobalOrds(leaf.ord);
+            while (doc < maxDoc) {
+                if (values.advanceExact(doc - leaf.docBase)) {
+                    for (long ord = values.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = values.nextOrd()) {
+                        counts[(int) toGlobal.get(ord)]++;
+                    }
+                }
+                if (doc + 1 >= docs.length()) break;
+                doc = docs.nextSetBit(doc + 1);
+            }
+        }
+
+        //top values by count, ties by value
+        final PriorityQueue<long[]> top = new PriorityQueue<long[]>(Math.max(1, limit <= 0 ? counts.length : Math.min(limit, counts.length))) {
+            @Override
+            protected boolean lessThan(long[] a, long[] b) {
+                return a[1] < b[1] || (a[1] == b[1] && a[0] > b[0]);
+            }
+        };
+        for (int ord = 0; ord < counts.length; ord++) {
+            if (counts[ord] >= Math.max(1, minCount)) {
+                top.insertWithOverflow(new long[]{ord, counts[ord]});
+            }
+        }
+        final long[][] sorted = new long[top.size()][];
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            sorted[i] = top.pop();
+        }
+        final NamedList<Integer> result = new SimpleOrderedMap<>();
+        for (long[] entry : sorted) {
+            result.add(globalValues.lookupOrd(entry[0]).utf8ToString(), (int) entry[1]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.search.facet;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.DelegatingCollector;
+import org.apache.solr.search.ExtendedQueryBase;
+import org.apache.solr.search.PostFilter;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QParserPlugin;
+
+import java.io.IOException;
+
+/**
+ * Parses <code>{!chatpal_capture}</code> into a post filter that records all hits of the query in the
+ * {@link DocSetCapture} of the request context ({@link DocSetCapture#CONTEXT_KEY}) while the main query is
+ * collected. Register it in the {@code solrconfig.xml}:
+ * <pre>
+ * &lt;queryParser name="chatpal_capture" class="io.chatpal.solr.ext.search.facet.DocSetCaptureQParserPlugin"/&gt;
+ * </pre>
+ */
+public class DocSetCaptureQParserPlugin extends QParserPlugin {
+
+    public static final String NAME = "chatpal_capture";
+
+    /**
+     * runs before other post filters (e.g. collapsing), so all hits are captured
+     */
+    private static final int COST = 100;
+
+    @Override
+    public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+        return new QParser(qstr, localParams, params, req) {
+            @Override
+            public Query parse() {
+                final DocSetCapture capture = (DocSetCapture) req.getContext().get(DocSetCapture.CONTEXT_KEY);
+                if (capture == null) {
+                    throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, NAME + " requires a DocSetCapture in the request context");
+                }
+                return new CaptureFilter(capture);
+            }
+        };
+    }
+
+    private static final class CaptureFilter extends ExtendedQueryBase implements PostFilter {
+
+        private final DocSetCapture capture;
+
+        private CaptureFilter(DocSetCapture capture) {
+            this.capture = capture;
+            setCache(false);
+        }
+
+        @Override
+        public int getCost() {
+            return COST;
+        }
+
+        @Override
+        public DelegatingCollector getFilterCollector(IndexSearcher searcher) {
+            capture.checkSearcher(searcher);
+            return new DelegatingCollector() {
+                @Override
+                public void collect(int doc) throws IOException {
+                    capture.add(docBase + doc);
+                    super.collect(doc);
+                }
+            };
+        }
+
+        /**
+         * NOTE: the filter has no params, so all capture filters are equal. The hits are only captured if the
+         * query is collected, so the main query must bypass the <code>queryResultCache</code> (<code>cache=false</code>).
+         */
+        @Override
+        public boolean equals(Object other) {
+            return sameClassAs(other);
+        }
+
+        @Override
+        public int hashCode() {
+            return classHash();
+        }
+
+        @Override
+        public String toString(String defaultField) {
+            return "{!" + NAME + "}";
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.search.function;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.queries.function.docvalues.FloatDocValues;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Recency decay calculated directly on the (numeric) doc values of a date field.
+ * <p>
+ * The value is the same as {@code recip(ms(now,field),m,a,b)} - so {@code a/(m*(now-field)+b)} -
+ * but without the generic function tree in between. As {@code now} is fixed at parse time
+ * (and usually rounded) two requests within the same time slot produce equal queries, what
+ * allows Solr to reuse cached results.
+ */
+public class RecencyValueSource extends ValueSource {
+
+    private final String field;
+    private final long now;
+    private final float m;
+    private final float a;
+    private final float b;
+
+    public RecencyValueSource(String field, long now, float m, float a, float b) {
+        this.field = Objects.requireNonNull(field, "field");
+        this.now = now;
+        this.m = m;
+        this.a = a;
+        this.b = b;
+    }
+
+    @Override
+    public FunctionValues getValues(Map context, LeafReaderContext readerContext) throws IOException {
+        final NumericDocValues values = DocValues.getNumeric(readerContext.reader(), field);
+        return new FloatDocValues(this) {
+            private int lastDocID = -1;
+
+            @Override
+            public float floatVal(int doc) throws IOException {
+                if (doc < lastDocID) {
+                    throw new IllegalArgumentException("docs were sent out-of-order: lastDocID=" + lastDocID + " vs docID=" + doc);
+                }
+                lastDocID = doc;
+                //NOTE: missing values are treated as 0 (same as ms(NOW,field) does)
+                final long value = values.advanceExact(doc) ? values.longValue() : 0L;
+                return a / (m * (float) (now - value) + b);
+            }
+
+            @Override
+            public boolean exists(int doc) {
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        final RecencyValueSource that = (RecencyValueSource) o;
+        return now == that.now &&
+                Float.compare(that.m, m) == 0 &&
+                Float.compare(that.a, a) == 0 &&
+                Float.compare(that.b, b) == 0 &&
+                field.equals(that.field);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(field, now, m, a, b);
+    }
+
+    @Override
+    public String description() {
+        return String.format("%s(%s,%d,%s,%s,%s)", RecencyValueSourceParser.NAME, field, now, m, a, b);
+    }
+}
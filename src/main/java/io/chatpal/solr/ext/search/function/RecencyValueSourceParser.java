@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.search.function;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.search.FunctionQParser;
+import org.apache.solr.search.SyntaxError;
+import org.apache.solr.search.ValueSourceParser;
+import org.apache.solr.util.DateMathParser;
+
+/**
+ * Parses {@code chatpal_recency(field,now,m,a,b)} into a {@link RecencyValueSource}.
+ * <p>
+ * {@code now} is either a timestamp (ms) or a date-math expression like {@code NOW/HOUR}.
+ * Register it in the {@code solrconfig.xml}:
+ * <pre>
+ * &lt;valueSourceParser name="chatpal_recency" class="io.chatpal.solr.ext.search.function.RecencyValueSourceParser"/&gt;
+ * </pre>
+ */
+public class RecencyValueSourceParser extends ValueSourceParser {
+
+    public static final String NAME = "chatpal_recency";
+
+    @Override
+    public ValueSource parse(FunctionQParser fp) throws SyntaxError {
+        final String field = fp.parseArg();
+        final String now = fp.parseArg();
+        if (field == null || now == null) {
+            throw new SyntaxError("Expected " + NAME + "(field,now,m,a,b)");
+        }
+        final float m = fp.parseFloat();
+        final float a = fp.parseFloat();
+        final float b = fp.parseFloat();
+
+        return new RecencyValueSource(field, parseNow(now), m, a, b);
+    }
+
+    private long parseNow(String now) throws SyntaxError {
+        if (NumberUtils.isDigits(now)) {
+            return Long.parseLong(now);
+        }
+        try {
+            return DateMathParser.parseMath(null, now).getTime();
+        } catch (SolrException e) {
+            throw new SyntaxError("Unable to parse '" + now + "' as date-math", e);
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.tools;
+
+import io.chatpal.solr.ext.handler.BulkImportRequestHandler;
+import io.chatpal.solr.ext.update.processor.IdGenerationFieldUpdateProcessorFactory;
+import io.chatpal.solr.ext.update.processor.LanguageFieldUpdateProcessorFactory;
+import io.chatpal.solr.ext.util.BoundedWorkers;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.core.PluginInfo;
+import org.apache.solr.core.SolrConfig;
+import org.apache.solr.core.SolrResourceLoader;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequestBase;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.IndexSchemaFactory;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.SortSpecParsing;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.DocumentBuilder;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorChain;
+import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+import org.noggit.ObjectBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Builds a core directory from an NDJSON export (one document per line) without a running Solr. The field
+ * derivations of the {@link IdGenerationFieldUpdateProcessorFactory} and {@link LanguageFieldUpdateProcessorFactory}
+ * are read from the update chain of the <code>solrconfig.xml</code>. Documents are indexed by several
+ * {@link IndexWriter}s in parallel and merged into <code>[output]/data/index</code>; the <code>conf</code>
+ * directory is copied, so the output is ready to be loaded and swapped with the live core.
+ * <pre>
+ * java -cp "chatpal-solr-ext.jar:[solr]/server/solr-webapp/webapp/WEB-INF/lib/*:[solr]/server/lib/ext/*" \
+ *     io.chatpal.solr.ext.tools.OfflineIndexBuilder --instance-dir [core] --output [dir] export.ndjson.gz
+ * </pre>
+ */
+public class OfflineIndexBuilder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OfflineIndexBuilder.class);
+
+    private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+    private Path instanceDir;
+    private Path output;
+    private String coreName;
+    private String chainName;
+    private String shardField = "id";
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int queueSize = 1000;
+    private double ramBufferMB = 256;
+    private int maxSegments = 0;
+    private final ModifiableSolrParams params = new ModifiableSolrParams();
+    private final List<String> inputs = new ArrayList<>();
+
+    private IndexSchema schema;
+    private SolrConfig solrConfig;
+    private final List<UpdateRequestProcessorFactory> derivations = new ArrayList<>();
+    private Sort indexSort;
+
+    private final AtomicLong indexed = new AtomicLong();
+    private final AtomicLong version = new AtomicLong(System.currentTimeMillis() << 20);
+
+    public static void main(String[] args) throws Exception {
+        final OfflineIndexBuilder builder = new OfflineIndexBuilder();
+        try {
+            builder.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage();
+            System.exit(1);
+        }
+        builder.build();
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: OfflineIndexBuilder --instance-dir <core instance dir> --output <dir> [options] <export.ndjson[.gz]|->...");
+        System.err.println("  --name <core name>        write a core.properties with the parsed name");
+        System.err.println("  --chain <name>            update chain to read the field derivations from (default: the default chain)");
+        System.err.println("  --param <name>=<value>    request parameter used by the derivations (e.g. language=en)");
+        System.err.println("  --threads <n>             number of parallel index writers (default: number of processors)");
+        System.err.println("  --shard-field <field>     documents with the same value use the same writer (default: id)");
+        System.err.println("  --ram-buffer <mb>         RAM buffer per index writer (default: 256)");
+        System.err.println("  --max-segments <n>        force merge the index to n segments (default: no force merge)");
+    }
+
+    void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.startsWith("--")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                final String value = args[++i];
+                switch (arg) {
+                    case "--instance-dir": instanceDir = Paths.get(value); break;
+                    case "--output": output = Paths.get(value); break;
+                    case "--name": coreName = value; break;
+                    case "--chain": chainName = value; break;
+                    case "--shard-field": shardField = value; break;
+                    case "--threads": threads = Math.max(1, Integer.parseInt(value)); break;
+                    case "--ram-buffer": ramBufferMB = Double.parseDouble(value); break;
+                    case "--max-segments": maxSegments = Integer.parseInt(value); break;
+                    case "--param":
+                        if (!value.contains("=")) {
+                            throw new IllegalArgumentException("Invalid parameter (name=value expected): " + value);
+                        }
+                        params.add(StringUtils.substringBefore(value, "="), StringUtils.substringAfter(value, "="));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            } else {
+                inputs.add(arg);
+            }
+        }
+        if (instanceDir == null || output == null || inputs.isEmpty()) {
+            throw new IllegalArgumentException("--instance-dir, --output and at least one input are required");
+        }
+    }
+
+    Path getInstanceDir() {
+        return instanceDir;
+    }
+
+    Path getOutput() {
+        return output;
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    ModifiableSolrParams getParams() {
+        return params;
+    }
+
+    List<String> getInputs() {
+        return inputs;
+    }
+
+    void build() throws Exception {
+        final Path dataDir = output.resolve("data");
+        if (Files.exists(dataDir)) {
+            throw new IllegalStateException("Output already contains a data directory: " + dataDir);
+        }
+        loadConfig();
+
+        final long start = System.currentTimeMillis();
+        final Path tmpDir = output.resolve("tmp");
+        final List<Worker> workers = new ArrayList<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < threads; i++) {
+                workers.add(new Worker(tmpDir.resolve("part-" + i)));
+            }
+            final BoundedWorkers<SolrInputDocument> queues = new BoundedWorkers<>(executor, threads, queueSize, workers::get);
+            for (String input : inputs) {
+                read(input, queues);
+            }
+            queues.finish();
+        } finally {
+            executor.shutdownNow();
+        }
+        LOG.info("Indexed {} documents in {}ms, merging {} parts", indexed.get(), System.currentTimeMillis() - start, threads);
+
+        try (Directory target = FSDirectory.open(dataDir.resolve("index"));
+             IndexWriter writer = new IndexWriter(target, createIndexWriterConfig())) {
+            final List<Directory> parts = new ArrayList<>();
+            try {
+                for (Worker worker : workers) {
+                    parts.add(FSDirectory.open(worker.dir));
+                }
+                writer.addIndexes(parts.toArray(new Directory[0]));
+            } finally {
+                for (Directory part : parts) {
+                    part.close();
+                }
+            }
+            if (maxSegments > 0) {
+                writer.forceMerge(maxSegments);
+            }
+            writer.commit();
+        }
+        FileUtils.deleteDirectory(tmpDir.toFile());
+
+        FileUtils.copyDirectory(instanceDir.resolve("conf").toFile(), output.resolve("conf").toFile());
+        if (coreName != null) {
+            try (Writer writer = Files.newBufferedWriter(output.resolve("core.properties"), StandardCharsets.UTF_8)) {
+                writer.write("name=" + coreName + "\n");
+            }
+        }
+        LOG.info("Built {} with {} documents in {}ms", output, indexed.get(), System.currentTimeMillis() - start);
+    }
+
+    private void loadConfig() throws Exception {
+        final SolrResourceLoader loader = new SolrResourceLoader(instanceDir);
+        solrConfig = new SolrConfig(loader, SolrConfig.DEFAULT_CONF_FILE, null);
+        schema = IndexSchemaFactory.buildIndexSchema(IndexSchema.DEFAULT_SCHEMA_FILE, solrConfig);
+        if (schema.getUniqueKeyField() == null) {
+            throw new IllegalStateException("The schema does not define a uniqueKey");
+        }
+
+        final PluginInfo mergePolicy = solrConfig.indexConfig.mergePolicyFactoryInfo;
+        if (mergePolicy != null && mergePolicy.initArgs.get("sort") != null) {
+            indexSort = SortSpecParsing.parseSortSpec(mergePolicy.initArgs.get("sort").toString(), schema).getSort();
+        }
+
+        final PluginInfo chain = getChain();
+        if (chain == null) {
+            LOG.warn("No update chain {} found, documents are indexed as is", StringUtils.defaultString(chainName, "(default)"));
+            return;
+        }
+        for (PluginInfo processor : chain.getChildren("processor")) {
+            final UpdateRequestProcessorFactory factory;
+            if (IdGenerationFieldUpdateProcessorFactory.class.getName().equals(processor.className)) {
+                factory = new IdGenerationFieldUpdateProcessorFactory();
+            } else if (LanguageFieldUpdateProcessorFactory.class.getName().equals(processor.className)) {
+                factory = new LanguageFieldUpdateProcessorFactory();
+            } else {
+                LOG.info("Ignoring update processor {}", processor.className);
+                continue;
+            }
+            factory.init(processor.initArgs);
+            derivations.add(factory);
+        }
+    }
+
+    private PluginInfo getChain() {
+        for (PluginInfo chain : solrConfig.getPluginInfos(UpdateRequestProcessorChain.class.getName())) {
+            if (chainName == null ? chain.isDefault() : chainName.equals(chain.name)) {
+                return chain;
+            }
+        }
+        return null;
+    }
+
+    private IndexWriterConfig createIndexWriterConfig() {
+        final IndexWriterConfig config = new IndexWriterConfig(schema.getIndexAnalyzer());
+        //NOTE: the schema similarity requires a core, norms are encoded the same way by all lucene similarities
+        config.setRAMBufferSizeMB(ramBufferMB);
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        config.setUseCompoundFile(solrConfig.indexConfig.useCompoundFile);
+        if (indexSort != null) {
+            config.setIndexSort(indexSort);
+        }
+        return config;
+    }
+
+    private void read(String input, BoundedWorkers<SolrInputDocument> workers) throws IOException, InterruptedException, ExecutionException {
+        long lines = 0;
+        long lastProgress = System.currentTimeMillis();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(open(input), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                if (StringUtils.isBlank(line)) continue;
+
+                final SolrInputDocument doc;
+                try {
+                    doc = BulkImportRequestHandler.toDocument(ObjectBuilder.fromJSON(line));
+                } catch (IOException | SolrException e) {
+                    throw new IOException(String.format("Invalid document in %s line %d: %s", input, lines, e.getMessage()), e);
+                }
+                final Object shardValue = doc.getFieldValue(shardField);
+                workers.add(shardValue, doc);
+
+                final long now = System.currentTimeMillis();
+                if (now - lastProgress >= PROGRESS_INTERVAL) {
+                    lastProgress = now;
+                    LOG.info("{}: {} lines read, {} documents indexed", input, lines, indexed.get());
+                }
+            }
+        }
+    }
+
+    private InputStream open(String input) throws IOException {
+        final InputStream in = "-".equals(input) ? System.in : Files.newInputStream(Paths.get(input));
+        return input.endsWith(".gz") ? new GZIPInputStream(in) : in;
+    }
+
+    /**
+     * Indexes the documents of its queue into its own index
+     */
+    private final class Worker implements BoundedWorkers.Worker<SolrInputDocument> {
+
+        private final Path dir;
+
+        private Worker(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        public void run(BoundedWorkers.Items<SolrInputDocument> items) throws IOException, InterruptedException {
+            final SolrQueryRequest req = new SolrQueryRequestBase(null, params) {
+                @Override
+                public IndexSchema getSchema() {
+                    return OfflineIndexBuilder.this.schema;
+                }
+            };
+            try (Directory directory = FSDirectory.open(dir);
+                 IndexWriter writer = new IndexWriter(directory, createIndexWriterConfig())) {
+                UpdateRequestProcessor processor = new IndexWriterProcessor(writer);
+                for (int i = derivations.size() - 1; i >= 0; i--) {
+                    processor = derivations.get(i).getInstance(req, new SolrQueryResponse(), processor);
+                }
+
+                SolrInputDocument doc;
+                while ((doc = items.next()) != null) {
+                    final AddUpdateCommand cmd = new AddUpdateCommand(req);
+                    cmd.solrDoc = doc;
+                    processor.processAdd(cmd);
+                }
+                processor.finish();
+                writer.commit();
+            }
+        }
+    }
+
+    /**
+     * The last processor: adds the document to the index writer
+     */
+    private final class IndexWriterProcessor extends UpdateRequestProcessor {
+
+        private final IndexWriter writer;
+        private final SchemaField versionField = schema.getFieldOrNull(CommonParams.VERSION_FIELD);
+
+        private IndexWriterProcessor(IndexWriter writer) {
+            super(null);
+            this.writer = writer;
+        }
+
+        @Override
+        public void processAdd(AddUpdateCommand cmd) throws IOException {
+            if (versionField != null) {
+                cmd.solrDoc.setField(versionField.getName(), version.incrementAndGet());
+            }
+            writer.updateDocument(new Term(schema.getUniqueKeyField().getName(), cmd.getIndexedId()),
+                    DocumentBuilder.toDocument(cmd.solrDoc, schema));
+            indexed.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.update.processor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Coalesces commit requests into scheduled soft commits. A request is visible after at most
+ * {@link #getMaxDelay() maxDelay} ms; requests arriving while a commit is scheduled join it. The delay of explicit
+ * commits adapts to the time needed to open (and warm) a searcher, so searchers are not opened faster than they
+ * can be warmed.
+ */
+final class CommitCoalescer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CommitCoalescer.class);
+
+    /**
+     * The delay is a multiple of the (smoothed) commit duration
+     */
+    private static final int DELAY_FACTOR = 4;
+    private static final double SMOOTHING = 0.3;
+
+    interface CommitAction {
+        void commit() throws Exception;
+    }
+
+    private final long minDelay;
+    private final long maxDelay;
+    private final CommitAction action;
+    private final ScheduledExecutorService executor;
+    /**
+     * the current time in ms
+     */
+    private final LongSupplier clock;
+
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicLong executed = new AtomicLong();
+
+    private ScheduledFuture<?> scheduled = null;
+    private long scheduledAt = 0;
+    private double commitDuration = 0;
+    private volatile long delay;
+
+    CommitCoalescer(long minDelay, long maxDelay, CommitAction action, ScheduledExecutorService executor) {
+        this(minDelay, maxDelay, action, executor, System::currentTimeMillis);
+    }
+
+    CommitCoalescer(long minDelay, long maxDelay, CommitAction action, ScheduledExecutorService executor, LongSupplier clock) {
+        this.minDelay = Math.max(0, minDelay);
+        this.maxDelay = Math.max(this.minDelay, maxDelay);
+        this.action = action;
+        this.executor = executor;
+        this.clock = clock;
+        this.delay = this.minDelay;
+    }
+
+    /**
+     * Requests the visibility of the changes
+     * @param within the requested delay in ms (<code>commitWithin</code>) or <code>-1</code> for an
+     *               explicit commit (uses the adaptive delay)
+     */
+    synchronized void request(long within) {
+        requested.incrementAndGet();
+        final long requestDelay = Math.min(within < 0 ? delay : Math.max(within, delay), maxDelay);
+        final long deadline = clock.getAsLong() + requestDelay;
+        if (scheduled != null) {
+            if (scheduledAt <= deadline) {
+                return; //the scheduled commit makes the changes visible in time
+            }
+            scheduled.cancel(false);
+        }
+        scheduledAt = deadline;
+        scheduled = executor.schedule(this::commit, requestDelay, TimeUnit.MILLISECONDS);
+    }
+
+    private void commit() {
+        synchronized (this) {
+            scheduled = null;
+        }
+        final long start = clock.getAsLong();
+        boolean success = false;
+        try {
+            action.commit();
+            success = true;
+        } catch (Exception e) {
+            LOG.error("Scheduled soft commit failed", e);
+        }
+        final long duration = Math.max(0, clock.getAsLong() - start);
+        synchronized (this) {
+            commitDuration = commitDuration == 0 ? duration : SMOOTHING * duration + (1 - SMOOTHING) * commitDuration;
+            delay = Math.max(minDelay, Math.min(maxDelay, (long) (commitDuration * DELAY_FACTOR)));
+        }
+        if (success) {
+            executed.incrementAndGet();
+        }
+    }
+
+    long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * The current delay of explicit commits
+     */
+    long getDelay() {
+        return delay;
+    }
+
+    long getRequested() {
+        return requested.get();
+    }
+
+    long getExecuted() {
+        return executed.get();
+    }
+
+    /**
+     * The number of requests that did not need a commit of their own
+     */
+    long getAvoided() {
+        return Math.max(0, requested.get() - executed.get());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.update.processor;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.AbstractSolrEventListener;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoBean;
+import org.apache.solr.metrics.SolrMetricManager;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.CommitUpdateCommand;
+import org.apache.solr.update.DeleteUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+import org.apache.solr.util.plugin.SolrCoreAware;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * Captures explicit commits and <code>commitWithin</code> of update requests and coalesces them into scheduled
+ * soft commits (see {@link CommitCoalescer}). Changes are visible after at most <code>maxDelay</code> ms.
+ * <p>
+ * Optimize, expunge deletes and commits without opening a searcher are passed on. Captured hard commits are
+ * replaced by soft commits, so durability needs to be ensured by the <code>autoCommit</code> of the update handler.
+ * The core metrics contain <code>UPDATE.chatpal.commits.requested</code>, <code>executed</code>,
+ * <code>avoided</code>, <code>delay</code> and the <code>searcherOpens</code> rate.
+ */
+public class CommitCoalescingUpdateProcessorFactory extends UpdateRequestProcessorFactory implements SolrCoreAware {
+
+    private static final String MIN_DELAY = "minDelay";
+    private static final String MAX_DELAY = "maxDelay";
+    private static final String CAPTURE_HARD_COMMITS = "captureHardCommits";
+
+    private long minDelay = 100;
+    private long maxDelay = 1000;
+    private boolean captureHardCommits = true;
+
+    private CommitCoalescer coalescer;
+
+    public CommitCoalescingUpdateProcessorFactory() { }
+
+    CommitCoalescingUpdateProcessorFactory(CommitCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    @Override
+    public void init(NamedList args) {
+        super.init(args);
+
+        minDelay = NumberUtils.toLong(Objects.toString(args.get(MIN_DELAY), null), minDelay);
+        maxDelay = NumberUtils.toLong(Objects.toString(args.get(MAX_DELAY), null), maxDelay);
+        captureHardCommits = Boolean.parseBoolean(Objects.toString(args.get(CAPTURE_HARD_COMMITS), String.valueOf(captureHardCommits)));
+    }
+
+    @Override
+    public void inform(SolrCore core) {
+        final ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(1,
+                new DefaultSolrThreadFactory("chatpalCommitCoalescer"));
+        coalescer = new CommitCoalescer(minDelay, maxDelay, () -> softCommit(core), executor);
+        core.addCloseHook(new CloseHook() {
+            @Override
+            public void preClose(SolrCore core) {
+                ExecutorUtil.shutdownAndAwaitTermination(executor);
+            }
+
+            @Override
+            public void postClose(SolrCore core) {
+                //nothing to do
+            }
+        });
+
+        final SolrMetricManager manager = core.getCoreContainer().getMetricManager();
+        final String registry = core.getCoreMetricManager().getRegistryName();
+        final String category = SolrInfoBean.Category.UPDATE.toString();
+        manager.registerGauge(null, registry, (Gauge<Long>) coalescer::getRequested,
+                core.getMetricTag(), true, "requested", category, "chatpal", "commits");
+        manager.registerGauge(null, registry, (Gauge<Long>) coalescer::getExecuted,
+                core.getMetricTag(), true, "executed", category, "chatpal", "commits");
+        manager.registerGauge(null, registry, (Gauge<Long>) coalescer::getAvoided,
+                core.getMetricTag(), true, "avoided", category, "chatpal", "commits");
+        manager.registerGauge(null, registry, (Gauge<Long>) coalescer::getDelay,
+                core.getMetricTag(), true, "delay", category, "chatpal", "commits");
+        final Meter searcherOpens = manager.meter(null, registry, "searcherOpens", category, "chatpal", "commits");
+        core.registerNewSearcherListener(new AbstractSolrEventListener(core) {
+            @Override
+            public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+                searcherOpens.mark();
+            }
+        });
+    }
+
+    private static void softCommit(SolrCore core) throws IOException {
+        try (LocalSolrQueryRequest req = new LocalSolrQueryRequest(core, new ModifiableSolrParams())) {
+            final CommitUpdateCommand cmd = new CommitUpdateCommand(req, false);
+            cmd.softCommit = true;
+            cmd.openSearcher = true;
+            cmd.waitSearcher = true;
+            core.getUpdateHandler().commit(cmd);
+        }
+    }
+
+    @Override
+    public UpdateRequestProcessor getInstance(SolrQueryRequest req, SolrQueryResponse rsp, UpdateRequestProcessor next) {
+        if (coalescer == null) {
+            return next;
+        }
+        return new UpdateRequestProcessor(next) {
+            @Override
+            public void processAdd(AddUpdateCommand cmd) throws IOException {
+                final int commitWithin = cmd.commitWithin;
+                cmd.commitWithin = -1;
+                super.processAdd(cmd);
+                //requested once the document is in the index writer, the scheduled commit may fire immediately
+                if (commitWithin >= 0) {
+                    coalescer.request(commitWithin);
+                }
+            }
+
+            @Override
+            public void processDelete(DeleteUpdateCommand cmd) throws IOException {
+                final int commitWithin = cmd.commitWithin;
+                cmd.commitWithin = -1;
+                super.processDelete(cmd);
+                if (commitWithin >= 0) {
+                    coalescer.request(commitWithin);
+                }
+            }
+
+            @Override
+            public void processCommit(CommitUpdateCommand cmd) throws IOException {
+                if (cmd.optimize || cmd.expungeDeletes || cmd.prepareCommit || !cmd.openSearcher
+                        || (!cmd.softCommit && !captureHardCommits)) {
+                    super.processCommit(cmd);
+                } else {
+                    coalescer.request(-1);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.update.processor;
+
+import com.codahale.metrics.Counter;
+import io.chatpal.solr.ext.ChatpalParams;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.util.Hash;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoBean;
+import org.apache.solr.handler.component.RealTimeGetComponent;
+import org.apache.solr.metrics.SolrMetricManager;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.DirectUpdateHandler2;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+import org.apache.solr.util.plugin.SolrCoreAware;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Drops updates that do not change the indexed content of a document. A stable 64bit hash of the
+ * {@link #FIELDS hashed fields} is stored in the {@link #HASH_FIELD hash field} (a non-stored <code>plong</code>
+ * with docValues). If the hash of an update equals the hash of the current version of the document (read by
+ * real-time-get from the update log or the docValues of the index), the update is skipped. By default all fields
+ * except the {@link #EXCLUDE_FIELDS excluded fields} (default <code>updated</code>) are hashed, so a new
+ * modification time alone does not cause a write.
+ * <p>
+ * Needs to be configured after all processors changing the indexed fields (e.g. the
+ * {@link IdGenerationFieldUpdateProcessorFactory}). Atomic updates and updates with a <code>_version_</code>
+ * (optimistic concurrency) are always written. For skipped updates the <code>commitWithin</code> is still scheduled,
+ * as the current version may not be visible yet.
+ * <p>
+ * NOTE: the version lock of a document is held by the <code>DistributedUpdateProcessor</code>. Configured before it,
+ * the check and the skip are not atomic: an update may be skipped because it equals the current version while a
+ * concurrent update of the same document is still written, so the concurrent update wins regardless of the order of
+ * the requests. Configured after it (an explicit <code>solr.DistributedUpdateProcessorFactory</code>), every replica
+ * checks under the version lock; the version assigned by the leader is not treated as optimistic concurrency.
+ * The core metrics contain the <code>UPDATE.chatpal.dedup.skipped</code> and <code>written</code> counters.
+ */
+public class ContentHashUpdateProcessorFactory extends UpdateRequestProcessorFactory implements SolrCoreAware {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContentHashUpdateProcessorFactory.class);
+
+    private static final String HASH_FIELD = "hashField";
+    private static final String FIELDS = "fields";
+    private static final String EXCLUDE_FIELDS = "excludeFields";
+    private static final String DEFAULT_EXCLUDE_FIELDS = ChatpalParams.FIELD_UPDATED;
+
+    private static final char FIELD_SEPARATOR = '\u0000';
+    private static final char VALUE_SEPARATOR = '\u0001';
+
+    private String hashField = "content_hash";
+    /**
+     * the hashed fields in a stable order or <code>null</code> to hash all fields
+     */
+    private List<String> fields = null;
+    private final Set<String> excludeFields = new HashSet<>(Collections.singleton(CommonParams.VERSION_FIELD));
+
+    private boolean enabled = false;
+
+    private Counter skipped = new Counter();
+    private Counter written = new Counter();
+
+    public ContentHashUpdateProcessorFactory() {
+    }
+
+    ContentHashUpdateProcessorFactory(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public void init(NamedList args) {
+        super.init(args);
+
+        hashField = Objects.toString(args.get(HASH_FIELD), hashField);
+        final String fieldsConf = Objects.toString(args.get(FIELDS), null);
+        if (StringUtils.isNotBlank(fieldsConf)) {
+            fields = new ArrayList<>(Arrays.asList(StringUtils.split(fieldsConf, ", ")));
+            Collections.sort(fields);
+        }
+        //an empty value hashes all fields
+        final String excludeConf = Objects.toString(args.get(EXCLUDE_FIELDS), DEFAULT_EXCLUDE_FIELDS);
+        if (StringUtils.isNotBlank(excludeConf)) {
+            excludeFields.addAll(Arrays.asList(StringUtils.split(excludeConf, ", ")));
+        }
+        excludeFields.add(hashField);
+    }
+
+    @Override
+    public void inform(SolrCore core) {
+        final SchemaField field = core.getLatestSchema().getFieldOrNull(hashField);
+        enabled = field != null && field.hasDocValues() && core.getUpdateHandler().getUpdateLog() != null;
+        if (!enabled) {
+            LOG.warn("Content hash deduplication disabled for {}: requires the docValues field '{}' and the update log",
+                    core.getName(), hashField);
+            return;
+        }
+
+        final SolrMetricManager manager = core.getCoreContainer().getMetricManager();
+        final String registry = core.getCoreMetricManager().getRegistryName();
+        final String category = SolrInfoBean.Category.UPDATE.toString();
+        skipped = manager.counter(null, registry, "skipped", category, "chatpal", "dedup");
+        written = manager.counter(null, registry, "written", category, "chatpal", "dedup");
+    }
+
+    @Override
+    public UpdateRequestProcessor getInstance(SolrQueryRequest req, SolrQueryResponse rsp, UpdateRequestProcessor next) {
+        if (!enabled) {
+            return next;
+        }
+        return new UpdateRequestProcessor(next) {
+
+            private final StringBuilder builder = new StringBuilder();
+
+            @Override
+            public void processAdd(AddUpdateCommand cmd) throws IOException {
+                final BytesRef id = isAtomicUpdate(cmd.solrDoc) ? null : cmd.getIndexedId();
+                if (id != null) {
+                    final long hash = hash(cmd.solrDoc, builder);
+                    if (!hasVersionConstraint(cmd) && Objects.equals(getStoredHash(req.getCore(), id), hash)) {
+                        if (cmd.commitWithin > 0) {
+                            scheduleCommitWithin(req.getCore(), cmd.commitWithin);
+                        }
+                        skipped.inc();
+                        return;
+                    }
+                    cmd.solrDoc.setField(hashField, hash);
+                }
+                written.inc();
+                super.processAdd(cmd);
+            }
+        };
+    }
+
+    /**
+     * The hash of the current version of the document (update log or index)
+     * @return the hash or <code>null</code> if the document does not exist or does not have a hash
+     */
+    Long getStoredHash(SolrCore core, BytesRef id) throws IOException {
+        final SolrInputDocument stored = RealTimeGetComponent.getInputDocument(core, id, null,
+                true, Collections.singleton(hashField), false);
+        if (stored == null || stored == RealTimeGetComponent.DELETED) {
+            return null;
+        }
+        final Object value = stored.getFieldValue(hashField);
+        return value instanceof Number ? ((Number) value).longValue() : null;
+    }
+
+    /**
+     * Schedules the <code>commitWithin</code> of a skipped update like the update handler does for written ones
+     */
+    void scheduleCommitWithin(SolrCore core, int commitWithin) {
+        if (!(core.getUpdateHandler() instanceof DirectUpdateHandler2)) return;
+
+        final DirectUpdateHandler2 updateHandler = (DirectUpdateHandler2) core.getUpdateHandler();
+        if (core.getSolrConfig().getUpdateHandlerInfo().commitWithinSoftCommit) {
+            updateHandler.getSoftCommitTracker().scheduleCommitWithin(commitWithin);
+        } else {
+            updateHandler.getCommitTracker().scheduleCommitWithin(commitWithin);
+        }
+    }
+
+    /**
+     * Computes the hash of the parsed document
+     * @param builder used to build the canonical form of the document. Reset before use
+     */
+    long hash(SolrInputDocument doc, StringBuilder builder) {
+        builder.setLength(0);
+        final Iterable<String> names;
+        if (fields != null) {
+            names = fields;
+        } else {
+            final List<String> docFields = new ArrayList<>(doc.getFieldNames());
+            Collections.sort(docFields);
+            names = docFields;
+        }
+        for (String name : names) {
+            final SolrInputField field = doc.getField(name);
+            if (field == null || excludeFields.contains(name)) continue;
+
+            builder.append(name).append(FIELD_SEPARATOR);
+            for (Object value : field) {
+                if (value instanceof Date) {
+                    builder.append(((Date) value).getTime());
+                } else {
+                    builder.append(value);
+                }
+                builder.append(VALUE_SEPARATOR);
+            }
+            builder.append(FIELD_SEPARATOR);
+        }
+        return Hash.lookup3ycs64(builder, 0, builder.length(), 0);
+    }
+
+    /**
+     * @return <code>true</code> if the update requires a version of the document (optimistic concurrency), which
+     * needs to be checked by the update handler. Behind the <code>DistributedUpdateProcessor</code> the command
+     * carries the version assigned by the leader, the constraint is already checked in this case.
+     */
+    private boolean hasVersionConstraint(AddUpdateCommand cmd) {
+        if (cmd.getVersion() != 0) {
+            return false;
+        }
+        final Object version = cmd.solrDoc.getFieldValue(CommonParams.VERSION_FIELD);
+        return version != null && NumberUtils.toLong(version.toString(), 0) != 0;
+    }
+
+    private boolean isAtomicUpdate(SolrInputDocument doc) {
+        for (SolrInputField field : doc) {
+            if (field.getFirstValue() instanceof Map) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
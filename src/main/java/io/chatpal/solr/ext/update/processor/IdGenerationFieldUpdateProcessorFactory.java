@@ -16,12 +16,11 @@
  */
 package io.chatpal.solr.ext.update.processor;
 
-import org.apache.commons.lang3.StringUtils;
 import org.apache.solr.common.SolrException;
-import org.apache.solr.common.SolrInputField;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.update.AddUpdateCommand;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
@@ -29,21 +28,22 @@ import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
 
 import java.io.IOException;
 import java.util.Objects;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class IdGenerationFieldUpdateProcessorFactory extends UpdateRequestProcessorFactory {
 
     private static final String CONF_TARGET = "targetField";
     private static final String CONF_PATTERN = "pattern";
 
-    private static final Pattern REGEX = Pattern.compile("(?<!\\\\)\\{([^:}]+)(?::([^}]*))?}");
-
     private String targetField;
-    private String pattern;
+    private IdTemplate template;
 
     private boolean multiValued = false;
 
+    /**
+     * The target field resolved for the schema it was looked up in (re-resolved if the schema changes)
+     */
+    private volatile ResolvedTarget resolvedTarget = new ResolvedTarget(null, null);
+
     @Override
     public void init(NamedList args) {
         super.init(args);
@@ -53,44 +53,54 @@ public class IdGenerationFieldUpdateProcessorFactory extends UpdateRequestProces
             throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Missing configuration: " + CONF_TARGET);
         }
 
-        pattern = Objects.toString(args.get(CONF_PATTERN), null);
+        final String pattern = Objects.toString(args.get(CONF_PATTERN), null);
         if (pattern == null) {
             throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Missing configuration: " + CONF_PATTERN);
         }
+        template = IdTemplate.compile(pattern);
     }
 
     @Override
     public UpdateRequestProcessor getInstance(SolrQueryRequest req, SolrQueryResponse rsp, UpdateRequestProcessor next) {
+        final SchemaField target = getTargetField(req.getSchema());
+        if (target == null) {
+            return next;
+        }
         return new UpdateRequestProcessor(next) {
+
+            private final StringBuilder builder = new StringBuilder();
+
             @Override
             public void processAdd(AddUpdateCommand cmd) throws IOException {
-                final SchemaField target = req.getSchema().getFieldOrNull(targetField);
-                if (target != null) {
-                    final Matcher matcher = REGEX.matcher(pattern);
-                    final StringBuffer result = new StringBuffer();
-                    while (matcher.find()) {
-                        final String g0 = matcher.group();
-                        final String fName = matcher.group(1);
-                        final String fallback = StringUtils.defaultString(matcher.group(2), g0);
-
-                        final SolrInputField field = cmd.solrDoc.getField(fName);
-                        if (field != null) {
-                            matcher.appendReplacement(result, String.valueOf(field.getFirstValue()));
-                        } else {
-                            matcher.appendReplacement(result, fallback);
-                        }
-                    }
-                    matcher.appendTail(result);
-
-                    if (target.multiValued() && multiValued) {
-                        cmd.solrDoc.addField(target.getName(), result.toString());
-                    } else {
-                        cmd.solrDoc.setField(target.getName(), result.toString());
-                    }
+                final String id = template.render(cmd.solrDoc, builder);
+
+                if (target.multiValued() && multiValued) {
+                    cmd.solrDoc.addField(target.getName(), id);
+                } else {
+                    cmd.solrDoc.setField(target.getName(), id);
                 }
 
                 super.processAdd(cmd);
             }
         };
     }
+
+    private SchemaField getTargetField(IndexSchema schema) {
+        ResolvedTarget resolved = resolvedTarget;
+        if (resolved.schema != schema) {
+            resolved = new ResolvedTarget(schema, schema.getFieldOrNull(targetField));
+            resolvedTarget = resolved;
+        }
+        return resolved.field;
+    }
+
+    private static final class ResolvedTarget {
+        private final IndexSchema schema;
+        private final SchemaField field;
+
+        private ResolvedTarget(IndexSchema schema, SchemaField field) {
+            this.schema = schema;
+            this.field = field;
+        }
+    }
 }
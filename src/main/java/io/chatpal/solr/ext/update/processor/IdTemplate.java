@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.update.processor;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A precompiled id pattern such as <code>{type}_{id:unknown}</code>: <code>{field}</code> is replaced by the
+ * first value of the field, <code>{field:fallback}</code> uses the fallback if the field is missing. Placeholders
+ * of missing fields without fallback are kept as is, escaped braces (<code>\{</code>) are not replaced.
+ * <p>
+ * Instances are immutable and thread-safe.
+ */
+public final class IdTemplate {
+
+    private static final Pattern REGEX = Pattern.compile("(?<!\\\\)\\{([^:}]+)(?::([^}]*))?}");
+
+    private final String pattern;
+    private final List<Segment> segments;
+
+    private IdTemplate(String pattern, List<Segment> segments) {
+        this.pattern = pattern;
+        this.segments = Collections.unmodifiableList(segments);
+    }
+
+    public static IdTemplate compile(String pattern) {
+        final List<Segment> segments = new ArrayList<>();
+        final Matcher matcher = REGEX.matcher(pattern);
+        int pos = 0;
+        while (matcher.find()) {
+            if (matcher.start() > pos) {
+                segments.add(new Segment(null, pattern.substring(pos, matcher.start())));
+            }
+            segments.add(new Segment(matcher.group(1),
+                    StringUtils.defaultString(matcher.group(2), matcher.group())));
+            pos = matcher.end();
+        }
+        if (pos < pattern.length()) {
+            segments.add(new Segment(null, pattern.substring(pos)));
+        }
+        return new IdTemplate(pattern, segments);
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Renders the id of the parsed document
+     * @param doc the document
+     * @param builder the builder used to render the id. It is {@link StringBuilder#setLength(int) reset}
+     *                before use, so it can be reused for several documents
+     * @return the id
+     */
+    public String render(SolrInputDocument doc, StringBuilder builder) {
+        builder.setLength(0);
+        for (Segment segment : segments) {
+            if (segment.field == null) {
+                builder.append(segment.text);
+            } else {
+                final SolrInputField field = doc.getField(segment.field);
+                if (field != null) {
+                    builder.append(field.getFirstValue());
+                } else {
+                    builder.append(segment.text);
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    public String render(SolrInputDocument doc) {
+        return render(doc, new StringBuilder(pattern.length() + 32));
+    }
+
+    @Override
+    public String toString() {
+        return "IdTemplate{" + pattern + "}";
+    }
+
+    /**
+     * A literal text (<code>field == null</code>) or a field reference with the fallback as text
+     */
+    private static final class Segment {
+        private final String field;
+        private final String text;
+
+        private Segment(String field, String text) {
+            this.field = field;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.update.processor;
+
+import io.chatpal.solr.ext.ChatpalParams;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputField;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+import org.apache.solr.util.plugin.SolrCoreAware;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Detects the language of the {@link #FIELD text} of documents without a {@link #LANGUAGE_FIELD language}
+ * by using a {@link TrigramLanguageModel}. If the language can not be detected with the configured
+ * {@link #THRESHOLD confidence}, the {@link ChatpalParams#PARAM_LANG language} parameter of the request
+ * (default: {@link ChatpalParams#LANG_NONE none}) is used.
+ * <p>
+ * Only languages with a {@link #TARGET target field} (default <code>text_*</code>) in the schema are detected, the
+ * candidates are the configured {@link #LANGUAGES languages} or all languages of the model.
+ * <p>
+ * Needs to be configured before the {@link LanguageFieldUpdateProcessorFactory}.
+ */
+public class LanguageDetectionUpdateProcessorFactory extends UpdateRequestProcessorFactory implements SolrCoreAware {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LanguageDetectionUpdateProcessorFactory.class);
+
+    private static final String FIELD = "field";
+    private static final String LANGUAGE_FIELD = "languageField";
+    private static final String LANGUAGES = "languages";
+    private static final String TARGET = "target";
+    private static final String MODEL = "model";
+    private static final String THRESHOLD = "threshold";
+    private static final String MIN_TRIGRAMS = "minTrigrams";
+    private static final String MAX_CHARS = "maxChars";
+
+    private String field = "text";
+    private String languageField = ChatpalParams.PARAM_LANG;
+    private Set<String> languages = Collections.emptySet();
+    private String targetFieldPattern = "text_*";
+    private String modelResource = TrigramLanguageModel.DEFAULT_MODEL;
+    private float threshold = 0.9f;
+    private int minTrigrams = 5;
+    private int maxChars = 1000;
+
+    private TrigramLanguageModel model;
+
+    private volatile Candidates candidates = new Candidates(null, Collections.emptySet());
+
+    @Override
+    public void init(NamedList args) {
+        super.init(args);
+
+        field = Objects.toString(args.get(FIELD), field);
+        languageField = Objects.toString(args.get(LANGUAGE_FIELD), languageField);
+        targetFieldPattern = Objects.toString(args.get(TARGET), targetFieldPattern);
+        modelResource = Objects.toString(args.get(MODEL), modelResource);
+        threshold = NumberUtils.toFloat(Objects.toString(args.get(THRESHOLD), null), threshold);
+        minTrigrams = NumberUtils.toInt(Objects.toString(args.get(MIN_TRIGRAMS), null), minTrigrams);
+        maxChars = NumberUtils.toInt(Objects.toString(args.get(MAX_CHARS), null), maxChars);
+
+        final String languagesConf = Objects.toString(args.get(LANGUAGES), null);
+        if (StringUtils.isNotBlank(languagesConf)) {
+            languages = Arrays.stream(StringUtils.split(languagesConf, ", "))
+                    .collect(Collectors.toCollection(HashSet::new));
+        }
+    }
+
+    @Override
+    public void inform(SolrCore core) {
+        try (InputStream in = core.getResourceLoader().openResource(modelResource)) {
+            model = TrigramLanguageModel.load(in);
+        } catch (IOException e) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Unable to load language model " + modelResource, e);
+        }
+        if (!model.getLanguages().containsAll(languages)) {
+            LOG.warn("Languages {} are not supported by the language model {}", languages, modelResource);
+        }
+    }
+
+    @Override
+    public UpdateRequestProcessor getInstance(SolrQueryRequest req, SolrQueryResponse rsp, UpdateRequestProcessor next) {
+        final String fallback = req.getParams().get(ChatpalParams.PARAM_LANG, ChatpalParams.LANG_NONE);
+        final Set<String> schemaLanguages = getCandidates(req.getSchema());
+        //an empty candidate set would detect all languages of the model
+        final TrigramLanguageModel.Detector detector = schemaLanguages.isEmpty() ? null
+                : model.newDetector(schemaLanguages, threshold, minTrigrams, maxChars);
+
+        return new UpdateRequestProcessor(next) {
+            @Override
+            public void processAdd(AddUpdateCommand cmd) throws IOException {
+                final SolrInputField language = cmd.solrDoc.getField(languageField);
+                if (language == null || StringUtils.isBlank(Objects.toString(language.getFirstValue(), null))) {
+                    final SolrInputField text = cmd.solrDoc.getField(field);
+                    final Object value = text == null ? null : text.getFirstValue();
+                    final String detected = detector != null && value instanceof CharSequence
+                            ? detector.detect((CharSequence) value) : null;
+                    cmd.solrDoc.setField(languageField, detected != null ? detected : fallback);
+                }
+
+                super.processAdd(cmd);
+            }
+        };
+    }
+
+    private Set<String> getCandidates(IndexSchema schema) {
+        Candidates resolved = candidates;
+        if (resolved.schema != schema) {
+            resolved = new Candidates(schema, getCandidates(model.getLanguages(), f -> schema.getFieldOrNull(f) != null));
+            candidates = resolved;
+        }
+        return resolved.languages;
+    }
+
+    /**
+     * @param modelLanguages the languages of the model
+     * @param isField checks if a field is part of the schema
+     * @return the configured languages (all languages of the model if not configured) with a target field
+     */
+    Set<String> getCandidates(Collection<String> modelLanguages, Predicate<String> isField) {
+        return (languages.isEmpty() ? modelLanguages : languages).stream()
+                .filter(lang -> isField.test(targetFieldPattern.replace("*", lang)))
+                .collect(Collectors.toSet());
+    }
+
+    private static final class Candidates {
+        private final IndexSchema schema;
+        private final Set<String> languages;
+
+        private Candidates(IndexSchema schema, Set<String> languages) {
+            this.schema = schema;
+            this.languages = languages;
+        }
+    }
+}
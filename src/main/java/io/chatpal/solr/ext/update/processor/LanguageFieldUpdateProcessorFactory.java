@@ -17,26 +17,49 @@
 package io.chatpal.solr.ext.update.processor;
 
 import io.chatpal.solr.ext.ChatpalParams;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.SolrInputField;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
 import org.apache.solr.update.AddUpdateCommand;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
 import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Moves the {@link #SOURCE source} field to the language specific {@link #TARGET target} field (e.g.
+ * <code>text</code> to <code>text_en</code>). The language is read from the {@link #LANGUAGE_FIELD language field}
+ * of the document and defaults to the {@link ChatpalParams#PARAM_LANG language} parameter of the request, so
+ * documents of different languages can be sent in a single update request. Target fields not present in the
+ * schema are ignored.
+ */
 public class LanguageFieldUpdateProcessorFactory extends UpdateRequestProcessorFactory {
 
     private static final String SOURCE = "source";
     private static final String TARGET = "target";
+    private static final String LANGUAGE_FIELD = "languageField";
+
+    private static final int MAX_CACHED_LANGUAGES = 256;
 
     private String sourceField;
     private String targetFieldPattern;
     private boolean isPrefix;
+    private String languageField = ChatpalParams.PARAM_LANG;
+
+    /**
+     * The target fields by language, resolved for the schema they were looked up in
+     */
+    private volatile TargetFields targetFields = new TargetFields(null);
 
     @Override
     public void init(NamedList args) {
@@ -52,28 +75,27 @@ public class LanguageFieldUpdateProcessorFactory extends UpdateRequestProcessorF
             throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Missing configuration: " + TARGET);
         }
         isPrefix = !targetFieldPattern.contains("*");
+
+        languageField = Objects.toString(args.get(LANGUAGE_FIELD), languageField);
     }
 
     @Override
     public UpdateRequestProcessor getInstance(final SolrQueryRequest req, final SolrQueryResponse rsp,
                                               final UpdateRequestProcessor next) {
-        final String lang = req.getParams().get(ChatpalParams.PARAM_LANG, ChatpalParams.LANG_NONE);
+        final String reqLang = req.getParams().get(ChatpalParams.PARAM_LANG, ChatpalParams.LANG_NONE);
+        final TargetFields targets = getTargetFields(req.getSchema());
+        final boolean keepLanguageField = req.getSchema().getFieldOrNull(languageField) != null;
 
         return new UpdateRequestProcessor(next) {
             @Override
             public void processAdd(AddUpdateCommand cmd) throws IOException {
+                final String lang = getLanguage(cmd.solrDoc, reqLang, keepLanguageField);
                 final SolrInputField field = cmd.solrDoc.getField(sourceField);
 
                 if (field != null) {
-                    final String targetField;
-                    if (isPrefix) {
-                        targetField = targetFieldPattern + lang;
-                    } else {
-                        targetField = targetFieldPattern.replace("*", lang);
-                    }
-
-                    if (req.getSchema().getFieldOrNull(targetField) != null) {
-                        cmd.solrDoc.setField(targetField, field.getValue());
+                    final SchemaField targetField = targets.get(lang);
+                    if (targetField != null) {
+                        cmd.solrDoc.setField(targetField.getName(), field.getValue());
                     }
 
                     cmd.solrDoc.removeField(sourceField);
@@ -84,4 +106,62 @@ public class LanguageFieldUpdateProcessorFactory extends UpdateRequestProcessorF
         };
     }
 
+    /**
+     * The language of the document, the parsed default if the document does not define a language. The
+     * language field is removed from the document if it is not part of the schema.
+     */
+    private String getLanguage(SolrInputDocument doc, String defaultLang, boolean keepLanguageField) {
+        final SolrInputField field = keepLanguageField ? doc.getField(languageField) : doc.removeField(languageField);
+        final String lang = field == null ? null : StringUtils.trimToNull(Objects.toString(field.getFirstValue(), null));
+        return lang == null ? defaultLang : lang;
+    }
+
+    private TargetFields getTargetFields(IndexSchema schema) {
+        TargetFields resolved = targetFields;
+        if (resolved.schema != schema) {
+            resolved = new TargetFields(schema);
+            targetFields = resolved;
+        }
+        return resolved;
+    }
+
+    /**
+     * @return the number of cached languages of the target fields of the parsed schema
+     */
+    int getCachedLanguages(IndexSchema schema) {
+        return getTargetFields(schema).fields.size();
+    }
+
+    private String buildTargetField(String lang) {
+        if (isPrefix) {
+            return targetFieldPattern + lang;
+        } else {
+            return targetFieldPattern.replace("*", lang);
+        }
+    }
+
+    private final class TargetFields {
+        private final IndexSchema schema;
+        private final Map<String, Optional<SchemaField>> fields = new ConcurrentHashMap<>();
+
+        private TargetFields(IndexSchema schema) {
+            this.schema = schema;
+        }
+
+        /**
+         * @return the target field for the parsed language or <code>null</code> if it is not part of the schema
+         */
+        private SchemaField get(String lang) {
+            final Optional<SchemaField> field = fields.get(lang);
+            if (field != null) {
+                return field.orElse(null);
+            }
+            final Optional<SchemaField> resolved = Optional.ofNullable(schema.getFieldOrNull(buildTargetField(lang)));
+            //languages are parsed by clients, so do not let invalid values grow the cache
+            if (fields.size() < MAX_CACHED_LANGUAGES) {
+                fields.put(lang, resolved);
+            }
+            return resolved.orElse(null);
+        }
+    }
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.update.processor;
+
+import io.chatpal.solr.ext.ChatpalParams;
+import io.chatpal.solr.ext.TenantConfig;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.component.RealTimeGetComponent;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.DeleteUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+import org.apache.solr.util.plugin.SolrCoreAware;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Objects;
+
+/**
+ * Assigns documents to the tenant parsed by the {@link ChatpalParams#PARAM_TENANT} parameter if
+ * the multi-tenant mode is enabled (see {@link TenantConfig}). Updates without the parameter are rejected.
+ * Adds of an id stored for another tenant are rejected, delete-by-query requests are restricted to the documents
+ * of the tenant and delete-by-id requests have no effect on documents of other tenants. The stored tenant is read
+ * from the doc values of the tenant field, so the field requires <code>docValues</code>.
+ * <p>
+ * With time partitions it also needs to be part of the partition chain, as deletes by id are checked against
+ * the documents of the core they are executed on.
+ * <p>
+ * Needs to be configured before the {@link IdGenerationFieldUpdateProcessorFactory} so that
+ * the tenant can be used in the id pattern (e.g. <code>{tenant}_{type}_{id}</code>). Ids generated after this
+ * processor can not be checked, so the pattern must contain the tenant.
+ */
+public class TenantFieldUpdateProcessorFactory extends UpdateRequestProcessorFactory implements SolrCoreAware {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TenantFieldUpdateProcessorFactory.class);
+
+    private TenantConfig tenantConfig = new TenantConfig();
+
+    public TenantFieldUpdateProcessorFactory() { }
+
+    TenantFieldUpdateProcessorFactory(TenantConfig tenantConfig) {
+        this.tenantConfig = tenantConfig;
+    }
+
+    @Override
+    public void inform(SolrCore core) {
+        tenantConfig = TenantConfig.fromSolrConfig(core.getSolrConfig());
+        if (tenantConfig.isEnabled()) {
+            checkTenantField(core.getLatestSchema());
+        }
+    }
+
+    /**
+     * The stored tenant is read without the stored fields, so without doc values the ownership checks
+     * would silently pass.
+     */
+    void checkTenantField(IndexSchema schema) {
+        final SchemaField field = schema.getFieldOrNull(tenantConfig.getField());
+        if (field == null || !field.hasDocValues()) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                    "Multi-tenant mode requires the docValues field '" + tenantConfig.getField() + "'");
+        }
+    }
+
+    @Override
+    public UpdateRequestProcessor getInstance(SolrQueryRequest req, SolrQueryResponse rsp, UpdateRequestProcessor next) {
+        if (!tenantConfig.isEnabled()) {
+            return next;
+        }
+        return new UpdateRequestProcessor(next) {
+            @Override
+            public void processAdd(AddUpdateCommand cmd) throws IOException {
+                //the tenant of the request always wins, a tenant sent with the document is overwritten
+                final String tenant = tenantConfig.getTenant(req);
+                cmd.solrDoc.setField(tenantConfig.getField(), tenant);
+
+                //without an id it is generated later on (with the tenant in the pattern)
+                final SchemaField uniqueKey = req.getSchema().getUniqueKeyField();
+                if (uniqueKey != null && cmd.solrDoc.getFieldValue(uniqueKey.getName()) != null) {
+                    final String owner = getStoredTenant(req.getCore(), cmd.getIndexedId());
+                    if (owner != null && !owner.equals(tenant)) {
+                        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                                String.format("Document %s belongs to another tenant", cmd.getPrintableId()));
+                    }
+                }
+
+                super.processAdd(cmd);
+            }
+
+            @Override
+            public void processDelete(DeleteUpdateCommand cmd) throws IOException {
+                final String tenant = tenantConfig.getTenant(req);
+                if (cmd.isDeleteById()) {
+                    final String owner = getStoredTenant(req.getCore(), cmd.getIndexedId());
+                    if (owner != null && !owner.equals(tenant)) {
+                        LOGGER.debug("Ignoring delete of {} by tenant {}: document of tenant {}", cmd.getId(), tenant, owner);
+                        return;
+                    }
+                } else {
+                    cmd.setQuery(buildTenantQuery(tenant, cmd.getQuery()));
+                }
+
+                super.processDelete(cmd);
+            }
+        };
+    }
+
+    /**
+     * The tenant of the current version of a document (including uncommitted updates).
+     * @return the tenant or <code>null</code> if the document does not exist
+     */
+    String getStoredTenant(SolrCore core, BytesRef id) throws IOException {
+        final SolrInputDocument stored = RealTimeGetComponent.getInputDocument(core, id, null,
+                true, Collections.singleton(tenantConfig.getField()), false);
+        if (stored == null || stored == RealTimeGetComponent.DELETED) {
+            return null;
+        }
+        return Objects.toString(stored.getFieldValue(tenantConfig.getField()), null);
+    }
+
+    private String buildTenantQuery(String tenant, String query) {
+        final String tenantClause = "+" + tenantConfig.getField() + ":" + ClientUtils.escapeQueryChars(tenant);
+        if (StringUtils.startsWith(query, "{!")) {
+            //local params are only supported as nested query within the lucene query parser
+            return tenantClause + " +_query_:\"" + query.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        } else {
+            return tenantClause + " +(" + query + ")";
+        }
+    }
+}
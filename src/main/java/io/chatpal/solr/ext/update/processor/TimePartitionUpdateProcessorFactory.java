@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.update.processor;
+
+import io.chatpal.solr.ext.ChatpalParams;
+import io.chatpal.solr.ext.DocType;
+import io.chatpal.solr.ext.PartitionConfig;
+import org.apache.solr.common.SolrInputField;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.UpdateParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.CommitUpdateCommand;
+import org.apache.solr.update.DeleteUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorChain;
+import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+import org.apache.solr.util.plugin.SolrCoreAware;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Routes {@link DocType#Message messages} into time-sliced partition cores based on their created date
+ * (see {@link PartitionConfig}). Other documents are passed on to the current core. Deletes and commits are
+ * forwarded to all partition cores.
+ * <p>
+ * Messages are indexed by the <code>partitionChain</code> of the partition core (default: the default chain).
+ * Configure this processor after the {@link IdGenerationFieldUpdateProcessorFactory} and
+ * {@link LanguageFieldUpdateProcessorFactory}, so the partition chain only needs to index the documents.
+ * Messages of partitions without a core remain in the current core.
+ */
+public class TimePartitionUpdateProcessorFactory extends UpdateRequestProcessorFactory implements SolrCoreAware {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TimePartitionUpdateProcessorFactory.class);
+
+    private static final String CONF_PARTITION_CHAIN = "partitionChain";
+
+    private PartitionConfig partitionConfig = new PartitionConfig();
+
+    private String partitionChain = null;
+
+    @Override
+    public void init(NamedList args) {
+        super.init(args);
+
+        partitionChain = Objects.toString(args.get(CONF_PARTITION_CHAIN), null);
+    }
+
+    @Override
+    public void inform(SolrCore core) {
+        partitionConfig = PartitionConfig.fromSolrConfig(core.getSolrConfig());
+    }
+
+    @Override
+    public UpdateRequestProcessor getInstance(SolrQueryRequest req, SolrQueryResponse rsp, UpdateRequestProcessor next) {
+        //requests forwarded to a partition are not routed again
+        if (!partitionConfig.isEnabled() || req.getParams().get(ChatpalParams.PARAM_PARTITION) != null) {
+            return next;
+        }
+        return new TimePartitionUpdateProcessor(req, rsp, next);
+    }
+
+    private class TimePartitionUpdateProcessor extends UpdateRequestProcessor {
+
+        private final SolrQueryRequest req;
+        private final SolrQueryResponse rsp;
+
+        private final Map<String, Partition> partitions = new LinkedHashMap<>();
+
+        TimePartitionUpdateProcessor(SolrQueryRequest req, SolrQueryResponse rsp, UpdateRequestProcessor next) {
+            super(next);
+            this.req = req;
+            this.rsp = rsp;
+        }
+
+        @Override
+        public void processAdd(AddUpdateCommand cmd) throws IOException {
+            final SolrInputField type = cmd.solrDoc.getField(ChatpalParams.FIELD_TYPE);
+            final SolrInputField created = cmd.solrDoc.getField(partitionConfig.getField());
+            if (type == null || created == null || !DocType.Message.getIndexVal().equals(type.getFirstValue())) {
+                super.processAdd(cmd);
+                return;
+            }
+
+            final Partition partition = getPartition(
+                    partitionConfig.getPartitionCore(req.getCore(), created.getFirstValue()));
+            if (partition == null) {
+                super.processAdd(cmd);
+                return;
+            }
+
+            final AddUpdateCommand partitionCmd = new AddUpdateCommand(partition.req);
+            partitionCmd.solrDoc = cmd.solrDoc;
+            partitionCmd.overwrite = cmd.overwrite;
+            partitionCmd.commitWithin = cmd.commitWithin;
+            partition.processor.processAdd(partitionCmd);
+        }
+
+        @Override
+        public void processDelete(DeleteUpdateCommand cmd) throws IOException {
+            super.processDelete(cmd);
+
+            for (String coreName : partitionConfig.getPartitionCores(req.getCore())) {
+                final Partition partition = getPartition(coreName);
+                if (partition != null) {
+                    final DeleteUpdateCommand partitionCmd = new DeleteUpdateCommand(partition.req);
+                    if (cmd.isDeleteById()) {
+                        partitionCmd.setId(cmd.getId());
+                    } else {
+                        partitionCmd.setQuery(cmd.getQuery());
+                    }
+                    partitionCmd.commitWithin = cmd.commitWithin;
+                    partition.processor.processDelete(partitionCmd);
+                }
+            }
+        }
+
+        @Override
+        public void processCommit(CommitUpdateCommand cmd) throws IOException {
+            super.processCommit(cmd);
+
+            for (String coreName : partitionConfig.getPartitionCores(req.getCore())) {
+                final Partition partition = getPartition(coreName);
+                if (partition != null) {
+                    final CommitUpdateCommand partitionCmd = new CommitUpdateCommand(partition.req, cmd.optimize);
+                    partitionCmd.softCommit = cmd.softCommit;
+                    partitionCmd.openSearcher = cmd.openSearcher;
+                    partitionCmd.waitSearcher = cmd.waitSearcher;
+                    partitionCmd.expungeDeletes = cmd.expungeDeletes;
+                    partitionCmd.maxOptimizeSegments = cmd.maxOptimizeSegments;
+                    partition.processor.processCommit(partitionCmd);
+                }
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            for (Partition partition : partitions.values()) {
+                if (partition != null) {
+                    partition.processor.finish();
+                }
+            }
+            super.finish();
+        }
+
+        @Override
+        protected void doClose() {
+            for (Partition partition : partitions.values()) {
+                if (partition != null) {
+                    partition.close();
+                }
+            }
+            partitions.clear();
+        }
+
+        private Partition getPartition(String coreName) {
+            if (coreName == null) {
+                return null;
+            }
+            return partitions.computeIfAbsent(coreName, name -> {
+                final SolrCore core = req.getCore().getCoreContainer().getCore(name);
+                if (core == null) {
+                    LOG.warn("Missing partition core {}, messages are kept in {}", name, req.getCore().getName());
+                    return null;
+                }
+                return new Partition(core, req, rsp);
+            });
+        }
+    }
+
+    private class Partition {
+
+        private final SolrCore core;
+        private final LocalSolrQueryRequest req;
+        private final UpdateRequestProcessor processor;
+
+        Partition(SolrCore core, SolrQueryRequest parentReq, SolrQueryResponse rsp) {
+            this.core = core;
+            final ModifiableSolrParams params = new ModifiableSolrParams(parentReq.getParams());
+            params.set(ChatpalParams.PARAM_PARTITION, core.getName());
+            params.remove(UpdateParams.UPDATE_CHAIN);
+            this.req = new LocalSolrQueryRequest(core, params);
+            try {
+                final UpdateRequestProcessorChain chain = core.getUpdateProcessingChain(partitionChain);
+                this.processor = chain.createProcessor(req, rsp);
+            } catch (RuntimeException e) {
+                req.close();
+                core.close();
+                throw e;
+            }
+        }
+
+        private void close() {
+            try {
+                processor.close();
+            } catch (IOException e) {
+                LOG.warn("Unable to close the update processor of partition {}", core.getName(), e);
+            } finally {
+                req.close();
+                core.close();
+            }
+        }
+    }
+}
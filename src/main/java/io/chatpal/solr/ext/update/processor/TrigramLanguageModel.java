@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.update.processor;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact character trigram model for language detection. Text is lower-cased, all characters other than
+ * letters are word boundaries (a space). Trigrams are scored by their log probability per language, trigrams
+ * unknown to a language get a floor value below the least frequent trigram of the language.
+ * <p>
+ * The model is immutable and can be shared by threads. Detection uses a {@link Detector} per thread, that
+ * does not allocate memory while scoring.
+ */
+public final class TrigramLanguageModel {
+
+    /**
+     * The model shipped with this library
+     */
+    public static final String DEFAULT_MODEL = "io/chatpal/solr/ext/update/processor/langdetect-trigrams.txt";
+
+    private static final String LANG_PREFIX = "#lang ";
+
+    private static final char BOUNDARY = ' ';
+
+    private final String[] languages;
+    /**
+     * open addressing hash table of the packed trigrams (<code>0</code> marks an empty slot)
+     */
+    private final long[] keys;
+    /**
+     * log probabilities of the trigram (in the same slot as the key) by language
+     */
+    private final float[][] rows;
+    private final int mask;
+
+    private TrigramLanguageModel(String[] languages, Map<Long, float[]> trigrams) {
+        this.languages = languages;
+        int size = Integer.highestOneBit(Math.max(2, trigrams.size() * 2 - 1)) << 1;
+        this.keys = new long[size];
+        this.rows = new float[size][];
+        this.mask = size - 1;
+        for (Map.Entry<Long, float[]> trigram : trigrams.entrySet()) {
+            int slot = slot(trigram.getKey());
+            while (keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = trigram.getKey();
+            rows[slot] = trigram.getValue();
+        }
+    }
+
+    /**
+     * Reads a model: a <code>#lang [code]</code> line followed by <code>[trigram]\t[log probability]</code>
+     * lines for each language. Other lines starting with <code>#</code> are comments.
+     * @param in the model, UTF-8 encoded. The stream is not closed
+     */
+    public static TrigramLanguageModel load(InputStream in) throws IOException {
+        final Map<String, Map<Long, Float>> model = new LinkedHashMap<>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        Map<Long, Float> current = null;
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.startsWith(LANG_PREFIX)) {
+                current = model.computeIfAbsent(line.substring(LANG_PREFIX.length()).trim(), l -> new LinkedHashMap<>());
+            } else if (line.startsWith("#") || StringUtils.isBlank(line)) {
+                continue;
+            } else {
+                final int sep = line.indexOf('\t');
+                if (current == null || sep != 3) {
+                    throw new IOException("Invalid language model in line " + lineNumber + ": " + line);
+                }
+                try {
+                    current.put(pack(line.charAt(0), line.charAt(1), line.charAt(2)), Float.parseFloat(line.substring(sep + 1)));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid log probability in line " + lineNumber + ": " + line, e);
+                }
+            }
+        }
+        if (model.isEmpty()) {
+            throw new IOException("Empty language model");
+        }
+
+        final String[] languages = model.keySet().toArray(new String[0]);
+        final float[] floor = new float[languages.length];
+        for (int i = 0; i < languages.length; i++) {
+            floor[i] = model.get(languages[i]).values().stream().min(Float::compare).orElse(0f) - 1f;
+        }
+        final Map<Long, float[]> trigrams = new LinkedHashMap<>();
+        for (int i = 0; i < languages.length; i++) {
+            for (Map.Entry<Long, Float> trigram : model.get(languages[i]).entrySet()) {
+                final int lang = i;
+                trigrams.computeIfAbsent(trigram.getKey(), k -> Arrays.copyOf(floor, floor.length))[lang] = trigram.getValue();
+            }
+        }
+        return new TrigramLanguageModel(languages, trigrams);
+    }
+
+    public List<String> getLanguages() {
+        return Arrays.asList(languages.clone());
+    }
+
+    /**
+     * Creates a detector
+     * @param languages the candidate languages or <code>null</code>/empty for all languages of the model
+     * @param threshold the minimum probability of the detected language (relative to the other candidates)
+     * @param minTrigrams the minimum number of known trigrams needed for a detection
+     * @param maxChars the maximum number of characters of a text to consider
+     */
+    public Detector newDetector(Collection<String> languages, float threshold, int minTrigrams, int maxChars) {
+        final boolean[] candidates = new boolean[this.languages.length];
+        for (int i = 0; i < candidates.length; i++) {
+            candidates[i] = languages == null || languages.isEmpty() || languages.contains(this.languages[i]);
+        }
+        return new Detector(candidates, threshold, minTrigrams, maxChars);
+    }
+
+    private float[] lookup(long key) {
+        int slot = slot(key);
+        long k;
+        while ((k = keys[slot]) != 0) {
+            if (k == key) {
+                return rows[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    private int slot(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+    }
+
+    private static long pack(char c1, char c2, char c3) {
+        return ((long) c1 << 32) | ((long) c2 << 16) | c3;
+    }
+
+    /**
+     * Detects the language of texts. Not thread-safe, but reusable.
+     */
+    public final class Detector {
+
+        private final boolean[] candidates;
+        private final float threshold;
+        private final int minTrigrams;
+        private final int maxChars;
+
+        private final float[] scores = new float[languages.length];
+
+        private Detector(boolean[] candidates, float threshold, int minTrigrams, int maxChars) {
+            this.candidates = candidates;
+            this.threshold = threshold;
+            this.minTrigrams = minTrigrams;
+            this.maxChars = maxChars;
+        }
+
+        /**
+         * @return the detected language or <code>null</code> if the language can not be detected with
+         * the required confidence
+         */
+        public String detect(CharSequence text) {
+            if (text == null) {
+                return null;
+            }
+            Arrays.fill(scores, 0f);
+            int matches = 0;
+
+            char c1 = 0;
+            char c2 = BOUNDARY;
+            final int length = Math.min(text.length(), maxChars);
+            for (int i = 0; i <= length; i++) {
+                final char c = i < length ? normalize(text.charAt(i)) : BOUNDARY;
+                if (c == BOUNDARY && c2 == BOUNDARY) {
+                    continue;
+                }
+                if (c1 != 0) {
+                    final float[] row = lookup(pack(c1, c2, c));
+                    if (row != null) {
+                        for (int l = 0; l < scores.length; l++) {
+                            scores[l] += row[l];
+                        }
+                        matches++;
+                    }
+                }
+                c1 = c2;
+                c2 = c;
+            }
+            if (matches < minTrigrams) {
+                return null;
+            }
+
+            int best = -1;
+            for (int l = 0; l < scores.length; l++) {
+                if (candidates[l] && (best < 0 || scores[l] > scores[best])) {
+                    best = l;
+                }
+            }
+            if (best < 0) {
+                return null;
+            }
+            //probability of the best language relative to all candidates
+            double sum = 0;
+            for (int l = 0; l < scores.length; l++) {
+                if (candidates[l]) {
+                    sum += Math.exp(scores[l] - scores[best]);
+                }
+            }
+            return 1 / sum >= threshold ? languages[best] : null;
+        }
+
+        private char normalize(char c) {
+            return Character.isLetter(c) ? Character.toLowerCase(c) : BOUNDARY;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2020-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * Processes items in parallel workers with bounded queues. Items with the same key are processed by the same
+ * worker, so their order is kept. Adding an item blocks while the queue of its worker is full, but fails as soon
+ * as any worker failed.
+ *
+ * @param <T> the item type
+ */
+public final class BoundedWorkers<T> {
+
+    private static final long OFFER_TIMEOUT = 100;
+
+    /**
+     * marks the end of the input in the queues
+     */
+    private static final Object END = new Object();
+
+    /**
+     * A worker processing the items of its queue
+     * @param <T> the item type
+     */
+    @FunctionalInterface
+    public interface Worker<T> {
+        void run(Items<T> items) throws Exception;
+    }
+
+    /**
+     * The queue of a worker
+     * @param <T> the item type
+     */
+    @FunctionalInterface
+    public interface Items<T> {
+        /**
+         * @return the next item (blocks until available) or <code>null</code> at the end of the input
+         */
+        T next() throws InterruptedException;
+    }
+
+    private final List<BlockingQueue<Object>> queues = new ArrayList<>();
+    private final List<Future<?>> futures = new ArrayList<>();
+
+    /**
+     * Starts the workers
+     * @param executor runs the workers, needs at least <code>threads</code> threads
+     * @param workers creates the worker of the passed index (<code>0..threads-1</code>)
+     */
+    public BoundedWorkers(ExecutorService executor, int threads, int queueSize, IntFunction<Worker<T>> workers) {
+        for (int i = 0; i < threads; i++) {
+            final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(queueSize);
+            final Worker<T> worker = workers.apply(i);
+            queues.add(queue);
+            futures.add(executor.submit(() -> {
+                worker.run(() -> take(queue));
+                return null;
+            }));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T take(BlockingQueue<Object> queue) throws InterruptedException {
+        final Object item = queue.take();
+        return item == END ? null : (T) item;
+    }
+
+    /**
+     * Adds the item to the queue of the worker of the key. Blocks while the queue is full.
+     * @throws ExecutionException if a worker failed
+     */
+    public void add(Object key, T item) throws InterruptedException, ExecutionException {
+        put(queues.get(Math.floorMod(Objects.hashCode(key), queues.size())), item);
+    }
+
+    /**
+     * Marks the end of the input and waits for all workers to complete
+     * @throws ExecutionException if a worker failed
+     */
+    public void finish() throws InterruptedException, ExecutionException {
+        for (BlockingQueue<Object> queue : queues) {
+            put(queue, END);
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    private void put(BlockingQueue<Object> queue, Object item) throws InterruptedException, ExecutionException {
+        while (!queue.offer(item, OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            for (Future<?> future : futures) {
+                if (future.isDone()) {
+                    //a worker only terminates early on failure
+                    future.get();
+                    throw new IllegalStateException("Worker terminated unexpectedly");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2020-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.util;
+
+import org.apache.solr.cloud.CloudDescriptor;
+import org.apache.solr.cloud.ZkController;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.core.SolrCore;
+
+public final class CloudUtils {
+
+    private CloudUtils() { }
+
+    /**
+     * @return the number of active shards of the collection of the core, <code>1</code> if not running in
+     * SolrCloud mode
+     */
+    public static int getActiveSliceCount(SolrCore core) {
+        final CloudDescriptor cloudDescriptor = core.getCoreDescriptor().getCloudDescriptor();
+        final ZkController zkController = core.getCoreContainer().getZkController();
+        if (cloudDescriptor == null || zkController == null) {
+            return 1;
+        }
+        final DocCollection collection = zkController.getClusterState().getCollectionOrNull(cloudDescriptor.getCollectionName());
+        return collection == null ? 1 : collection.getActiveSlices().size();
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext;
+
+import org.apache.solr.common.SolrException;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.Date;
+
+public class PartitionConfigTest {
+
+    private final PartitionConfig partitionConfig = new PartitionConfig();
+
+    @Test
+    public void getPartition() {
+        final Instant created = Instant.parse("2018-03-31T23:59:59Z");
+
+        Assert.assertThat("date", partitionConfig.getPartition(Date.from(created)), CoreMatchers.is("201803"));
+        Assert.assertThat("epoch millis", partitionConfig.getPartition(created.toEpochMilli()), CoreMatchers.is("201803"));
+        Assert.assertThat("iso string", partitionConfig.getPartition("2018-04-01T00:00:00Z"), CoreMatchers.is("201804"));
+        Assert.assertThat("missing", partitionConfig.getPartition(null), CoreMatchers.nullValue());
+        Assert.assertThat("blank", partitionConfig.getPartition(" "), CoreMatchers.nullValue());
+    }
+
+    @Test(expected = SolrException.class)
+    public void getPartitionInvalidDate() {
+        partitionConfig.getPartition("yesterday");
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.core.SolrConfig;
+import org.apache.solr.core.SolrResourceLoader;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequestBase;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.IndexSchemaFactory;
+import org.apache.solr.update.DocumentBuilder;
+
+import java.nio.file.Paths;
+
+/**
+ * The schema of the test core (<code>io/chatpal/solr/ext/core</code>) and in-memory indexes using it, as a
+ * {@link org.apache.solr.core.SolrCore} can not be started in the unit tests
+ */
+public final class TestCore {
+
+    private static IndexSchema schema;
+
+    private TestCore() {
+    }
+
+    public static synchronized IndexSchema getSchema() throws Exception {
+        if (schema == null) {
+            final SolrResourceLoader loader = new SolrResourceLoader(Paths.get(TestCore.class.getResource("core").toURI()));
+            final SolrConfig solrConfig = new SolrConfig(loader, SolrConfig.DEFAULT_CONF_FILE, null);
+            schema = IndexSchemaFactory.buildIndexSchema(IndexSchema.DEFAULT_SCHEMA_FILE, solrConfig);
+        }
+        return schema;
+    }
+
+    /**
+     * A request without a core using the test schema
+     */
+    public static SolrQueryRequest createRequest(SolrParams params) throws Exception {
+        final IndexSchema requestSchema = getSchema();
+        return new SolrQueryRequestBase(null, params) {
+            @Override
+            public IndexSchema getSchema() {
+                return requestSchema;
+            }
+        };
+    }
+
+    /**
+     * Indexes the documents (updates by uniqueKey) into a new in-memory index
+     */
+    public static Directory index(SolrInputDocument... docs) throws Exception {
+        return indexSegments(docs);
+    }
+
+    /**
+     * Indexes the documents (updates by uniqueKey) into a new in-memory index with one segment per array, e.g. to
+     * test the mapping of segment ordinals to global ordinals
+     */
+    public static Directory indexSegments(SolrInputDocument[]... segments) throws Exception {
+        final IndexSchema indexSchema = getSchema();
+        final Directory directory = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(indexSchema.getIndexAnalyzer())
+                .setMergePolicy(NoMergePolicy.INSTANCE))) {
+            for (SolrInputDocument[] docs : segments) {
+                for (SolrInputDocument doc : docs) {
+                    final String id = doc.getFieldValue(indexSchema.getUniqueKeyField().getName()).toString();
+                    writer.updateDocument(new Term(indexSchema.getUniqueKeyField().getName(), id),
+                            DocumentBuilder.toDocument(doc, indexSchema));
+                }
+                writer.commit();
+            }
+        }
+        return directory;
+    }
+
+    public static SolrInputDocument doc(Object... fields) {
+        final SolrInputDocument doc = new SolrInputDocument();
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            doc.addField(fields[i].toString(), fields[i + 1]);
+        }
+        return doc;
+    }
+}
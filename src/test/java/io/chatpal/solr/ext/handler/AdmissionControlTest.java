@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.chatpal.solr.ext.handler;
+
+import org.apache.solr.common.SolrException;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class AdmissionControlTest {
+
+    @Test
+    public void testReservedSlots() {
+        final AdmissionControl admissionControl = new AdmissionControl(2, 1, 0, 0);
+
+        admissionControl.acquire(AdmissionControl.Priority.LOW);
+        try {
+            admissionControl.acquire(AdmissionControl.Priority.LOW);
+            Assert.fail("reserved slot used by low priority request");
+        } catch (SolrException e) {
+            Assert.assertThat(e.code(), CoreMatchers.is(SolrException.ErrorCode.SERVICE_UNAVAILABLE.code));
+        }
+        admissionControl.acquire(AdmissionControl.Priority.HIGH);
+        Assert.assertThat(admissionControl.getRunning(null), CoreMatchers.is(2));
+        Assert.assertThat(admissionControl.getRejected(), CoreMatchers.is(1L));
+
+        admissionControl.release(AdmissionControl.Priority.HIGH);
+        admissionControl.release(AdmissionControl.Priority.LOW);
+        Assert.assertThat(admissionControl.getRunning(null), CoreMatchers.is(0));
+    }
+
+    @Test
+    public void testHighPriorityFirst() throws Exception {
+        final AdmissionControl admissionControl = new AdmissionControl(1, 0, 10, 5000);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            admissionControl.acquire(AdmissionControl.Priority.LOW);
+
+            final Future<?> low = executor.submit(() -> admissionControl.acquire(AdmissionControl.Priority.LOW));
+            while (admissionControl.getQueued(AdmissionControl.Priority.LOW) == 0) {
+                Thread.sleep(1);
+            }
+            final Future<?> high = executor.submit(() -> admissionControl.acquire(AdmissionControl.Priority.HIGH));
+            while (admissionControl.getQueued(AdmissionControl.Priority.HIGH) == 0) {
+                Thread.sleep(1);
+            }
+
+            admissionControl.release(AdmissionControl.Priority.LOW);
+            high.get(5, TimeUnit.SECONDS);
+            Assert.assertThat("low priority still queued", low.isDone(), CoreMatchers.is(false));
+
+            admissionControl.release(AdmissionControl.Priority.HIGH);
+            low.get(5, TimeUnit.SECONDS);
+            Assert.assertThat(admissionControl.getRunning(AdmissionControl.Priority.LOW), CoreMatchers.is(1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.handler;
+
+import io.chatpal.solr.ext.ChatpalConfig;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.ContentStreamBase;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequestBase;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+import org.noggit.ObjectBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+public class BulkImportRequestHandlerTest {
+
+    @Test
+    public void toDocument() throws IOException {
+        final SolrInputDocument doc = BulkImportRequestHandler.toDocument(ObjectBuilder.fromJSON(
+                "{\"id\":\"m1\",\"type\":\"message\",\"rid\":[\"r1\",\"r2\"],\"score\":3,\"tags\":{\"add\":\"x\"}}"));
+
+        Assert.assertThat("single value", doc.getFieldValue("id"), CoreMatchers.is("m1"));
+        Assert.assertThat("multi value", doc.getFieldValues("rid"), CoreMatchers.is(Arrays.asList("r1", "r2")));
+        Assert.assertThat("number", doc.getFieldValue("score"), CoreMatchers.is(3L));
+        Assert.assertThat("atomic update", doc.getFieldValue("tags"), CoreMatchers.instanceOf(Map.class));
+    }
+
+    @Test(expected = SolrException.class)
+    public void toDocumentNoObject() throws IOException {
+        BulkImportRequestHandler.toDocument(ObjectBuilder.fromJSON("[1,2,3]"));
+    }
+
+    @Test(timeout = 10000)
+    public void orderPerShardField() throws Exception {
+        final BulkImportRequestHandler handler = createHandler(4, 2);
+        final StringBuilder json = new StringBuilder();
+        for (int seq = 0; seq < 20; seq++) {
+            for (int id = 0; id < 10; id++) {
+                json.append(String.format("{\"id\":\"m%d\",\"type\":\"message\",\"seq\":%d}%n", id, seq));
+            }
+        }
+        final Map<Object, List<Object>> processed = new ConcurrentHashMap<>();
+        final Map<Object, Set<String>> threads = new ConcurrentHashMap<>();
+
+        handler.importDocuments(createRequest(new ModifiableSolrParams()), streams(json.toString()), workerReq -> new UpdateRequestProcessor(null) {
+            @Override
+            public void processAdd(AddUpdateCommand cmd) {
+                final Object id = cmd.solrDoc.getFieldValue("id");
+                processed.computeIfAbsent(id, k -> Collections.synchronizedList(new ArrayList<>())).add(cmd.solrDoc.getFieldValue("seq"));
+                threads.computeIfAbsent(id, k -> ConcurrentHashMap.newKeySet()).add(Thread.currentThread().getName());
+            }
+        });
+
+        Assert.assertThat(processed.size(), CoreMatchers.is(10));
+        for (Map.Entry<Object, List<Object>> doc : processed.entrySet()) {
+            Assert.assertThat("updates of " + doc.getKey() + " in order", doc.getValue(),
+                    CoreMatchers.is(LongStream.range(0, 20).boxed().collect(Collectors.toList())));
+            Assert.assertThat("single worker for " + doc.getKey(), threads.get(doc.getKey()).size(), CoreMatchers.is(1));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void abortAfterMaxErrors() throws Exception {
+        //a single worker makes the order of the errors deterministic
+        final BulkImportRequestHandler handler = createHandler(1, 10);
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(BulkImportRequestHandler.PARAM_MAX_ERRORS, 2);
+        final AtomicInteger processed = new AtomicInteger();
+
+        final String json = "{\"id\":\"m1\",\"invalid\":true}\n"
+                + "no json\n"
+                + "{\"id\":\"m2\"}\n"
+                + "{\"id\":\"m3\",\"invalid\":true}\n"
+                + "{\"id\":\"m4\",\"invalid\":true}\n";
+        try {
+            handler.importDocuments(createRequest(params), streams(json), workerReq -> new UpdateRequestProcessor(null) {
+                @Override
+                public void processAdd(AddUpdateCommand cmd) {
+                    processed.incrementAndGet();
+                    if (cmd.solrDoc.containsKey("invalid")) {
+                        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "invalid document");
+                    }
+                }
+            });
+            Assert.fail("import not aborted");
+        } catch (SolrException e) {
+            Assert.assertThat(e.code(), CoreMatchers.is(SolrException.ErrorCode.BAD_REQUEST.code));
+            Assert.assertThat(e.getMessage(), CoreMatchers.containsString("aborted after 3 errors"));
+        }
+        Assert.assertThat("aborted at the third error", processed.get(), CoreMatchers.is(3));
+    }
+
+    @Test(timeout = 10000)
+    public void failingWorker() throws Exception {
+        //a single worker with a queue of 1 blocks the reader once the worker stops consuming
+        final BulkImportRequestHandler handler = createHandler(1, 1);
+        final StringBuilder json = new StringBuilder();
+        for (int id = 0; id < 100; id++) {
+            json.append(String.format("{\"id\":\"m%d\"}%n", id));
+        }
+        final AtomicInteger processed = new AtomicInteger();
+
+        try {
+            handler.importDocuments(createRequest(new ModifiableSolrParams()), streams(json.toString()), workerReq -> new UpdateRequestProcessor(null) {
+                @Override
+                public void processAdd(AddUpdateCommand cmd) {
+                    processed.incrementAndGet();
+                    throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "index failure");
+                }
+            });
+            Assert.fail("failure of the worker not propagated");
+        } catch (SolrException e) {
+            Assert.assertThat(e.getMessage(), CoreMatchers.is("index failure"));
+        }
+        Assert.assertThat("worker stopped at the first failure", processed.get(), CoreMatchers.is(1));
+    }
+
+    @Test(timeout = 10000)
+    public void statsPerType() throws Exception {
+        final BulkImportRequestHandler handler = createHandler(2, 10);
+        final String json = "{\"id\":\"m1\",\"type\":\"message\"}\n"
+                + "{\"id\":\"m2\",\"type\":\"message\"}\n"
+                + "\n"
+                + "{\"id\":\"r1\",\"type\":\"room\"}\n"
+                + "{\"id\":\"x1\",\"type\":\"unknown\"}\n"
+                + "{\"id\":\"x2\"}\n"
+                + "{broken\n";
+
+        final NamedList<Object> stats = handler.importDocuments(createRequest(new ModifiableSolrParams()), streams(json),
+                workerReq -> new UpdateRequestProcessor(null) {
+                    @Override
+                    public void processAdd(AddUpdateCommand cmd) {
+                        //accept all documents
+                    }
+                });
+
+        Assert.assertThat("messages", stats.findRecursive("message", "count"), CoreMatchers.is(2L));
+        Assert.assertThat("rooms", stats.findRecursive("room", "count"), CoreMatchers.is(1L));
+        Assert.assertThat("other types", stats.findRecursive("other", "count"), CoreMatchers.is(2L));
+        Assert.assertThat("no users", stats.get("user"), CoreMatchers.nullValue());
+        Assert.assertThat(stats.get("total"), CoreMatchers.is(5L));
+        Assert.assertThat(stats.get("errors"), CoreMatchers.is(1L));
+        Assert.assertThat(stats.get("errorSamples").toString(), CoreMatchers.containsString("line 7"));
+    }
+
+    private static BulkImportRequestHandler createHandler(int threads, int queueSize) {
+        final BulkImportRequestHandler handler = new BulkImportRequestHandler();
+        final NamedList<Object> args = new NamedList<>();
+        args.add(ChatpalConfig.CONF_IMPORT_THREADS, threads);
+        args.add(ChatpalConfig.CONF_IMPORT_QUEUE_SIZE, queueSize);
+        handler.init(args);
+        return handler;
+    }
+
+    private static SolrQueryRequest createRequest(SolrParams params) {
+        return new SolrQueryRequestBase(null, params) { };
+    }
+
+    private static List<ContentStream> streams(String content) {
+        return Collections.singletonList(new ContentStreamBase.StringStream(content));
+    }
+}
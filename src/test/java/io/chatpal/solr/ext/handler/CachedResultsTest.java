@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.handler;
+
+import io.chatpal.solr.ext.ChatpalParams;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.LRUCache;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CachedResultsTest {
+
+    private final ChatpalSearchRequestHandler handler = new ChatpalSearchRequestHandler();
+    private final AtomicInteger searches = new AtomicInteger();
+
+    private LRUCache<RequestKey, CachedResults> cache;
+
+    @Before
+    public void createCache() {
+        final Map<String, String> args = new HashMap<>();
+        args.put("name", "chatpalResponseCache");
+        args.put("size", "10");
+        cache = new LRUCache<>();
+        cache.init(args, null, null);
+    }
+
+    @Test
+    public void estimate() {
+        Assert.assertThat(CachedResults.estimate(null), CoreMatchers.is(0L));
+        Assert.assertThat("two bytes per char", CachedResults.estimate("abcd") - CachedResults.estimate(""), CoreMatchers.is(8L));
+
+        final NamedList<Object> small = buildResults(false, 1);
+        final NamedList<Object> large = buildResults(false, 10);
+        Assert.assertThat("grows with the docs", CachedResults.estimate(large) > CachedResults.estimate(small), CoreMatchers.is(true));
+        Assert.assertThat("includes the instance", new CachedResults(small).ramBytesUsed() > CachedResults.estimate(small),
+                CoreMatchers.is(true));
+    }
+
+    @Test
+    public void hitAndMiss() throws Exception {
+        final RequestKey key = key("hello", 1L);
+        final NamedList<Object> results = handler.getResults(cache, key, () -> search(false));
+        Assert.assertThat("miss", searches.get(), CoreMatchers.is(1));
+
+        Assert.assertThat("hit", handler.getResults(cache, key("hello", 1L), () -> search(false)), CoreMatchers.sameInstance(results));
+        Assert.assertThat(searches.get(), CoreMatchers.is(1));
+
+        handler.getResults(cache, key("hello", 2L), () -> search(false));
+        Assert.assertThat("other searcher", searches.get(), CoreMatchers.is(2));
+        handler.getResults(cache, key("world", 2L), () -> search(false));
+        Assert.assertThat("other request", searches.get(), CoreMatchers.is(3));
+        Assert.assertThat(cache.size(), CoreMatchers.is(3));
+    }
+
+    @Test
+    public void skipPartialResults() throws Exception {
+        final RequestKey key = key("hello", 1L);
+        handler.getResults(cache, key, () -> search(true));
+        handler.getResults(cache, key, () -> search(true));
+
+        Assert.assertThat("partial results (timeAllowed) are not cached", searches.get(), CoreMatchers.is(2));
+        Assert.assertThat(cache.size(), CoreMatchers.is(0));
+    }
+
+    @Test
+    public void withoutCache() throws Exception {
+        handler.getResults(null, key("hello", 1L), () -> search(false));
+        handler.getResults(null, key("hello", 1L), () -> search(false));
+
+        Assert.assertThat(searches.get(), CoreMatchers.is(2));
+    }
+
+    private NamedList<Object> search(boolean partial) {
+        searches.incrementAndGet();
+        return buildResults(partial, 2);
+    }
+
+    private static RequestKey key(String text, long searcherVersion) {
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(ChatpalParams.PARAM_TEXT, text);
+        return RequestKey.of(params, searcherVersion);
+    }
+
+    private static NamedList<Object> buildResults(boolean partial, int numDocs) {
+        final List<SolrDocument> docs = new ArrayList<>();
+        for (int i = 0; i < numDocs; i++) {
+            final SolrDocument doc = new SolrDocument();
+            doc.setField("id", "m" + i);
+            doc.setField("text", Collections.singletonList("message " + i));
+            docs.add(doc);
+        }
+        final NamedList<Object> message = new NamedList<>();
+        message.add("docs", docs);
+        message.add("numFound", (long) numDocs);
+        if (partial) {
+            message.add(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY, true);
+        }
+        final NamedList<Object> results = new NamedList<>();
+        results.add("message", message);
+        return results;
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.chatpal.solr.ext.handler;
+
+import io.chatpal.solr.ext.ChatpalParams;
+import io.chatpal.solr.ext.DocType;
+import io.chatpal.solr.ext.TestCore;
+import io.chatpal.solr.ext.search.facet.DocSetCapture;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.store.Directory;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.DisMaxParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.index.SlowCompositeReaderWrapper;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.StrField;
+import org.apache.solr.search.ExtendedQuery;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QueryParsing;
+import org.apache.solr.search.SortSpec;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+public class ChatpalSearchRequestHandlerTest {
+
+    @Test
+    public void buildCursorSort() {
+        final SchemaField uniqueKey = new SchemaField("_id", new StrField());
+
+        Assert.assertThat("default sort", ChatpalSearchRequestHandler.buildCursorSort(null, uniqueKey),
+                CoreMatchers.is("score desc,_id asc"));
+        Assert.assertThat("append tie breaker", ChatpalSearchRequestHandler.buildCursorSort("updated desc", uniqueKey),
+                CoreMatchers.is("updated desc,_id asc"));
+        Assert.assertThat("existing tie breaker", ChatpalSearchRequestHandler.buildCursorSort("updated desc, _id desc", uniqueKey),
+                CoreMatchers.is("updated desc, _id desc"));
+    }
+
+    @Test
+    public void isSortPrefix() {
+        final Sort indexSort = new Sort(new SortField("updated", SortField.Type.LONG, true),
+                new SortField("_id", SortField.Type.STRING));
+
+        Assert.assertThat("prefix", ChatpalSearchRequestHandler.isSortPrefix(
+                new Sort(new SortField("updated", SortField.Type.LONG, true)), indexSort), CoreMatchers.is(true));
+        Assert.assertThat("same sort", ChatpalSearchRequestHandler.isSortPrefix(indexSort, indexSort), CoreMatchers.is(true));
+        Assert.assertThat("other direction", ChatpalSearchRequestHandler.isSortPrefix(
+                new Sort(new SortField("updated", SortField.Type.LONG)), indexSort), CoreMatchers.is(false));
+        Assert.assertThat("longer sort", ChatpalSearchRequestHandler.isSortPrefix(new Sort(
+                new SortField("updated", SortField.Type.LONG, true), new SortField("_id", SortField.Type.STRING),
+                new SortField("created", SortField.Type.LONG)), indexSort), CoreMatchers.is(false));
+    }
+
+    @Test
+    public void buildMergeOrder() {
+        final SortSpec sortSpec = new SortSpec(new Sort(new SortField("created", SortField.Type.LONG, true),
+                SortField.FIELD_SCORE), Arrays.asList(new SchemaField("created", new StrField()), null));
+        Assert.assertThat(ChatpalSearchRequestHandler.getMergeFields(sortSpec), CoreMatchers.is(Arrays.asList("created", "score")));
+
+        final List<SolrDocument> docs = new ArrayList<>(Arrays.asList(
+                buildDoc("m1", 1L, 2f), buildDoc("m2", 3L, 1f), buildDoc("m3", null, 5f), buildDoc("m4", 3L, 4f)));
+        docs.sort(ChatpalSearchRequestHandler.buildMergeOrder(sortSpec));
+        Assert.assertThat("created desc, score desc, missing last",
+                docs.stream().map(doc -> doc.getFirstValue("id")).collect(Collectors.toList()),
+                CoreMatchers.is(Arrays.asList("m4", "m2", "m1", "m3")));
+
+        docs.sort(ChatpalSearchRequestHandler.buildMergeOrder(new SortSpec(new Sort(new SortField(null, SortField.Type.SCORE, true)),
+                Collections.singletonList(null))));
+        Assert.assertThat("score asc", docs.stream().map(doc -> doc.getFirstValue("id")).collect(Collectors.toList()),
+                CoreMatchers.is(Arrays.asList("m2", "m1", "m4", "m3")));
+
+        docs.sort(ChatpalSearchRequestHandler.buildMergeOrder(new SortSpec(null, Collections.emptyList())));
+        Assert.assertThat("default sort", docs.stream().map(doc -> doc.getFirstValue("id")).collect(Collectors.toList()),
+                CoreMatchers.is(Arrays.asList("m3", "m4", "m1", "m2")));
+    }
+
+    @Test(expected = SolrException.class)
+    public void getMergeFieldsOfFunction() {
+        ChatpalSearchRequestHandler.getMergeFields(new SortSpec(new Sort(new SortField("sum(a,b)", SortField.Type.CUSTOM)),
+                Collections.singletonList(null)));
+    }
+
+    private static SolrDocument buildDoc(String id, Long created, float score) {
+        final SolrDocument doc = new SolrDocument();
+        doc.setField("id", id);
+        if (created != null) {
+            doc.setField("created", created);
+        }
+        doc.setField("score", score);
+        return doc;
+    }
+
+    @Test
+    public void getLanguageFields() {
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        Assert.assertThat("request languages",
+                ChatpalSearchRequestHandler.getLanguageFields(params, "de,en").getLanguages(),
+                CoreMatchers.is(Arrays.asList("de", "en")));
+
+        params.add(ChatpalParams.PARAM_LANG, "en");
+        params.add(ChatpalParams.PARAM_LANG, "fr");
+        Assert.assertThat("all repeated values",
+                ChatpalSearchRequestHandler.getLanguageFields(params, "de").getLanguages(),
+                CoreMatchers.is(Arrays.asList("en", "fr")));
+
+        params.set(ChatpalParams.PARAM_LANG, ChatpalParams.LANG_NONE);
+        Assert.assertThat("overridden by the type (files)",
+                ChatpalSearchRequestHandler.getLanguageFields(params, "de").getLanguages(),
+                CoreMatchers.is(Collections.singletonList(ChatpalParams.LANG_NONE)));
+    }
+
+    @Test
+    public void wrapQuery() {
+        final ChatpalSearchRequestHandler handler = new ChatpalSearchRequestHandler();
+        final ModifiableSolrParams query = new ModifiableSolrParams();
+        query.set("defType", "edismax");
+        query.set(CommonParams.Q, "hello world");
+        handler.wrapQuery(query, DocType.Message, "wrapped.q", "cache=false");
+
+        Assert.assertThat("local params are only parsed by the lucene parser", query.get("defType"), CoreMatchers.is("lucene"));
+        Assert.assertThat(query.get(CommonParams.Q), CoreMatchers.is("{!edismax cache=false v=$wrapped.q}"));
+        Assert.assertThat(query.get("wrapped.q"), CoreMatchers.is("hello world"));
+
+        final ModifiableSolrParams empty = new ModifiableSolrParams();
+        handler.wrapQuery(empty, DocType.Message, "wrapped.q", "cache=false");
+        Assert.assertThat("default parser", empty.get(CommonParams.Q), CoreMatchers.is("{!lucene cache=false}"));
+        Assert.assertThat(empty.get("wrapped.q"), CoreMatchers.nullValue());
+    }
+
+    @Test
+    public void appendExpansions() {
+        final ChatpalSearchRequestHandler handler = new ChatpalSearchRequestHandler();
+        final ModifiableSolrParams query = new ModifiableSolrParams();
+        query.set("defType", "edismax");
+        query.set(CommonParams.Q, "helo world -spam");
+        handler.appendExpansions(query, DocType.Message, Arrays.asList(
+                new FuzzyTermExpander.Expansion("text_en", "hello"), new FuzzyTermExpander.Expansion("text_de", "hallo")));
+
+        Assert.assertThat(query.get("defType"), CoreMatchers.is("lucene"));
+        Assert.assertThat(query.get(CommonParams.Q), CoreMatchers.is("+(_query_:\"{!edismax v=$chatpal.fuzzy.q}\""
+                + " OR _query_:\"{!term f=text_en v=$chatpal.fuzzy.term.0}\"^0.5"
+                + " OR _query_:\"{!term f=text_de v=$chatpal.fuzzy.term.1}\"^0.5)"
+                + " -_query_:\"{!edismax q.op=OR mm=0 v=$chatpal.fuzzy.negated}\""));
+        Assert.assertThat("the text is not rewritten", query.get("chatpal.fuzzy.q"), CoreMatchers.is("helo world -spam"));
+        Assert.assertThat(query.get("chatpal.fuzzy.term.0"), CoreMatchers.is("hello"));
+        Assert.assertThat(query.get("chatpal.fuzzy.term.1"), CoreMatchers.is("hallo"));
+        Assert.assertThat(query.get("chatpal.fuzzy.negated"), CoreMatchers.is("spam"));
+    }
+
+    @Test
+    public void copyShardParams() {
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(CommonParams.DISTRIB, true);
+        params.set(ShardParams._ROUTE_, "tenant1!");
+        params.set(ShardParams.SHARDS_TOLERANT, true);
+        params.set(CommonParams.ROWS, 5);
+
+        final ModifiableSolrParams query = new ModifiableSolrParams();
+        ChatpalSearchRequestHandler.copyShardParams(params, "/search", query);
+
+        Assert.assertThat("distrib", query.get(CommonParams.DISTRIB), CoreMatchers.is("true"));
+        Assert.assertThat("route", query.get(ShardParams._ROUTE_), CoreMatchers.is("tenant1!"));
+        Assert.assertThat("tolerant", query.get(ShardParams.SHARDS_TOLERANT), CoreMatchers.is("true"));
+        Assert.assertThat("no other params", query.get(CommonParams.ROWS), CoreMatchers.nullValue());
+    }
+
+    @Test(expected = SolrException.class)
+    public void copyShardParamsRecursive() {
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(ShardParams.SHARDS_QT, "/search");
+
+        ChatpalSearchRequestHandler.copyShardParams(params, "/search", new ModifiableSolrParams());
+    }
+
+    @Test
+    public void facetQueryNotCached() throws Exception {
+        final ChatpalSearchRequestHandler handler = new ChatpalSearchRequestHandler();
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(ChatpalParams.PARAM_QUERY, "user:u1");
+
+        final SolrQueryRequest plain = TestCore.createRequest(params);
+        final SolrParams plainQuery = handler.buildTypeQuery(plain, new SolrQueryResponse(), DocType.User);
+        Assert.assertThat("cached without facets", parseMainQuery(plain, plainQuery), CoreMatchers.not(CoreMatchers.instanceOf(ExtendedQuery.class)));
+
+        try (Directory directory = TestCore.index(TestCore.doc("_id", "user_u1", "type", "user", "user", "u1"));
+             DirectoryReader reader = DirectoryReader.open(directory)) {
+            final SolrQueryRequest req = TestCore.createRequest(params);
+            req.getContext().put(DocSetCapture.CONTEXT_KEY, new DocSetCapture(new IndexSearcher(reader), SlowCompositeReaderWrapper.wrap(reader)));
+            final SolrParams query = handler.buildTypeQuery(req, new SolrQueryResponse(), DocType.User);
+
+            Assert.assertThat(Arrays.asList(query.getParams(CommonParams.FQ)), CoreMatchers.hasItem("{!chatpal_capture}"));
+            Assert.assertThat(query.get(CommonParams.Q), CoreMatchers.is("{!lucene cache=false v=$chatpal.uncached.q}"));
+            //SolrIndexSearcher#getDocListC neither looks up nor adds the results of a main query with cache=false
+            final Query mainQuery = parseMainQuery(req, query);
+            Assert.assertThat(mainQuery, CoreMatchers.instanceOf(ExtendedQuery.class));
+            Assert.assertThat(((ExtendedQuery) mainQuery).getCache(), CoreMatchers.is(false));
+        }
+    }
+
+    @Test
+    public void twoPhaseRetrieval() throws Exception {
+        final ChatpalSearchRequestHandler handler = new ChatpalSearchRequestHandler();
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(ChatpalParams.PARAM_TEXT, "hello");
+        params.set(ChatpalParams.PARAM_LANG, "en");
+        params.set(ChatpalParams.PARAM_TWO_PHASE, true);
+        params.set(ChatpalParams.PARAM_RERANK_DOCS, 200);
+        final LanguageFields languages = LanguageFields.of(params);
+        final SolrParams query = handler.buildTypeQuery(TestCore.createRequest(params), new SolrQueryResponse(), DocType.Message);
+
+        Assert.assertThat("1st phase", query.get(DisMaxParams.QF), CoreMatchers.is(languages.getRecallFields()));
+        Assert.assertThat("no recency in the 1st phase", query.get(DisMaxParams.BF), CoreMatchers.nullValue());
+        Assert.assertThat(query.get(CommonParams.RQ), CoreMatchers.is("{!rerank reRankQuery=$chatpal.rerank reRankDocs=200 reRankWeight=1}"));
+        Assert.assertThat("2nd phase", query.get("chatpal.rerank"),
+                CoreMatchers.is("{!edismax qf=$chatpal.rerank.qf bf=$chatpal.rerank.bf v=$chatpal.rerank.q}"));
+        Assert.assertThat(query.get("chatpal.rerank.qf"), CoreMatchers.is(languages.getQueryFields()));
+        Assert.assertThat(query.get("chatpal.rerank.bf"), CoreMatchers.is("recip(ms(NOW/HOUR,updated),3.6e-11,3,1)"));
+        Assert.assertThat(query.get("chatpal.rerank.q"), CoreMatchers.is("hello"));
+    }
+
+    @Test
+    public void twoPhaseRetrievalFallback() throws Exception {
+        final ChatpalSearchRequestHandler handler = new ChatpalSearchRequestHandler();
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(ChatpalParams.PARAM_TEXT, "hello");
+        params.set(ChatpalParams.PARAM_LANG, "en");
+        params.set(ChatpalParams.PARAM_TWO_PHASE, true);
+        params.set(ChatpalParams.PARAM_CURSOR_MARK, CursorMarkParams.CURSOR_MARK_START);
+        SolrParams query = handler.buildTypeQuery(TestCore.createRequest(params), new SolrQueryResponse(), DocType.Message);
+
+        Assert.assertThat("re-ranking can not be used with cursors", query.get(CommonParams.RQ), CoreMatchers.nullValue());
+        Assert.assertThat("full field mix", query.get(DisMaxParams.QF), CoreMatchers.is(LanguageFields.of(params).getQueryFields()));
+        Assert.assertThat("recency as boost", query.get(DisMaxParams.BF), CoreMatchers.startsWith("recip(ms("));
+
+        params.remove(ChatpalParams.PARAM_CURSOR_MARK);
+        params.set(ChatpalParams.PARAM_QUERY, "text_en:hello");
+        query = handler.buildTypeQuery(TestCore.createRequest(params), new SolrQueryResponse(), DocType.Message);
+
+        Assert.assertThat("explicit query", query.get(CommonParams.RQ), CoreMatchers.nullValue());
+        Assert.assertThat(query.get(CommonParams.Q), CoreMatchers.is("text_en:hello"));
+        Assert.assertThat(query.get("chatpal.rerank"), CoreMatchers.nullValue());
+    }
+
+    @Test
+    public void cursorPinsNow() throws Exception {
+        final ChatpalSearchRequestHandler handler = new ChatpalSearchRequestHandler();
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(ChatpalParams.PARAM_TEXT, "hello");
+        params.set(ChatpalParams.PARAM_CURSOR_MARK, CursorMarkParams.CURSOR_MARK_START);
+        SolrParams query = handler.buildTypeQuery(TestCore.createRequest(params), new SolrQueryResponse(), DocType.Message);
+
+        final long now = query.getLong("chatpal.cursor.now");
+        Assert.assertThat("rounded to the hour", now % TimeUnit.HOURS.toMillis(1), CoreMatchers.is(0L));
+        Assert.assertThat(query.get(CursorMarkParams.CURSOR_MARK_PARAM), CoreMatchers.is(CursorMarkParams.CURSOR_MARK_START));
+        Assert.assertThat(query.get(DisMaxParams.BF),
+                CoreMatchers.is("recip(ms(" + Instant.ofEpochMilli(now) + ",updated),3.6e-11,3,1)"));
+
+        final String nextCursorMark = ChatpalSearchRequestHandler.buildCursorMark(now - 1, "AoE/ZG9j");
+        params.set(ChatpalParams.PARAM_CURSOR_MARK, nextCursorMark);
+        query = handler.buildTypeQuery(TestCore.createRequest(params), new SolrQueryResponse(), DocType.Message);
+        Assert.assertThat("pinned by the cursor", query.getLong("chatpal.cursor.now"), CoreMatchers.is(now - 1));
+        Assert.assertThat(query.get(CursorMarkParams.CURSOR_MARK_PARAM), CoreMatchers.is("AoE/ZG9j"));
+        Assert.assertThat(query.get(DisMaxParams.BF),
+                CoreMatchers.is("recip(ms(" + Instant.ofEpochMilli(now - 1) + ",updated),3.6e-11,3,1)"));
+    }
+
+    @Test
+    public void parseCursorMark() {
+        Assert.assertThat(ChatpalSearchRequestHandler.parseCursorNow("*"), CoreMatchers.nullValue());
+        Assert.assertThat(ChatpalSearchRequestHandler.parseSolrCursorMark("*"), CoreMatchers.is("*"));
+        Assert.assertThat("plain Solr cursor mark", ChatpalSearchRequestHandler.parseCursorNow("AoE/ZG9j"), CoreMatchers.nullValue());
+        Assert.assertThat(ChatpalSearchRequestHandler.parseCursorNow("1600000000000:AoE/ZG9j"), CoreMatchers.is(1600000000000L));
+        Assert.assertThat(ChatpalSearchRequestHandler.parseSolrCursorMark("1600000000000:AoE/ZG9j"), CoreMatchers.is("AoE/ZG9j"));
+    }
+
+    @Test
+    public void localSubQuery() throws Exception {
+        final ChatpalSearchRequestHandler handler = new ChatpalSearchRequestHandler();
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(ChatpalParams.PARAM_TEXT, "hello");
+        Assert.assertThat("single shard", handler.buildTypeQuery(TestCore.createRequest(params), new SolrQueryResponse(), DocType.User)
+                .get(CommonParams.DISTRIB), CoreMatchers.is("false"));
+
+        params.set(ShardParams.SHARDS, "localhost:8983/solr/chatpal1,localhost:8984/solr/chatpal2");
+        final SolrParams query = handler.buildTypeQuery(TestCore.createRequest(params), new SolrQueryResponse(), DocType.User);
+        Assert.assertThat("explicit shards", query.get(CommonParams.DISTRIB), CoreMatchers.nullValue());
+        Assert.assertThat(query.get(ShardParams.SHARDS), CoreMatchers.is(params.get(ShardParams.SHARDS)));
+    }
+
+    /**
+     * Reads the local params of the main query like the lucene parser. The parsing itself requires a core, so
+     * the wrapped query is replaced by a match all query.
+     */
+    private static Query parseMainQuery(SolrQueryRequest req, SolrParams query) throws Exception {
+        final String q = query.get(CommonParams.Q);
+        final SolrParams localParams = QueryParsing.getLocalParams(q, query);
+        return new QParser(localParams == null ? q : localParams.get(QueryParsing.V), localParams, query, req) {
+            @Override
+            public Query parse() {
+                return new MatchAllDocsQuery();
+            }
+        }.getQuery();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.handler;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class FuzzyTermExpanderTest {
+
+    private static final FuzzyTermExpander.Expansion HELLO = new FuzzyTermExpander.Expansion("text_en", "hello");
+    private static final FuzzyTermExpander.Expansion HELP = new FuzzyTermExpander.Expansion("text_en", "help");
+    private static final FuzzyTermExpander.Expansion HALLO = new FuzzyTermExpander.Expansion("text_de", "hallo");
+
+    private static final FuzzyTermExpander.Expansions EXPANSIONS = term ->
+            "helo".equals(term) ? Arrays.asList(HELLO, HELP, HALLO, new FuzzyTermExpander.Expansion("text_de", "helo"))
+                    : Collections.emptyList();
+
+    @Test
+    public void expandTerms() throws IOException {
+        Assert.assertThat("per field, without the term itself", FuzzyTermExpander.expandTerms("helo world", EXPANSIONS),
+                CoreMatchers.is(Arrays.asList(HELLO, HELP, HALLO)));
+        Assert.assertThat("required", FuzzyTermExpander.expandTerms("+helo", EXPANSIONS),
+                CoreMatchers.is(Arrays.asList(HELLO, HELP, HALLO)));
+        Assert.assertThat("distinct", FuzzyTermExpander.expandTerms("helo helo", EXPANSIONS),
+                CoreMatchers.is(Arrays.asList(HELLO, HELP, HALLO)));
+    }
+
+    @Test
+    public void keepQuerySyntax() throws IOException {
+        Assert.assertThat("phrase", FuzzyTermExpander.expandTerms("\"say helo\" now", EXPANSIONS).isEmpty(),
+                CoreMatchers.is(true));
+        Assert.assertThat("negation", FuzzyTermExpander.expandTerms("-helo", EXPANSIONS).isEmpty(), CoreMatchers.is(true));
+        Assert.assertThat("wildcard", FuzzyTermExpander.expandTerms("helo*", EXPANSIONS).isEmpty(), CoreMatchers.is(true));
+    }
+
+    @Test
+    public void maxExpandedTerms() throws IOException {
+        final List<String> expanded = new ArrayList<>();
+        final String text = IntStream.rangeClosed(0, FuzzyTermExpander.MAX_EXPANDED_TERMS)
+                .mapToObj(i -> "term" + i).collect(Collectors.joining(" "));
+        FuzzyTermExpander.expandTerms(text, term -> {
+            expanded.add(term);
+            return Collections.singletonList(new FuzzyTermExpander.Expansion("text_en", term + "s"));
+        });
+        Assert.assertThat(expanded.size(), CoreMatchers.is(FuzzyTermExpander.MAX_EXPANDED_TERMS));
+    }
+
+    @Test
+    public void getNegatedText() {
+        Assert.assertThat(FuzzyTermExpander.getNegatedText("foo -bar -\"b c\" d"), CoreMatchers.is("bar \"b c\""));
+        Assert.assertThat("inside a phrase", FuzzyTermExpander.getNegatedText("\"a -b\" c"), CoreMatchers.nullValue());
+        Assert.assertThat(FuzzyTermExpander.getNegatedText("foo - bar"), CoreMatchers.nullValue());
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.handler;
+
+import io.chatpal.solr.ext.ChatpalParams;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class LanguageFieldsTest {
+
+    @Test
+    public void multipleLanguages() {
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        params.add(ChatpalParams.PARAM_LANG, "de, en");
+        params.add(ChatpalParams.PARAM_LANG, "de");
+        final LanguageFields languages = LanguageFields.of(params);
+
+        Assert.assertThat(languages.getLanguages(), CoreMatchers.is(Arrays.asList("de", "en")));
+        Assert.assertThat(languages.getQueryFields(),
+                CoreMatchers.is("context^2 text_de^1 decompose_text_de^.5 text_en^1 decompose_text_en^.5"));
+        Assert.assertThat(languages.getRecallFields(), CoreMatchers.is("text_de text_en"));
+        Assert.assertThat(languages.getDefaultField(), CoreMatchers.is("text_de"));
+        Assert.assertThat(languages.getTargetField("text_en"), CoreMatchers.is("text"));
+        Assert.assertThat("cached", LanguageFields.of(languages.getKey()), CoreMatchers.sameInstance(LanguageFields.of("de,en")));
+    }
+
+    @Test
+    public void defaultLanguage() {
+        final LanguageFields languages = LanguageFields.of(new ModifiableSolrParams());
+        Assert.assertThat(languages.getLanguages(), CoreMatchers.is(Arrays.asList(ChatpalParams.LANG_NONE)));
+        Assert.assertThat(languages.getQueryFields(), CoreMatchers.is("context^2 text_none^1 decompose_text_none^.5"));
+    }
+
+    @Test(expected = SolrException.class)
+    public void tooManyLanguages() {
+        LanguageFields.of("de,en,fr,es,it,pt");
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.handler;
+
+import io.chatpal.solr.ext.TestCore;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.hamcrest.CoreMatchers;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class MessageContextTest {
+
+    private static Directory directory;
+    private static DirectoryReader reader;
+    private static IndexSearcher searcher;
+
+    @BeforeClass
+    public static void createIndex() throws Exception {
+        final List<SolrInputDocument> docs = new ArrayList<>();
+        for (int i = 1; i <= 8; i++) {
+            docs.add(message("m" + i, "r1", i));
+        }
+        for (int i = 1; i <= 3; i++) {
+            docs.add(message("n" + i, "r2", i));
+        }
+        for (int i = 0; i < 60; i++) {
+            docs.add(message("o" + i, "r3", 100 + i));
+        }
+        docs.add(TestCore.doc("_id", "file_1", "id", "f1", "type", "file", "rid", "r1", "created", new Date(5)));
+        directory = TestCore.index(docs.toArray(new SolrInputDocument[0]));
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+    }
+
+    @AfterClass
+    public static void closeIndex() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    public void beforeAndAfter() throws Exception {
+        final List<MessageContext.Hit> hits = collect(2, filter("acl", "r1,r2"), "m5", "m1", "n2");
+
+        Assert.assertThat("latest messages before the hit", ids(hits.get(0).getBefore()), CoreMatchers.is(Arrays.asList("m3", "m4")));
+        Assert.assertThat("earliest messages after the hit", ids(hits.get(0).getAfter()), CoreMatchers.is(Arrays.asList("m6", "m7")));
+        Assert.assertThat("first message of the room", ids(hits.get(1).getBefore()).isEmpty(), CoreMatchers.is(true));
+        Assert.assertThat(ids(hits.get(1).getAfter()), CoreMatchers.is(Arrays.asList("m2", "m3")));
+        Assert.assertThat("room boundary", ids(hits.get(2).getBefore()), CoreMatchers.is(Arrays.asList("n1")));
+        Assert.assertThat(ids(hits.get(2).getAfter()), CoreMatchers.is(Arrays.asList("n3")));
+    }
+
+    @Test
+    public void maxSize() throws Exception {
+        final List<MessageContext.Hit> hits = collect(1000, filter("acl", "r3"), "o55");
+
+        Assert.assertThat("limited to MAX_SIZE", hits.get(0).getBefore().length, CoreMatchers.is(MessageContext.MAX_SIZE));
+        Assert.assertThat(ids(hits.get(0).getBefore()).get(0), CoreMatchers.is("o5"));
+        Assert.assertThat(hits.get(0).getAfter().length, CoreMatchers.is(4));
+    }
+
+    @Test
+    public void filtered() throws Exception {
+        final List<MessageContext.Hit> hits = collect(2, filter("acl", "r1", "excl.msg", "m4,m6", "excl.room", "r2"), "m5", "n2");
+
+        Assert.assertThat("excluded messages and files", ids(hits.get(0).getBefore()), CoreMatchers.is(Arrays.asList("m2", "m3")));
+        Assert.assertThat(ids(hits.get(0).getAfter()), CoreMatchers.is(Arrays.asList("m7", "m8")));
+        Assert.assertThat("not in the acl", ids(hits.get(1).getBefore()).isEmpty(), CoreMatchers.is(true));
+        Assert.assertThat(ids(hits.get(1).getAfter()).isEmpty(), CoreMatchers.is(true));
+    }
+
+    @Test
+    public void tenant() throws Exception {
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("acl", "r1");
+        final Query filter = MessageContext.buildFilter(TestCore.createRequest(params), "tenant", "t1");
+
+        Assert.assertThat("no message of the tenant", ids(collect(2, filter, "m5").get(0).getBefore()).isEmpty(),
+                CoreMatchers.is(true));
+    }
+
+    private static List<MessageContext.Hit> collect(int size, Query filter, String... hitIds) throws Exception {
+        final int[] hitDocs = new int[hitIds.length];
+        for (int i = 0; i < hitIds.length; i++) {
+            hitDocs[i] = searcher.search(new TermQuery(new Term("id", hitIds[i])), 1).scoreDocs[0].doc;
+        }
+        return new MessageContext(size, filter).collect(searcher, TestCore.getSchema(), hitDocs);
+    }
+
+    private static Query filter(String... params) throws Exception {
+        final ModifiableSolrParams solrParams = new ModifiableSolrParams();
+        for (int i = 0; i + 1 < params.length; i += 2) {
+            solrParams.set(params[i], params[i + 1]);
+        }
+        return MessageContext.buildFilter(TestCore.createRequest(solrParams), "tenant", null);
+    }
+
+    private static List<String> ids(int[] docs) {
+        return Arrays.stream(docs).mapToObj(doc -> {
+            try {
+                return searcher.doc(doc).get("id");
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }).collect(Collectors.toList());
+    }
+
+    private static SolrInputDocument message(String id, String room, long created) {
+        return TestCore.doc("_id", "message_" + id, "id", id, "type", "message", "rid", room, "created", new Date(created));
+    }
+}
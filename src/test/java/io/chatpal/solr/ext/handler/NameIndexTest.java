@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.handler;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+public class NameIndexTest {
+
+    private final NameIndex index = new NameIndex.Builder()
+            .add(0, "t1", Arrays.asList("r0", "r1"), Collections.singletonList("general"))
+            .add(1, "t1", Collections.singletonList("r2"), Collections.singletonList("Release Planning"))
+            .add(2, "t1", Collections.singletonList("r3"), Collections.singletonList("release"))
+            .add(3, "t2", Collections.singletonList("r4"), Collections.singletonList("release-2.0"))
+            .build();
+
+    @Test
+    public void parseQuery() {
+        Assert.assertThat(NameIndex.parseQuery("Release pla*"), CoreMatchers.is(Arrays.asList("release", "pla")));
+        Assert.assertThat("phrase", NameIndex.parseQuery("\"release planning\""), CoreMatchers.nullValue());
+        Assert.assertThat("operator", NameIndex.parseQuery("release -planning"), CoreMatchers.nullValue());
+        Assert.assertThat("infix wildcard", NameIndex.parseQuery("rel*se"), CoreMatchers.nullValue());
+        Assert.assertThat("blank", NameIndex.parseQuery(" "), CoreMatchers.nullValue());
+    }
+
+    @Test
+    public void prefixSearch() {
+        final NameIndex.Hits hits = index.search(NameIndex.parseQuery("rel"), null, null, Collections.emptySet(), 0, 10);
+        Assert.assertThat(hits.getNumFound(), CoreMatchers.is(3));
+        Assert.assertThat("shorter names first", hits.getPage(), CoreMatchers.is(new int[]{2, 3, 1}));
+    }
+
+    @Test
+    public void ranking() {
+        final NameIndex.Hits hits = index.search(NameIndex.parseQuery("release plan"), null, null, Collections.emptySet(), 0, 10);
+        Assert.assertThat("all tokens matched first, then exact matches", hits.getPage(), CoreMatchers.is(new int[]{1, 2, 3}));
+
+        final NameIndex.Hits page = index.search(NameIndex.parseQuery("release plan"), null, null, Collections.emptySet(), 1, 1);
+        Assert.assertThat(page.getNumFound(), CoreMatchers.is(3));
+        Assert.assertThat(page.getPage(), CoreMatchers.is(new int[]{2}));
+    }
+
+    @Test
+    public void filters() {
+        Assert.assertThat("tenant", index.search(NameIndex.parseQuery("release"), "t2", null, Collections.emptySet(), 0, 10).getPage(),
+                CoreMatchers.is(new int[]{3}));
+        Assert.assertThat("acl", index.search(NameIndex.parseQuery("release gen"), null, new HashSet<>(Arrays.asList("r1", "r2")),
+                Collections.emptySet(), 0, 10).getPage(), CoreMatchers.is(new int[]{1, 0}));
+        Assert.assertThat("excluded", index.search(NameIndex.parseQuery("release"), "t1", null,
+                Collections.singleton("r3"), 0, 10).getPage(), CoreMatchers.is(new int[]{1}));
+    }
+}
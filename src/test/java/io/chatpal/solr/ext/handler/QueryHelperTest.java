@@ -48,6 +48,19 @@ public class QueryHelperTest {
         }
     }
 
+    @Test
+    public void buildTermQuery() {
+        Assert.assertThat("simple term query", QueryHelper.buildTermQuery("tenant", "workspace-1"),
+                CoreMatchers.is("{!term f=tenant}workspace-1"));
+        Assert.assertThat("no escaping", QueryHelper.buildTermQuery("tenant", "a b:\"c\""),
+                CoreMatchers.is("{!term f=tenant}a b:\"c\""));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void buildTermQueryWithoutField() {
+        QueryHelper.buildTermQuery(" ", "value");
+    }
+
     @Test
     public void buildOrFilter() {
         Assert.assertThat("simple OR", QueryHelper.buildOrFilter("foo", new String[]{"x1", "x2", "x3", "x4"}),
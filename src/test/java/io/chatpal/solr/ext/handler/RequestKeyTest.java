@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.chatpal.solr.ext.handler;
+
+import io.chatpal.solr.ext.ChatpalParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RequestKeyTest {
+
+    @Test
+    public void testCanonicalAcl() {
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(ChatpalParams.PARAM_TEXT, "foo");
+        params.set(ChatpalParams.PARAM_ACL, "r2,r1,r2");
+
+        final ModifiableSolrParams legacy = new ModifiableSolrParams();
+        legacy.add(ChatpalParams.PARAM_ACL + ChatpalParams.LEGACY_PARAM_SUFFIX, "r1", "r2");
+        legacy.set(ChatpalParams.PARAM_TEXT, "foo");
+        legacy.set("wt", "json");
+
+        Assert.assertThat("acl order, format and wt are ignored", RequestKey.canonicalize(legacy),
+                CoreMatchers.is(RequestKey.canonicalize(params)));
+
+        params.set(ChatpalParams.PARAM_ACL, "r1");
+        Assert.assertThat("different acl", RequestKey.canonicalize(legacy),
+                CoreMatchers.not(RequestKey.canonicalize(params)));
+    }
+
+    @Test
+    public void testNoSeparatorConfusion() {
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("a", "x, b=y");
+
+        final ModifiableSolrParams other = new ModifiableSolrParams();
+        other.set("a", "x");
+        other.set("b", "y");
+
+        Assert.assertThat(RequestKey.canonicalize(params), CoreMatchers.not(RequestKey.canonicalize(other)));
+    }
+}
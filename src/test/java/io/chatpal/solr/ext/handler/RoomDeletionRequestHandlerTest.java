@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.handler;
+
+import io.chatpal.solr.ext.TenantConfig;
+import io.chatpal.solr.ext.TestCore;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.Directory;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.update.DeleteUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.hamcrest.CoreMatchers;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class RoomDeletionRequestHandlerTest {
+
+    private static Directory directory;
+    private static DirectoryReader reader;
+
+    private final RoomDeletionRequestHandler handler = new RoomDeletionRequestHandler(new TenantConfig(true, "tenant"));
+
+    @BeforeClass
+    public static void createIndex() throws Exception {
+        directory = TestCore.index(
+                TestCore.doc("_id", "message_1", "type", "message", "rid", "r1", "tenant", "t1"),
+                TestCore.doc("_id", "message_2", "type", "message", "rid", "r1", "tenant", "t2"),
+                TestCore.doc("_id", "message_3", "type", "message", "rid", "r2", "tenant", "t1"),
+                TestCore.doc("_id", "message_4", "type", "message", "rid", "r3", "tenant", "t1"),
+                TestCore.doc("_id", "file_1", "type", "file", "rid", "r1", "tenant", "t1"),
+                TestCore.doc("_id", "room_r1", "type", "room", "rid", "r1", "tenant", "t1"));
+        reader = DirectoryReader.open(directory);
+    }
+
+    @AfterClass
+    public static void closeIndex() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    public void deleteRooms() throws Exception {
+        final List<String> deleted = new ArrayList<>();
+        final RoomDeletionRequestHandler.Deletion deletion = delete(params("tenant", "t1"), new String[]{"r1", " ", "r3"}, deleted);
+
+        Assert.assertThat("documents of the rooms and tenant", new HashSet<>(deleted),
+                CoreMatchers.is(toSet("message_1", "message_4", "file_1", "room_r1")));
+        Assert.assertThat(deletion.getDeleted(), CoreMatchers.is(4L));
+    }
+
+    @Test
+    public void deleteTypes() throws Exception {
+        final List<String> deleted = new ArrayList<>();
+        final RoomDeletionRequestHandler.Deletion deletion = delete(params("tenant", "t1", "type", "message,file"),
+                new String[]{"r1"}, deleted);
+
+        Assert.assertThat(new HashSet<>(deleted), CoreMatchers.is(toSet("message_1", "file_1")));
+        Assert.assertThat(deletion.getDeleted(), CoreMatchers.is(2L));
+    }
+
+    @Test
+    public void deleteOtherTenant() throws Exception {
+        final List<String> deleted = new ArrayList<>();
+        delete(params("tenant", "t2"), new String[]{"r1", "r2"}, deleted);
+
+        Assert.assertThat(deleted, CoreMatchers.is(Arrays.asList("message_2")));
+    }
+
+    @Test
+    public void deleteNothing() throws Exception {
+        final List<String> deleted = new ArrayList<>();
+        final RoomDeletionRequestHandler.Deletion deletion = delete(params("tenant", "t3"), new String[]{"r1"}, deleted);
+
+        Assert.assertThat(deleted.isEmpty(), CoreMatchers.is(true));
+        Assert.assertThat(deletion.getDeleted(), CoreMatchers.is(0L));
+    }
+
+    @Test(expected = SolrException.class)
+    public void unknownType() throws Exception {
+        handler.buildQuery(TestCore.createRequest(params("tenant", "t1", "type", "message,thread")), new String[]{"r1"});
+    }
+
+    @Test(expected = SolrException.class)
+    public void missingTenant() throws Exception {
+        handler.buildQuery(TestCore.createRequest(params()), new String[]{"r1"});
+    }
+
+    private RoomDeletionRequestHandler.Deletion delete(ModifiableSolrParams params, String[] rooms, List<String> deleted) throws Exception {
+        final SolrQueryRequest req = TestCore.createRequest(params);
+        final Query query = handler.buildQuery(req, rooms);
+        final UpdateRequestProcessor processor = new UpdateRequestProcessor(null) {
+            @Override
+            public void processDelete(DeleteUpdateCommand cmd) {
+                deleted.add(cmd.getId());
+            }
+        };
+        final RoomDeletionRequestHandler.Deletion deletion = new RoomDeletionRequestHandler.Deletion(req, processor, -1);
+        deletion.delete(new IndexSearcher(reader), req.getSchema().getUniqueKeyField(), query);
+        return deletion;
+    }
+
+    private static ModifiableSolrParams params(String... params) {
+        final ModifiableSolrParams solrParams = new ModifiableSolrParams();
+        for (int i = 0; i + 1 < params.length; i += 2) {
+            solrParams.add(params[i], params[i + 1]);
+        }
+        return solrParams;
+    }
+
+    private static Set<String> toSet(String... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+}
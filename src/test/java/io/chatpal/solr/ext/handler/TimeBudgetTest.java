@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.chatpal.solr.ext.handler;
+
+import io.chatpal.solr.ext.DocType;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TimeBudgetTest {
+
+    @Test
+    public void testWeightedSplit() {
+        final AtomicLong clock = new AtomicLong();
+        final Map<DocType, Float> weights = new EnumMap<>(DocType.class);
+        weights.put(DocType.Message, 2f);
+        weights.put(DocType.Room, 1f);
+        weights.put(DocType.User, 1f);
+
+        final TimeBudget budget = new TimeBudget(400, weights, clock::get);
+
+        Assert.assertThat("message share", budget.allocate(DocType.Message), CoreMatchers.is(200L));
+        //message only took 100ms, the remaining 300ms are split between room and user
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        Assert.assertThat("room share", budget.allocate(DocType.Room), CoreMatchers.is(150L));
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+        Assert.assertThat("user gets the rest", budget.allocate(DocType.User), CoreMatchers.is(250L));
+    }
+
+    @Test
+    public void testExhaustedBudget() {
+        final AtomicLong clock = new AtomicLong();
+        final Map<DocType, Float> weights = new EnumMap<>(DocType.class);
+        weights.put(DocType.Message, 1f);
+
+        final TimeBudget budget = new TimeBudget(10, weights, clock::get);
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(20));
+
+        Assert.assertThat("never disables the limit", budget.allocate(DocType.Message), CoreMatchers.is(1L));
+    }
+}
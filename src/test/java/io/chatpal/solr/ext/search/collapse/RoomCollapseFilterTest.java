@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.search.collapse;
+
+import io.chatpal.solr.ext.TestCore;
+import io.chatpal.solr.ext.search.facet.DocSetCapture;
+import io.chatpal.solr.ext.search.facet.DocSetCaptureQParserPlugin;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.store.Directory;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.index.SlowCompositeReaderWrapper;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.NumberType;
+import org.apache.solr.search.DelegatingCollector;
+import org.apache.solr.search.PostFilter;
+import org.hamcrest.CoreMatchers;
+import org.hamcrest.MatcherAssert;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+public class RoomCollapseFilterTest {
+
+    private static final Query QUERY = new TermQuery(new Term("text_en", "hello"));
+
+    private static Directory directory;
+    private static DirectoryReader reader;
+    private static IndexSearcher searcher;
+
+    @BeforeClass
+    public static void createIndex() throws Exception {
+        directory = TestCore.indexSegments(new SolrInputDocument[]{
+                message("a1", "r1", "u1", "hello", 1),
+                message("a2", "r1", "u2", "hello hello", 2),
+                message("a3", "r2", "u1", "hello hello hello", 3),
+                message("x1", null, "u2", "hello", 4),
+                message("z1", "r1", "u1", "world", 5)
+        }, new SolrInputDocument[]{
+                message("a4", "r1", "u1", "hello hello hello hello", 6),
+                message("a5", "r1", "u2", "hello world", 7),
+                message("a6", "r2", "u1", "hello", 8)
+        });
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+    }
+
+    @AfterClass
+    public static void closeIndex() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    public void topByScore() throws Exception {
+        MatcherAssert.assertThat("two segments", reader.leaves().size(), CoreMatchers.is(2));
+        final Map<String, Float> scores = new HashMap<>();
+        for (ScoreDoc scoreDoc : searcher.search(QUERY, 100).scoreDocs) {
+            scores.put(getId(scoreDoc.doc), scoreDoc.score);
+        }
+
+        final RoomGroups groups = new RoomGroups();
+        final TopScoreDocCollector topCollector = TopScoreDocCollector.create(100);
+        collect(new RoomCollapseFilter("rid", true, 2, null, null, false, groups), topCollector);
+        final TopDocs topDocs = topCollector.topDocs();
+
+        MatcherAssert.assertThat("numFound: 2 per room and the hit without room", topDocs.totalHits, CoreMatchers.is(5L));
+        MatcherAssert.assertThat(Arrays.stream(topDocs.scoreDocs).map(d -> getId(d.doc)).collect(Collectors.toSet()),
+                CoreMatchers.is(new HashSet<>(Arrays.asList("a4", "a2", "a3", "a6", "x1"))));
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            MatcherAssert.assertThat("replayed score of " + getId(scoreDoc.doc), scoreDoc.score,
+                    CoreMatchers.is(scores.get(getId(scoreDoc.doc))));
+            MatcherAssert.assertThat(groups.getRoom(scoreDoc.doc), CoreMatchers.is(getId(scoreDoc.doc).startsWith("x") ? null
+                    : searcher.doc(scoreDoc.doc).get("rid")));
+        }
+        MatcherAssert.assertThat("hits before collapsing", groups.getCount("r1"), CoreMatchers.is(4));
+        MatcherAssert.assertThat(groups.getCount("r2"), CoreMatchers.is(2));
+        MatcherAssert.assertThat(groups.getCount("r3"), CoreMatchers.is(0));
+    }
+
+    @Test
+    public void topBySort() throws Exception {
+        final RoomGroups groups = new RoomGroups();
+        final IdCollector ids = new IdCollector();
+        collect(new RoomCollapseFilter("user", false, 1, "updated", NumberType.DATE, false, groups), ids);
+        MatcherAssert.assertThat("latest per user", ids.ids, CoreMatchers.is(new HashSet<>(Arrays.asList("a5", "a6"))));
+        MatcherAssert.assertThat(groups.getCount("u1"), CoreMatchers.is(4));
+
+        final IdCollector oldest = new IdCollector();
+        collect(new RoomCollapseFilter("user", false, 1, "updated", NumberType.DATE, true, new RoomGroups()), oldest);
+        MatcherAssert.assertThat("oldest per user", oldest.ids, CoreMatchers.is(new HashSet<>(Arrays.asList("a1", "a2"))));
+    }
+
+    @Test
+    public void terminatedDelegate() throws Exception {
+        final IdCollector ids = new IdCollector() {
+            @Override
+            protected void doSetNextReader(LeafReaderContext context) {
+                if (context.ord == 0) {
+                    throw new CollectionTerminatedException();
+                }
+                super.doSetNextReader(context);
+            }
+        };
+        collect(new RoomCollapseFilter("rid", true, 2, null, null, false, new RoomGroups()), ids);
+        MatcherAssert.assertThat("hits of the second segment", ids.ids, CoreMatchers.is(new HashSet<>(Arrays.asList("a4", "a6"))));
+
+        final IdCollector first = new IdCollector() {
+            @Override
+            public void collect(int doc) throws IOException {
+                super.collect(doc);
+                throw new CollectionTerminatedException();
+            }
+        };
+        collect(new RoomCollapseFilter("rid", true, 2, null, null, false, new RoomGroups()), first);
+        MatcherAssert.assertThat("first hit per segment", first.ids.size(), CoreMatchers.is(2));
+    }
+
+    @Test
+    public void captureBeforeCollapse() throws Exception {
+        final DocSetCapture capture = new DocSetCapture(searcher, SlowCompositeReaderWrapper.wrap(reader));
+        final SolrQueryRequest req = TestCore.createRequest(new ModifiableSolrParams());
+        req.getContext().put(DocSetCapture.CONTEXT_KEY, capture);
+        final PostFilter captureFilter = (PostFilter) new DocSetCaptureQParserPlugin()
+                .createParser(null, new ModifiableSolrParams(), req.getParams(), req).parse();
+        final RoomCollapseFilter collapseFilter = new RoomCollapseFilter("rid", true, 1, null, null, false, new RoomGroups());
+        MatcherAssert.assertThat("the capture runs first", captureFilter.getCost() < collapseFilter.getCost(), CoreMatchers.is(true));
+
+        //chained like SolrIndexSearcher does: the post filter with the lowest cost collects first
+        final IdCollector ids = new IdCollector();
+        final DelegatingCollector collapseCollector = collapseFilter.createCollector(SlowCompositeReaderWrapper.wrap(reader),
+                reader.getContext());
+        collapseCollector.setDelegate(ids);
+        final DelegatingCollector captureCollector = captureFilter.getFilterCollector(searcher);
+        captureCollector.setDelegate(collapseCollector);
+        searcher.search(QUERY, captureCollector);
+        captureCollector.finish();
+
+        MatcherAssert.assertThat("collapsed hits", ids.ids, CoreMatchers.is(new HashSet<>(Arrays.asList("a4", "a3", "x1"))));
+        MatcherAssert.assertThat("captured before collapsing", capture.size(), CoreMatchers.is(7));
+        MatcherAssert.assertThat(capture.facet(TestCore.getSchema().getField("rid"), 0, 1).get("r1"), CoreMatchers.is(4));
+    }
+
+    @Test
+    public void equality() {
+        final RoomCollapseFilter filter = new RoomCollapseFilter("rid", true, 2, "updated", NumberType.DATE, false, new RoomGroups());
+        final RoomCollapseFilter same = new RoomCollapseFilter("rid", true, 2, "updated", NumberType.DATE, false, new RoomGroups());
+        MatcherAssert.assertThat(filter, CoreMatchers.is(same));
+        MatcherAssert.assertThat(filter.hashCode(), CoreMatchers.is(same.hashCode()));
+        MatcherAssert.assertThat(filter, CoreMatchers.not(new RoomCollapseFilter("rid", true, 3, "updated", NumberType.DATE, false, new RoomGroups())));
+        MatcherAssert.assertThat("never cached", filter.getCache(), CoreMatchers.is(false));
+    }
+
+    private static void collect(RoomCollapseFilter filter, Collector delegate) throws IOException {
+        final DelegatingCollector collector = filter.createCollector(SlowCompositeReaderWrapper.wrap(reader),
+                reader.getContext());
+        collector.setDelegate(delegate);
+        searcher.search(QUERY, collector);
+        collector.finish();
+    }
+
+    private static String getId(int doc) {
+        try {
+            return searcher.doc(doc).get("id");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static SolrInputDocument message(String id, String room, String user, String text, long updated) {
+        final SolrInputDocument doc = TestCore.doc("_id", "message_" + id, "id", id, "user", user, "text_en", text,
+                "updated", new Date(updated));
+        if (room != null) {
+            doc.addField("rid", room);
+        }
+        return doc;
+    }
+
+    private static class IdCollector extends SimpleCollector {
+
+        private final Set<String> ids = new HashSet<>();
+        private int docBase;
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) {
+            docBase = context.docBase;
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            ids.add(getId(docBase + doc));
+        }
+
+        @Override
+        public boolean needsScores() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.search.collapse;
+
+import org.apache.solr.schema.NumberType;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RoomCollapseQParserPluginTest {
+
+    @Test
+    public void sortKey() {
+        Assert.assertThat("desc: later is better",
+                RoomCollapseQParserPlugin.toSortKey(2000L, NumberType.DATE, false)
+                        > RoomCollapseQParserPlugin.toSortKey(1000L, NumberType.DATE, false), CoreMatchers.is(true));
+        Assert.assertThat("asc: earlier is better",
+                RoomCollapseQParserPlugin.toSortKey(1000L, NumberType.LONG, true)
+                        > RoomCollapseQParserPlugin.toSortKey(2000L, NumberType.LONG, true), CoreMatchers.is(true));
+        Assert.assertThat("float doc values are raw int bits",
+                RoomCollapseQParserPlugin.toSortKey(Float.floatToRawIntBits(-1.5f), NumberType.FLOAT, false),
+                CoreMatchers.is(-1.5d));
+        Assert.assertThat("double doc values are raw long bits",
+                RoomCollapseQParserPlugin.toSortKey(Double.doubleToRawLongBits(-2.5d), NumberType.DOUBLE, true),
+                CoreMatchers.is(2.5d));
+    }
+}
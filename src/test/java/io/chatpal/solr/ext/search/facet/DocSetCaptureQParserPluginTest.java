@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.search.facet;
+
+import io.chatpal.solr.ext.TestCore;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TotalHitCountCollector;
+import org.apache.lucene.store.Directory;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.index.SlowCompositeReaderWrapper;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.DelegatingCollector;
+import org.apache.solr.search.ExtendedQuery;
+import org.apache.solr.search.PostFilter;
+import org.hamcrest.CoreMatchers;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DocSetCaptureQParserPluginTest {
+
+    private static Directory directory;
+    private static DirectoryReader reader;
+    private static IndexSearcher searcher;
+
+    @BeforeClass
+    public static void createIndex() throws Exception {
+        directory = TestCore.index(
+                TestCore.doc("_id", "message_m1", "type", "message", "user", "u1"),
+                TestCore.doc("_id", "message_m2", "type", "message", "user", "u2"),
+                TestCore.doc("_id", "file_f1", "type", "file", "user", "u1"),
+                TestCore.doc("_id", "room_r1", "type", "room"));
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+    }
+
+    @AfterClass
+    public static void closeIndex() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    public void captureTypes() throws Exception {
+        final DocSetCapture capture = new DocSetCapture(searcher, SlowCompositeReaderWrapper.wrap(reader));
+        final SolrQueryRequest req = TestCore.createRequest(new ModifiableSolrParams());
+        req.getContext().put(DocSetCapture.CONTEXT_KEY, capture);
+
+        Assert.assertThat("hits of the message query", search(req, "message"), CoreMatchers.is(2));
+        Assert.assertThat(capture.size(), CoreMatchers.is(2));
+        Assert.assertThat("hits of the file query", search(req, "file"), CoreMatchers.is(1));
+        Assert.assertThat("union of the types", capture.size(), CoreMatchers.is(3));
+        Assert.assertThat(capture.facet(TestCore.getSchema().getField("user"), 0, 1).get("u1"), CoreMatchers.is(2));
+    }
+
+    @Test
+    public void notCached() throws Exception {
+        final SolrQueryRequest req = TestCore.createRequest(new ModifiableSolrParams());
+        req.getContext().put(DocSetCapture.CONTEXT_KEY, new DocSetCapture(searcher, SlowCompositeReaderWrapper.wrap(reader)));
+        final ExtendedQuery filter = (ExtendedQuery) parse(req);
+
+        Assert.assertThat(filter.getCache(), CoreMatchers.is(false));
+        Assert.assertThat("before other post filters", filter.getCost(), CoreMatchers.is(100));
+    }
+
+    @Test
+    public void withoutCapture() throws Exception {
+        try {
+            parse(TestCore.createRequest(new ModifiableSolrParams()));
+            Assert.fail("no capture in the request context");
+        } catch (SolrException e) {
+            Assert.assertThat(e.code(), CoreMatchers.is(SolrException.ErrorCode.BAD_REQUEST.code));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void otherSearcher() throws Exception {
+        final SolrQueryRequest req = TestCore.createRequest(new ModifiableSolrParams());
+        req.getContext().put(DocSetCapture.CONTEXT_KEY, new DocSetCapture(searcher, SlowCompositeReaderWrapper.wrap(reader)));
+
+        parse(req).getFilterCollector(new IndexSearcher(reader));
+    }
+
+    private static int search(SolrQueryRequest req, String type) throws Exception {
+        final DelegatingCollector collector = parse(req).getFilterCollector(searcher);
+        final TotalHitCountCollector hits = new TotalHitCountCollector();
+        collector.setDelegate(hits);
+        searcher.search(new TermQuery(new Term("type", type)), collector);
+        collector.finish();
+        return hits.getTotalHits();
+    }
+
+    private static PostFilter parse(SolrQueryRequest req) throws Exception {
+        return (PostFilter) new DocSetCaptureQParserPlugin()
+                .createParser(null, new ModifiableSolrParams(), req.getParams(), req).parse();
+    }
+}
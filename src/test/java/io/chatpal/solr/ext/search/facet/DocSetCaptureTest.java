@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.search.facet;
+
+import io.chatpal.solr.ext.TestCore;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.index.SlowCompositeReaderWrapper;
+import org.apache.solr.schema.IndexSchema;
+import org.hamcrest.CoreMatchers;
+import org.hamcrest.MatcherAssert;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DocSetCaptureTest {
+
+    private static Directory directory;
+    private static DirectoryReader reader;
+    private static IndexSearcher searcher;
+    private static IndexSchema schema;
+
+    private DocSetCapture capture;
+
+    @BeforeClass
+    public static void createIndex() throws Exception {
+        schema = TestCore.getSchema();
+        directory = TestCore.indexSegments(new SolrInputDocument[]{
+                TestCore.doc("_id", "message_m1", "type", "message", "rid", "r1", "user", "u1", "size", 1L),
+                TestCore.doc("_id", "message_m2", "type", "message", "rid", "r2", "user", "u1", "size", 2L),
+                TestCore.doc("_id", "room_r1", "type", "room", "rid", "r1")
+        }, new SolrInputDocument[]{
+                TestCore.doc("_id", "message_m3", "type", "message", "rid", "r1", "user", "u2", "size", 3L),
+                TestCore.doc("_id", "file_f1", "type", "file", "rid", "r1", "rid", "r3", "user", "u2"),
+                TestCore.doc("_id", "user_u3", "type", "user", "user", "u3")
+        });
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+    }
+
+    @AfterClass
+    public static void closeIndex() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    @Before
+    public void captureAll() throws Exception {
+        capture = new DocSetCapture(searcher, SlowCompositeReaderWrapper.wrap(reader));
+        for (int doc = 0; doc < reader.maxDoc(); doc++) {
+            capture.add(doc);
+        }
+    }
+
+    @Test
+    public void facetTypes() throws Exception {
+        MatcherAssert.assertThat(capture.size(), CoreMatchers.is(6));
+
+        final NamedList<Integer> types = capture.facet(schema.getField("type"), 0, 1);
+        MatcherAssert.assertThat("most frequent first", types.getName(0), CoreMatchers.is("message"));
+        MatcherAssert.assertThat(types.get("message"), CoreMatchers.is(3));
+        MatcherAssert.assertThat(types.get("file"), CoreMatchers.is(1));
+        MatcherAssert.assertThat(types.get("room"), CoreMatchers.is(1));
+        MatcherAssert.assertThat(types.get("user"), CoreMatchers.is(1));
+    }
+
+    @Test
+    public void facetMultiValued() throws Exception {
+        final NamedList<Integer> rooms = capture.facet(schema.getField("rid"), 0, 1);
+        MatcherAssert.assertThat(rooms.get("r1"), CoreMatchers.is(4));
+        MatcherAssert.assertThat(rooms.get("r2"), CoreMatchers.is(1));
+        MatcherAssert.assertThat(rooms.get("r3"), CoreMatchers.is(1));
+        MatcherAssert.assertThat("ties by value", rooms.getName(1), CoreMatchers.is("r2"));
+    }
+
+    @Test
+    public void limitAndMinCount() throws Exception {
+        final NamedList<Integer> users = capture.facet(schema.getField("user"), 1, 1);
+        MatcherAssert.assertThat(users.size(), CoreMatchers.is(1));
+        MatcherAssert.assertThat("ties by value", users.getName(0), CoreMatchers.is("u1"));
+
+        final NamedList<Integer> frequent = capture.facet(schema.getField("user"), 0, 2);
+        MatcherAssert.assertThat(frequent.size(), CoreMatchers.is(2));
+        MatcherAssert.assertThat(frequent.get("u3"), CoreMatchers.nullValue());
+    }
+
+    @Test
+    public void facetCapturedOnly() throws Exception {
+        final DocSetCapture partial = new DocSetCapture(searcher, SlowCompositeReaderWrapper.wrap(reader));
+        partial.add(reader.maxDoc() - 1);
+
+        final NamedList<Integer> types = partial.facet(schema.getField("type"), 0, 1);
+        MatcherAssert.assertThat(types.size(), CoreMatchers.is(1));
+        MatcherAssert.assertThat(types.get("user"), CoreMatchers.is(1));
+    }
+
+    @Test
+    public void numericField() throws Exception {
+        try {
+            capture.facet(schema.getField("size"), 0, 1);
+            Assert.fail("numeric doc values");
+        } catch (SolrException e) {
+            MatcherAssert.assertThat(e.code(), CoreMatchers.is(SolrException.ErrorCode.BAD_REQUEST.code));
+        }
+    }
+
+    @Test
+    public void withoutDocValues() throws Exception {
+        try {
+            capture.facet(schema.getField("text_en"), 0, 1);
+            Assert.fail("no doc values");
+        } catch (SolrException e) {
+            MatcherAssert.assertThat(e.code(), CoreMatchers.is(SolrException.ErrorCode.BAD_REQUEST.code));
+        }
+    }
+}
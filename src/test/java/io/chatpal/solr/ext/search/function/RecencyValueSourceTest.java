@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.chatpal.solr.ext.search.function;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+public class RecencyValueSourceTest {
+
+    private static final long NOW = 1_600_000_000_000L;
+
+    @Test
+    public void testRecencyDecay() throws Exception {
+        final long[] updated = {NOW, NOW - 3_600_000L, NOW - 365L * 24 * 3_600_000L};
+
+        try (Directory dir = new RAMDirectory()) {
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+                for (long u : updated) {
+                    final Document doc = new Document();
+                    doc.add(new NumericDocValuesField("updated", u));
+                    writer.addDocument(doc);
+                }
+                //document without a value
+                writer.addDocument(new Document());
+            }
+
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                final LeafReaderContext leaf = reader.leaves().get(0);
+                final FunctionValues values = new RecencyValueSource("updated", NOW, 3.6e-11f, 3, 1)
+                        .getValues(new HashMap<>(), leaf);
+
+                for (int i = 0; i < updated.length; i++) {
+                    Assert.assertEquals("doc " + i, recip(NOW - updated[i]), values.floatVal(i), 1e-6f);
+                }
+                Assert.assertEquals("missing value", recip(NOW), values.floatVal(updated.length), 1e-6f);
+            }
+        }
+    }
+
+    @Test
+    public void testEquals() {
+        Assert.assertThat(new RecencyValueSource("updated", NOW, 3.6e-11f, 3, 1),
+                CoreMatchers.is(new RecencyValueSource("updated", NOW, 3.6e-11f, 3, 1)));
+        Assert.assertThat(new RecencyValueSource("updated", NOW, 3.6e-11f, 3, 1),
+                CoreMatchers.not(new RecencyValueSource("updated", NOW + 1, 3.6e-11f, 3, 1)));
+    }
+
+    private static float recip(long age) {
+        return 3f / (3.6e-11f * age + 1f);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.tools;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class OfflineIndexBuilderTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void parseArgs() {
+        final OfflineIndexBuilder builder = new OfflineIndexBuilder();
+        builder.parseArgs(new String[]{
+                "--instance-dir", "core", "--output", "out", "--threads", "4", "--param", "language=en", "export.ndjson", "-"});
+
+        Assert.assertThat(builder.getInstanceDir(), CoreMatchers.is(Paths.get("core")));
+        Assert.assertThat(builder.getOutput(), CoreMatchers.is(Paths.get("out")));
+        Assert.assertThat(builder.getThreads(), CoreMatchers.is(4));
+        Assert.assertThat(builder.getParams().get("language"), CoreMatchers.is("en"));
+        Assert.assertThat(builder.getInputs(), CoreMatchers.is(Arrays.asList("export.ndjson", "-")));
+    }
+
+    @Test
+    public void build() throws Exception {
+        final Path export = tmp.newFile("export.ndjson").toPath();
+        Files.write(export, Arrays.asList(
+                "{\"id\":\"1\",\"type\":\"message\",\"updated\":\"2019-01-01T00:00:01Z\",\"text\":\"first\",\"language\":\"en\"}",
+                "{\"id\":\"2\",\"type\":\"message\",\"updated\":\"2019-01-01T00:00:03Z\",\"text\":\"second\"}",
+                "{\"id\":\"3\",\"type\":\"message\",\"updated\":\"2019-01-01T00:00:02Z\",\"text\":\"third\",\"language\":\"en\"}",
+                "",
+                "{\"id\":\"1\",\"type\":\"message\",\"updated\":\"2019-01-01T00:00:04Z\",\"text\":\"first edited\",\"language\":\"en\"}",
+                "{\"id\":\"1\",\"type\":\"room\",\"updated\":\"2019-01-01T00:00:00Z\"}"), StandardCharsets.UTF_8);
+        final Path output = tmp.getRoot().toPath().resolve("out");
+
+        final OfflineIndexBuilder builder = new OfflineIndexBuilder();
+        builder.parseArgs(new String[]{"--instance-dir", getInstanceDir().toString(), "--output", output.toString(),
+                "--name", "chatpal_offline", "--threads", "2", "--max-segments", "1", export.toString()});
+        builder.build();
+
+        Assert.assertThat("conf copied", Files.exists(output.resolve("conf/schema.xml")), CoreMatchers.is(true));
+        Assert.assertThat("core.properties", new String(Files.readAllBytes(output.resolve("core.properties")), StandardCharsets.UTF_8),
+                CoreMatchers.is("name=chatpal_offline\n"));
+        try (Directory dir = FSDirectory.open(output.resolve("data/index"));
+             DirectoryReader reader = DirectoryReader.open(dir)) {
+            Assert.assertThat("updates of a document are deduplicated", reader.numDocs(), CoreMatchers.is(4));
+            Assert.assertThat(reader.leaves().size(), CoreMatchers.is(1));
+            final LeafReader leaf = reader.leaves().get(0).reader();
+            Assert.assertThat("index sort of the merge policy", leaf.getMetaData().getSort(),
+                    CoreMatchers.is(new Sort(new SortField("updated", SortField.Type.LONG, true))));
+
+            final List<String> ids = new ArrayList<>();
+            for (int i = 0; i < leaf.maxDoc(); i++) {
+                if (leaf.getLiveDocs() != null && !leaf.getLiveDocs().get(i)) continue;
+                final Document doc = leaf.document(i);
+                ids.add(doc.get("_id"));
+                if ("message_1".equals(doc.get("_id"))) {
+                    Assert.assertThat("latest update", doc.get("text_en"), CoreMatchers.is("first edited"));
+                } else if ("message_2".equals(doc.get("_id"))) {
+                    Assert.assertThat("default language", doc.get("text_none"), CoreMatchers.is("second"));
+                }
+            }
+            Assert.assertThat("derived ids sorted by updated desc", ids,
+                    CoreMatchers.is(Arrays.asList("message_1", "message_2", "message_3", "room_1")));
+        }
+        Assert.assertThat("temporary parts removed", Files.exists(output.resolve("tmp")), CoreMatchers.is(false));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void buildExistingOutput() throws Exception {
+        final Path output = tmp.newFolder("out").toPath();
+        Files.createDirectories(output.resolve("data"));
+        final OfflineIndexBuilder builder = new OfflineIndexBuilder();
+        builder.parseArgs(new String[]{"--instance-dir", getInstanceDir().toString(), "--output", output.toString(), "-"});
+        builder.build();
+    }
+
+    private static Path getInstanceDir() throws URISyntaxException {
+        return Paths.get(OfflineIndexBuilderTest.class.getResource("offline-core").toURI());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseArgsMissingInput() {
+        new OfflineIndexBuilder().parseArgs(new String[]{"--instance-dir", "core", "--output", "out"});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseArgsInvalidParam() {
+        new OfflineIndexBuilder().parseArgs(new String[]{
+                "--instance-dir", "core", "--output", "out", "--param", "language", "export.ndjson"});
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.update.processor;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CommitCoalescerTest {
+
+    private ManualScheduler scheduler;
+    private AtomicInteger commits;
+
+    @Before
+    public void setUp() {
+        scheduler = new ManualScheduler();
+        commits = new AtomicInteger();
+    }
+
+    @Test
+    public void coalesce() {
+        final CommitCoalescer coalescer = createCoalescer(50, 500, commits::incrementAndGet);
+        for (int i = 0; i < 10; i++) {
+            coalescer.request(-1);
+            coalescer.request(200);
+        }
+
+        scheduler.advance(49);
+        Assert.assertThat("not before the delay", commits.get(), CoreMatchers.is(0));
+        scheduler.advance(1);
+        Assert.assertThat("commit executed", commits.get(), CoreMatchers.is(1));
+        scheduler.advance(1000);
+        Assert.assertThat("single commit", commits.get(), CoreMatchers.is(1));
+        Assert.assertThat(coalescer.getRequested(), CoreMatchers.is(20L));
+        Assert.assertThat(coalescer.getExecuted(), CoreMatchers.is(1L));
+        Assert.assertThat(coalescer.getAvoided(), CoreMatchers.is(19L));
+    }
+
+    @Test
+    public void maxDelay() {
+        final CommitCoalescer coalescer = createCoalescer(0, 100, commits::incrementAndGet);
+        coalescer.request(60_000);
+
+        scheduler.advance(99);
+        Assert.assertThat(commits.get(), CoreMatchers.is(0));
+        scheduler.advance(1);
+        Assert.assertThat("bounded by maxDelay", commits.get(), CoreMatchers.is(1));
+    }
+
+    @Test
+    public void earlierRequestReschedules() {
+        final CommitCoalescer coalescer = createCoalescer(0, 10_000, commits::incrementAndGet);
+        coalescer.request(10_000);
+        coalescer.request(10);
+
+        scheduler.advance(10);
+        Assert.assertThat("rescheduled commit", commits.get(), CoreMatchers.is(1));
+        scheduler.advance(10_000);
+        Assert.assertThat("later commit cancelled", commits.get(), CoreMatchers.is(1));
+        Assert.assertThat(coalescer.getExecuted(), CoreMatchers.is(1L));
+    }
+
+    @Test
+    public void adaptiveDelay() {
+        final CommitCoalescer coalescer = createCoalescer(10, 5_000, () -> {
+            scheduler.elapse(100);
+            commits.incrementAndGet();
+        });
+        coalescer.request(-1);
+
+        scheduler.advance(10);
+        Assert.assertThat("commit executed", commits.get(), CoreMatchers.is(1));
+        Assert.assertThat("delay adapted to commit duration", coalescer.getDelay(), CoreMatchers.is(400L));
+
+        coalescer.request(-1);
+        scheduler.advance(399);
+        Assert.assertThat(commits.get(), CoreMatchers.is(1));
+        scheduler.advance(1);
+        Assert.assertThat("adapted delay used", commits.get(), CoreMatchers.is(2));
+    }
+
+    private CommitCoalescer createCoalescer(long minDelay, long maxDelay, CommitCoalescer.CommitAction action) {
+        return new CommitCoalescer(minDelay, maxDelay, action, scheduler, scheduler::now);
+    }
+
+    /**
+     * Runs the scheduled tasks in the calling thread once the time is advanced past their deadline
+     */
+    private static final class ManualScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+
+        private final List<ScheduledTask> tasks = new ArrayList<>();
+        private long now = 0;
+
+        long now() {
+            return now;
+        }
+
+        /**
+         * Moves the time forward without running tasks (e.g. the duration of a running task)
+         */
+        void elapse(long millis) {
+            now += millis;
+        }
+
+        /**
+         * Moves the time forward and runs the tasks that are due in the order of their deadline
+         */
+        void advance(long millis) {
+            final long target = now + millis;
+            ScheduledTask next;
+            while ((next = tasks.stream().min(Comparator.comparingLong(t -> t.deadline)).orElse(null)) != null
+                    && next.deadline <= target) {
+                tasks.remove(next);
+                now = Math.max(now, next.deadline);
+                next.run();
+            }
+            now = Math.max(now, target);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            final ScheduledTask task = new ScheduledTask(command, now + unit.toMillis(delay));
+            tasks.add(task);
+            return task;
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+
+        @Override
+        public void shutdown() {
+            tasks.clear();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            final List<Runnable> pending = new ArrayList<>(tasks);
+            tasks.clear();
+            return pending;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+
+        private final class ScheduledTask extends FutureTask<Void> implements ScheduledFuture<Void> {
+
+            private final long deadline;
+
+            private ScheduledTask(Runnable command, long deadline) {
+                super(command, null);
+                this.deadline = deadline;
+            }
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                tasks.remove(this);
+                return super.cancel(mayInterruptIfRunning);
+            }
+
+            @Override
+            public long getDelay(TimeUnit unit) {
+                return unit.convert(deadline - now, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public int compareTo(Delayed other) {
+                return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.update.processor;
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequestBase;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.DeleteUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.hamcrest.CoreMatchers;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class CommitCoalescingUpdateProcessorFactoryTest {
+
+    private final SolrQueryRequest req = new SolrQueryRequestBase(null, new ModifiableSolrParams()) { };
+
+    private ScheduledExecutorService executor;
+    private CountDownLatch committed;
+    private CommitCoalescingUpdateProcessorFactory factory;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        committed = new CountDownLatch(1);
+        factory = new CommitCoalescingUpdateProcessorFactory(new CommitCoalescer(0, 0, committed::countDown, executor));
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void commitAfterAdd() throws Exception {
+        final boolean[] committedWhileAdding = new boolean[1];
+        final UpdateRequestProcessor next = new UpdateRequestProcessor(null) {
+            @Override
+            public void processAdd(AddUpdateCommand cmd) throws IOException {
+                Assert.assertThat("commitWithin is captured", cmd.commitWithin, CoreMatchers.is(-1));
+                committedWhileAdding[0] = await(200);
+            }
+        };
+        final AddUpdateCommand cmd = new AddUpdateCommand(req);
+        cmd.commitWithin = 0;
+        factory.getInstance(req, new SolrQueryResponse(), next).processAdd(cmd);
+
+        Assert.assertThat("no commit before the document is added", committedWhileAdding[0], CoreMatchers.is(false));
+        Assert.assertThat("commit after the add", await(5000), CoreMatchers.is(true));
+    }
+
+    @Test
+    public void commitAfterDelete() throws Exception {
+        final boolean[] committedWhileDeleting = new boolean[1];
+        final UpdateRequestProcessor next = new UpdateRequestProcessor(null) {
+            @Override
+            public void processDelete(DeleteUpdateCommand cmd) throws IOException {
+                Assert.assertThat("commitWithin is captured", cmd.commitWithin, CoreMatchers.is(-1));
+                committedWhileDeleting[0] = await(200);
+            }
+        };
+        final DeleteUpdateCommand cmd = new DeleteUpdateCommand(req);
+        cmd.setQuery("*:*");
+        cmd.commitWithin = 0;
+        factory.getInstance(req, new SolrQueryResponse(), next).processDelete(cmd);
+
+        Assert.assertThat("no commit before the delete", committedWhileDeleting[0], CoreMatchers.is(false));
+        Assert.assertThat("commit after the delete", await(5000), CoreMatchers.is(true));
+    }
+
+    private boolean await(long ms) throws IOException {
+        try {
+            return committed.await(ms, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.update.processor;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequestBase;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ContentHashUpdateProcessorFactoryTest {
+
+    @Test
+    public void hash() {
+        final ContentHashUpdateProcessorFactory factory = new ContentHashUpdateProcessorFactory();
+        factory.init(new NamedList());
+        final StringBuilder builder = new StringBuilder();
+
+        final SolrInputDocument doc = new SolrInputDocument();
+        doc.setField("id", "msg_1");
+        doc.setField("text_en", "Hello World");
+        doc.addField("rid", "r1");
+        doc.addField("rid", "r2");
+        final long hash = factory.hash(doc, builder);
+
+        final SolrInputDocument reordered = new SolrInputDocument();
+        reordered.addField("rid", "r1");
+        reordered.addField("rid", "r2");
+        reordered.setField("text_en", "Hello World");
+        reordered.setField("id", "msg_1");
+        reordered.setField("_version_", 42L);
+        reordered.setField("content_hash", 23L);
+        Assert.assertThat("field order, version and hash", factory.hash(reordered, builder), CoreMatchers.is(hash));
+
+        reordered.setField("updated", new Date(42L));
+        Assert.assertThat("updated is excluded by default", factory.hash(reordered, builder), CoreMatchers.is(hash));
+
+        doc.setField("text_en", "Hello World!");
+        Assert.assertThat("changed content", factory.hash(doc, builder), CoreMatchers.not(hash));
+    }
+
+    @Test
+    public void hashAllFields() {
+        final ContentHashUpdateProcessorFactory factory = new ContentHashUpdateProcessorFactory();
+        final NamedList<Object> args = new NamedList<>();
+        args.add("excludeFields", "");
+        factory.init(args);
+        final StringBuilder builder = new StringBuilder();
+
+        final SolrInputDocument doc = new SolrInputDocument();
+        doc.setField("id", "msg_1");
+        final long hash = factory.hash(doc, builder);
+
+        doc.setField("updated", new Date(42L));
+        Assert.assertThat("no excluded fields", factory.hash(doc, builder), CoreMatchers.not(hash));
+    }
+
+    @Test
+    public void hashConfiguredFields() {
+        final ContentHashUpdateProcessorFactory factory = new ContentHashUpdateProcessorFactory();
+        final NamedList<Object> args = new NamedList<>();
+        args.add("fields", "id,text_en");
+        factory.init(args);
+        final StringBuilder builder = new StringBuilder();
+
+        final SolrInputDocument doc = new SolrInputDocument();
+        doc.setField("id", "msg_1");
+        doc.setField("text_en", "Hello World");
+        final long hash = factory.hash(doc, builder);
+
+        doc.setField("reactions", ":+1:");
+        Assert.assertThat("not hashed field", factory.hash(doc, builder), CoreMatchers.is(hash));
+    }
+
+    @Test
+    public void skipUnchanged() throws IOException {
+        //the real-time-get of the stored hash is backed by the documents written to the next processor
+        final Map<BytesRef, Long> stored = new HashMap<>();
+        final List<Integer> scheduled = new ArrayList<>();
+        final ContentHashUpdateProcessorFactory factory = new ContentHashUpdateProcessorFactory(true) {
+            @Override
+            Long getStoredHash(SolrCore core, BytesRef id) {
+                return stored.get(id);
+            }
+
+            @Override
+            void scheduleCommitWithin(SolrCore core, int commitWithin) {
+                scheduled.add(commitWithin);
+            }
+        };
+        factory.init(new NamedList());
+        final List<SolrInputDocument> written = new ArrayList<>();
+        final UpdateRequestProcessor next = new UpdateRequestProcessor(null) {
+            @Override
+            public void processAdd(AddUpdateCommand cmd) {
+                stored.put(cmd.getIndexedId(), (Long) cmd.solrDoc.getFieldValue("content_hash"));
+                written.add(cmd.solrDoc);
+            }
+        };
+        final SolrQueryRequest req = new SolrQueryRequestBase(null, new ModifiableSolrParams()) { };
+        final UpdateRequestProcessor processor = factory.getInstance(req, new SolrQueryResponse(), next);
+
+        processor.processAdd(buildAdd(req, "msg_1", "Hello World", null, -1));
+        processor.processAdd(buildAdd(req, "msg_1", "Hello World", null, 1000));
+        Assert.assertThat("unchanged update skipped", written.size(), CoreMatchers.is(1));
+        Assert.assertThat("commitWithin of the skipped update", scheduled, CoreMatchers.is(Collections.singletonList(1000)));
+
+        processor.processAdd(buildAdd(req, "msg_1", "Hello World!", null, -1));
+        Assert.assertThat("changed update written", written.size(), CoreMatchers.is(2));
+
+        processor.processAdd(buildAdd(req, "msg_1", "Hello World!", 42L, -1));
+        Assert.assertThat("update with version written", written.size(), CoreMatchers.is(3));
+        Assert.assertThat(scheduled.size(), CoreMatchers.is(1));
+
+        //behind the DistributedUpdateProcessor the leader assigned the version
+        final AddUpdateCommand distributed = buildAdd(req, "msg_1", "Hello World!", 43L, -1);
+        distributed.setVersion(43L);
+        processor.processAdd(distributed);
+        Assert.assertThat("version of the leader is no constraint", written.size(), CoreMatchers.is(3));
+    }
+
+    private static AddUpdateCommand buildAdd(SolrQueryRequest req, String id, String text, Long version, int commitWithin) {
+        final AddUpdateCommand cmd = new AddUpdateCommand(req);
+        cmd.solrDoc = new SolrInputDocument();
+        cmd.solrDoc.setField("id", id);
+        cmd.solrDoc.setField("text_en", text);
+        if (version != null) {
+            cmd.solrDoc.setField("_version_", version);
+        }
+        cmd.setIndexedId(new BytesRef(id));
+        cmd.commitWithin = commitWithin;
+        return cmd;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.update.processor;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Per document cost of the id generation: the precompiled {@link IdTemplate} compared with
+ * matching the pattern for every document. Run with
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=io.chatpal.solr.ext.update.processor.IdTemplateBenchmark</code>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdTemplateBenchmark {
+
+    private static final String PATTERN = "{tenant:default}_{type}_{id}";
+
+    private static final Pattern REGEX = Pattern.compile("(?<!\\\\)\\{([^:}]+)(?::([^}]*))?}");
+
+    private final IdTemplate template = IdTemplate.compile(PATTERN);
+
+    private final StringBuilder builder = new StringBuilder();
+
+    private SolrInputDocument doc;
+
+    @Setup
+    public void setup() {
+        doc = new SolrInputDocument();
+        doc.setField("type", "msg");
+        doc.setField("id", "5a4f8b5e1c9d440000e3c1a7");
+        doc.setField("rid", "GENERAL");
+        doc.setField("text", "Hello World");
+    }
+
+    @Benchmark
+    public String template() {
+        return template.render(doc, builder);
+    }
+
+    /**
+     * The former implementation: matches the pattern for every document
+     */
+    @Benchmark
+    public String regex() {
+        final Matcher matcher = REGEX.matcher(PATTERN);
+        final StringBuffer result = new StringBuffer();
+        while (matcher.find()) {
+            final String g0 = matcher.group();
+            final String fName = matcher.group(1);
+            final String fallback = StringUtils.defaultString(matcher.group(2), g0);
+
+            final SolrInputField field = doc.getField(fName);
+            if (field != null) {
+                matcher.appendReplacement(result, String.valueOf(field.getFirstValue()));
+            } else {
+                matcher.appendReplacement(result, fallback);
+            }
+        }
+        matcher.appendTail(result);
+        return result.toString();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(IdTemplateBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.update.processor;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IdTemplateTest {
+
+    @Test
+    public void render() {
+        final SolrInputDocument doc = new SolrInputDocument();
+        doc.setField("type", "msg");
+        doc.setField("id", "a$1\\b");
+
+        Assert.assertThat("fields", IdTemplate.compile("{type}_{id}").render(doc), CoreMatchers.is("msg_a$1\\b"));
+        Assert.assertThat("literals", IdTemplate.compile("x-{type}-y").render(doc), CoreMatchers.is("x-msg-y"));
+        Assert.assertThat("fallback", IdTemplate.compile("{tenant:none}_{id}").render(doc), CoreMatchers.is("none_a$1\\b"));
+        Assert.assertThat("missing field", IdTemplate.compile("{tenant}_{type}").render(doc), CoreMatchers.is("{tenant}_msg"));
+        Assert.assertThat("escaped", IdTemplate.compile("\\{type}_{type}").render(doc), CoreMatchers.is("\\{type}_msg"));
+        Assert.assertThat("no placeholder", IdTemplate.compile("static").render(doc), CoreMatchers.is("static"));
+    }
+
+    @Test
+    public void reuseBuilder() {
+        final IdTemplate template = IdTemplate.compile("{type}_{id}");
+        final StringBuilder builder = new StringBuilder();
+        final SolrInputDocument doc = new SolrInputDocument();
+        doc.setField("type", "msg");
+
+        doc.setField("id", "1234567890");
+        Assert.assertThat(template.render(doc, builder), CoreMatchers.is("msg_1234567890"));
+        doc.setField("id", "1");
+        Assert.assertThat(template.render(doc, builder), CoreMatchers.is("msg_1"));
+    }
+}
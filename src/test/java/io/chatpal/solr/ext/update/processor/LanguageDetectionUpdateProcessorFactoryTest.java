@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.update.processor;
+
+import org.apache.solr.common.util.NamedList;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+public class LanguageDetectionUpdateProcessorFactoryTest {
+
+    private static final List<String> MODEL_LANGUAGES = Arrays.asList("en", "de", "fr", "es", "it");
+
+    private static final Predicate<String> SCHEMA = new HashSet<>(Arrays.asList("text", "text_en", "text_de", "text_none"))::contains;
+
+    @Test
+    public void candidatesOfSchema() {
+        final LanguageDetectionUpdateProcessorFactory factory = new LanguageDetectionUpdateProcessorFactory();
+        factory.init(new NamedList<>());
+
+        Assert.assertThat("languages with a text field", factory.getCandidates(MODEL_LANGUAGES, SCHEMA),
+                CoreMatchers.is(toSet("en", "de")));
+    }
+
+    @Test
+    public void configuredCandidates() {
+        final LanguageDetectionUpdateProcessorFactory factory = new LanguageDetectionUpdateProcessorFactory();
+        final NamedList<Object> args = new NamedList<>();
+        args.add("languages", "en, fr");
+        factory.init(args);
+
+        Assert.assertThat("configured languages with a text field", factory.getCandidates(MODEL_LANGUAGES, SCHEMA),
+                CoreMatchers.is(toSet("en")));
+    }
+
+    @Test
+    public void targetPattern() {
+        final LanguageDetectionUpdateProcessorFactory factory = new LanguageDetectionUpdateProcessorFactory();
+        final NamedList<Object> args = new NamedList<>();
+        args.add("target", "*_text");
+        factory.init(args);
+
+        Assert.assertThat(factory.getCandidates(MODEL_LANGUAGES, new HashSet<>(Arrays.asList("fr_text", "text_en"))::contains),
+                CoreMatchers.is(toSet("fr")));
+        Assert.assertThat("no text fields", factory.getCandidates(MODEL_LANGUAGES, SCHEMA).isEmpty(), CoreMatchers.is(true));
+    }
+
+    private static Set<String> toSet(String... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.update.processor;
+
+import io.chatpal.solr.ext.ChatpalParams;
+import io.chatpal.solr.ext.TestCore;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class LanguageFieldUpdateProcessorFactoryTest {
+
+    private final List<SolrInputDocument> added = new ArrayList<>();
+
+    private final UpdateRequestProcessor next = new UpdateRequestProcessor(null) {
+        @Override
+        public void processAdd(AddUpdateCommand cmd) {
+            added.add(cmd.solrDoc);
+        }
+    };
+
+    @Test
+    public void languagePerDocument() throws Exception {
+        final LanguageFieldUpdateProcessorFactory factory = createFactory("text_");
+        final SolrQueryRequest req = request("de");
+        final UpdateRequestProcessor processor = factory.getInstance(req, new SolrQueryResponse(), next);
+
+        processor.processAdd(add(req, TestCore.doc("_id", "m1", "text", "Hello World", "language", "en")));
+        processor.processAdd(add(req, TestCore.doc("_id", "m2", "text", "Hallo Welt")));
+        processor.processAdd(add(req, TestCore.doc("_id", "m3", "text", "Hello", "language", " ")));
+
+        final SolrInputDocument english = added.get(0);
+        Assert.assertThat("language of the document", english.getFieldValue("text_en"), CoreMatchers.is("Hello World"));
+        Assert.assertThat("source removed", english.getField("text"), CoreMatchers.nullValue());
+        Assert.assertThat("language field not in the schema", english.getField("language"), CoreMatchers.nullValue());
+
+        final SolrInputDocument german = added.get(1);
+        Assert.assertThat("language of the request, text_de is not in the schema", german.getFieldNames(),
+                CoreMatchers.is(TestCore.doc("_id", "m2").getFieldNames()));
+        Assert.assertThat("blank language", added.get(2).getField("text_en"), CoreMatchers.nullValue());
+    }
+
+    @Test
+    public void targetPattern() throws Exception {
+        final LanguageFieldUpdateProcessorFactory factory = createFactory("text_*");
+        final SolrQueryRequest req = request("en");
+        factory.getInstance(req, new SolrQueryResponse(), next).processAdd(add(req, TestCore.doc("_id", "m1", "text", "Hello")));
+
+        Assert.assertThat(added.get(0).getFieldValue("text_en"), CoreMatchers.is("Hello"));
+    }
+
+    @Test
+    public void targetFieldCache() throws Exception {
+        final LanguageFieldUpdateProcessorFactory factory = createFactory("text_");
+        final SolrQueryRequest req = request(ChatpalParams.LANG_NONE);
+        final UpdateRequestProcessor processor = factory.getInstance(req, new SolrQueryResponse(), next);
+
+        processor.processAdd(add(req, TestCore.doc("_id", "m1", "text", "Hello", "language", "en")));
+        processor.processAdd(add(req, TestCore.doc("_id", "m2", "text", "Hello", "language", "en")));
+        processor.processAdd(add(req, TestCore.doc("_id", "m3", "text", "Hello", "language", "xx")));
+        Assert.assertThat("resolved and missing fields", factory.getCachedLanguages(req.getSchema()), CoreMatchers.is(2));
+        Assert.assertThat("cached field", added.get(1).getFieldValue("text_en"), CoreMatchers.is("Hello"));
+
+        for (int i = 0; i < 1000; i++) {
+            processor.processAdd(add(req, TestCore.doc("_id", "m" + i, "text", "Hello", "language", "lang" + i)));
+        }
+        Assert.assertThat("languages of clients do not grow the cache", factory.getCachedLanguages(req.getSchema()),
+                CoreMatchers.is(256));
+        processor.processAdd(add(req, TestCore.doc("_id", "m4", "text", "Hello", "language", "en")));
+        Assert.assertThat(added.get(added.size() - 1).getFieldValue("text_en"), CoreMatchers.is("Hello"));
+    }
+
+    private static LanguageFieldUpdateProcessorFactory createFactory(String target) {
+        final NamedList<Object> args = new NamedList<>();
+        args.add("source", "text");
+        args.add("target", target);
+        final LanguageFieldUpdateProcessorFactory factory = new LanguageFieldUpdateProcessorFactory();
+        factory.init(args);
+        return factory;
+    }
+
+    private static SolrQueryRequest request(String language) throws Exception {
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(ChatpalParams.PARAM_LANG, language);
+        return TestCore.createRequest(params);
+    }
+
+    private static AddUpdateCommand add(SolrQueryRequest req, SolrInputDocument doc) {
+        final AddUpdateCommand cmd = new AddUpdateCommand(req);
+        cmd.solrDoc = doc;
+        return cmd;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.update.processor;
+
+import io.chatpal.solr.ext.ChatpalParams;
+import io.chatpal.solr.ext.TenantConfig;
+import io.chatpal.solr.ext.TestCore;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.DeleteUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TenantFieldUpdateProcessorFactoryTest {
+
+    private final Map<String, String> storedTenants = new HashMap<>();
+
+    private final TenantFieldUpdateProcessorFactory factory = new TenantFieldUpdateProcessorFactory(new TenantConfig(true, "tenant")) {
+        @Override
+        String getStoredTenant(SolrCore core, BytesRef id) {
+            return storedTenants.get(id.utf8ToString());
+        }
+    };
+
+    private final List<String> deleted = new ArrayList<>();
+    private final List<SolrInputDocument> added = new ArrayList<>();
+
+    private final UpdateRequestProcessor next = new UpdateRequestProcessor(null) {
+        @Override
+        public void processAdd(AddUpdateCommand cmd) {
+            added.add(cmd.solrDoc);
+        }
+
+        @Override
+        public void processDelete(DeleteUpdateCommand cmd) {
+            deleted.add(cmd.isDeleteById() ? cmd.getId() : cmd.getQuery());
+        }
+    };
+
+    @Test
+    public void deleteById() throws Exception {
+        storedTenants.put("a_message_1", "a");
+        storedTenants.put("b_message_1", "b");
+        final SolrQueryRequest req = request("a");
+        final UpdateRequestProcessor processor = factory.getInstance(req, new SolrQueryResponse(), next);
+
+        processor.processDelete(deleteById(req, "a_message_1"));
+        processor.processDelete(deleteById(req, "b_message_1"));
+        processor.processDelete(deleteById(req, "a_message_2"));
+
+        Assert.assertThat("other tenant not deleted", deleted, CoreMatchers.is(Arrays.asList("a_message_1", "a_message_2")));
+    }
+
+    @Test
+    public void deleteByQuery() throws Exception {
+        final SolrQueryRequest req = request("a");
+        final DeleteUpdateCommand cmd = new DeleteUpdateCommand(req);
+        cmd.setQuery("rid:r1");
+        factory.getInstance(req, new SolrQueryResponse(), next).processDelete(cmd);
+
+        Assert.assertThat(deleted, CoreMatchers.is(Collections.singletonList("+tenant:a +(rid:r1)")));
+    }
+
+    @Test
+    public void addOverwritesTenantOfDocument() throws Exception {
+        final SolrQueryRequest req = request("a");
+        final AddUpdateCommand cmd = new AddUpdateCommand(req);
+        cmd.solrDoc = new SolrInputDocument();
+        cmd.solrDoc.setField("tenant", "b");
+        factory.getInstance(req, new SolrQueryResponse(), next).processAdd(cmd);
+
+        Assert.assertThat(added.get(0).getFieldValue("tenant"), CoreMatchers.is("a"));
+    }
+
+    @Test(expected = SolrException.class)
+    public void addWithoutTenantParam() throws Exception {
+        final SolrQueryRequest req = request(null);
+        final AddUpdateCommand cmd = new AddUpdateCommand(req);
+        cmd.solrDoc = new SolrInputDocument();
+        cmd.solrDoc.setField("tenant", "b");
+        factory.getInstance(req, new SolrQueryResponse(), next).processAdd(cmd);
+    }
+
+    @Test
+    public void addOfOtherTenant() throws Exception {
+        storedTenants.put("message_1", "b");
+        final SolrQueryRequest req = request("a");
+        final UpdateRequestProcessor processor = factory.getInstance(req, new SolrQueryResponse(), next);
+        try {
+            processor.processAdd(add(req, "message_1"));
+            Assert.fail("document of tenant b");
+        } catch (SolrException e) {
+            Assert.assertThat(e.code(), CoreMatchers.is(SolrException.ErrorCode.BAD_REQUEST.code));
+        }
+
+        storedTenants.put("message_2", "a");
+        processor.processAdd(add(req, "message_2"));
+        processor.processAdd(add(req, "message_3"));
+        Assert.assertThat("own and new documents", added.size(), CoreMatchers.is(2));
+    }
+
+    @Test
+    public void checkTenantField() throws Exception {
+        factory.checkTenantField(TestCore.getSchema());
+        try {
+            new TenantFieldUpdateProcessorFactory(new TenantConfig(true, "text_en")).checkTenantField(TestCore.getSchema());
+            Assert.fail("field without docValues");
+        } catch (SolrException e) {
+            Assert.assertThat(e.code(), CoreMatchers.is(SolrException.ErrorCode.SERVER_ERROR.code));
+        }
+    }
+
+    private static SolrQueryRequest request(String tenant) throws Exception {
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(ChatpalParams.PARAM_TENANT, tenant);
+        return TestCore.createRequest(params);
+    }
+
+    private static AddUpdateCommand add(SolrQueryRequest req, String id) {
+        final AddUpdateCommand cmd = new AddUpdateCommand(req);
+        cmd.solrDoc = new SolrInputDocument();
+        cmd.solrDoc.setField("_id", id);
+        return cmd;
+    }
+
+    private static DeleteUpdateCommand deleteById(SolrQueryRequest req, String id) {
+        final DeleteUpdateCommand cmd = new DeleteUpdateCommand(req);
+        //no schema: the indexed id can not be derived from the id
+        cmd.id = id;
+        cmd.indexedId = new BytesRef(id);
+        return cmd;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.update.processor;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+public class TrigramLanguageModelTest {
+
+    private static TrigramLanguageModel model;
+
+    @BeforeClass
+    public static void loadModel() throws IOException {
+        try (InputStream in = TrigramLanguageModel.class.getClassLoader().getResourceAsStream(TrigramLanguageModel.DEFAULT_MODEL)) {
+            model = TrigramLanguageModel.load(in);
+        }
+    }
+
+    @Test
+    public void detect() {
+        final TrigramLanguageModel.Detector detector = model.newDetector(null, 0.9f, 5, 1000);
+
+        Assert.assertThat("en", detector.detect("Could you please send me the slides of the meeting tomorrow?"), CoreMatchers.is("en"));
+        Assert.assertThat("de", detector.detect("Kannst du mir bitte die Folien von dem Meeting morgen schicken?"), CoreMatchers.is("de"));
+        Assert.assertThat("fr", detector.detect("Pourrais-tu m'envoyer les diapositives de la réunion de demain?"), CoreMatchers.is("fr"));
+        Assert.assertThat("es", detector.detect("¿Podrías enviarme las diapositivas de la reunión de mañana?"), CoreMatchers.is("es"));
+        Assert.assertThat("it", detector.detect("Potresti mandarmi le slide della riunione di domani per favore?"), CoreMatchers.is("it"));
+        Assert.assertThat("ru", detector.detect("Не могли бы вы прислать мне слайды завтрашней встречи?"), CoreMatchers.is("ru"));
+    }
+
+    @Test
+    public void notConfident() {
+        final TrigramLanguageModel.Detector detector = model.newDetector(null, 0.9f, 5, 1000);
+
+        Assert.assertThat("too short", detector.detect("ok"), CoreMatchers.nullValue());
+        Assert.assertThat("no letters", detector.detect("1234 :-) 42"), CoreMatchers.nullValue());
+        Assert.assertThat("null", detector.detect(null), CoreMatchers.nullValue());
+    }
+
+    @Test
+    public void candidates() {
+        final TrigramLanguageModel.Detector detector = model.newDetector(Arrays.asList("en", "de"), 0.5f, 5, 1000);
+
+        Assert.assertThat("restricted", detector.detect("Kannst du mir bitte die Folien schicken?"), CoreMatchers.is("de"));
+        Assert.assertThat(model.getLanguages(), CoreMatchers.hasItems("en", "de", "fr"));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.chatpal.solr.ext.util;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class BoundedWorkersTest {
+
+    @Test
+    public void testOrderPerKey() throws Exception {
+        final List<List<String>> processed = Collections.synchronizedList(new ArrayList<>());
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            final BoundedWorkers<String> workers = new BoundedWorkers<>(executor, 3, 1, i -> items -> {
+                final List<String> worker = new ArrayList<>();
+                String item;
+                while ((item = items.next()) != null) {
+                    worker.add(item);
+                }
+                processed.add(worker);
+            });
+            for (int i = 0; i < 10; i++) {
+                workers.add("a", "a" + i);
+                workers.add("b", "b" + i);
+            }
+            workers.finish();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertThat(processed.size(), CoreMatchers.is(3));
+        for (String key : new String[]{"a", "b"}) {
+            final List<List<String>> withKey = processed.stream()
+                    .map(items -> items.stream().filter(item -> item.startsWith(key)).collect(Collectors.toList()))
+                    .filter(items -> !items.isEmpty())
+                    .collect(Collectors.toList());
+            Assert.assertThat("all items of a key go to one worker", withKey.size(), CoreMatchers.is(1));
+            Assert.assertThat(withKey.get(0), CoreMatchers.is(
+                    IntStream.range(0, 10).mapToObj(i -> key + i).collect(Collectors.toList())));
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            final BoundedWorkers<String> workers = new BoundedWorkers<>(executor, 1, 1, i -> items -> {
+                throw new IOException("expected");
+            });
+            try {
+                for (int i = 0; i < 10; i++) {
+                    workers.add("a", "a" + i);
+                }
+                workers.finish();
+                Assert.fail("worker failure expected");
+            } catch (ExecutionException e) {
+                Assert.assertThat(e.getCause(), CoreMatchers.instanceOf(IOException.class));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
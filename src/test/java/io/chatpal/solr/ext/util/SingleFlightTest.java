@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2018-2022 Redlink GmbH.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.chatpal.solr.ext.util;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest {
+
+    @Test
+    public void testCoalescing() throws Exception {
+        final SingleFlight<String, Integer> singleFlight = new SingleFlight<>();
+        final AtomicInteger computations = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final Future<Integer> leader = executor.submit(() -> singleFlight.execute("key", () -> {
+                release.await();
+                return computations.incrementAndGet();
+            }));
+            while (singleFlight.getInFlight() == 0) {
+                Thread.sleep(1);
+            }
+
+            final List<Future<Integer>> followers = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                followers.add(executor.submit(() -> singleFlight.execute("key", computations::incrementAndGet)));
+            }
+            while (singleFlight.getCoalesced() < 3) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+
+            Assert.assertThat(leader.get(5, TimeUnit.SECONDS), CoreMatchers.is(1));
+            for (Future<Integer> follower : followers) {
+                Assert.assertThat("shared result", follower.get(5, TimeUnit.SECONDS), CoreMatchers.is(1));
+            }
+            Assert.assertThat(singleFlight.getExecuted(), CoreMatchers.is(1L));
+            Assert.assertThat(singleFlight.getInFlight(), CoreMatchers.is(0));
+
+            Assert.assertThat("completed computations are not shared",
+                    singleFlight.execute("key", computations::incrementAndGet), CoreMatchers.is(2));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testException() throws Exception {
+        new SingleFlight<String, Integer>().execute("key", () -> {
+            throw new IllegalStateException("expected");
+        });
+    }
+}